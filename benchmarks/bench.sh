@@ -0,0 +1,3 @@
+#!/bin/sh
+# Builds the midi jar and the JMH benchmarks, then writes results to target/jmh-result.json
+(cd .. && mvn clean install) && mvn clean package && java -jar target/benchmarks.jar -rf json -rff target/jmh-result.json "$@"
@@ -0,0 +1,166 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.natlaughlin.midi.Midi;
+import com.natlaughlin.midi.MidiCompressedCodec;
+import com.natlaughlin.midi.MidiEventCodec;
+import com.natlaughlin.midi.MidiEventSerializable;
+
+/**
+ * Round trips of MidiEventSerializable through Java serialization, through MidiEventCodec
+ * and through MidiCompressedCodec, as one stream per connection (tcp) or one buffer per
+ * event (udp).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	@Param({ EventStreams.NOTES, EventStreams.CC, EventStreams.SYSEX, EventStreams.MIXED })
+	public String shape;
+	
+	private MidiEventSerializable[] events;
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+	private ByteBuffer buffer;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		events = EventStreams.create(shape);
+		int length = 0;
+		for (MidiEventSerializable me : events)
+		{
+			length += MidiEventCodec.getFrameLength(me);
+		}
+		buffer = ByteBuffer.allocate(MidiEventCodec.HEADER_LENGTH + length);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void objectStream(Blackhole bh) throws Exception
+	{
+		bytes.reset();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		for (MidiEventSerializable me : events)
+		{
+			oos.writeObject(me);
+		}
+		oos.flush();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (int i = 0; i < events.length; i++)
+		{
+			bh.consume(ois.readObject());
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void serializationUtils(Blackhole bh)
+	{
+		for (MidiEventSerializable me : events)
+		{
+			bh.consume(SerializationUtils.deserialize(SerializationUtils.serialize(me)));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void codecStream(Blackhole bh) throws Exception
+	{
+		bytes.reset();
+		DataOutputStream out = new DataOutputStream(bytes);
+		MidiEventCodec.writeHeader(out, 0);
+		for (MidiEventSerializable me : events)
+		{
+			MidiEventCodec.writeFrame(out, me);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		MidiEventCodec.readHeader(in);
+		for (int i = 0; i < events.length; i++)
+		{
+			bh.consume(MidiEventCodec.readFrame(in));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void compressedStream(Blackhole bh) throws Exception
+	{
+		bytes.reset();
+		DataOutputStream out = new DataOutputStream(bytes);
+		MidiEventCodec.writeHeader(out, MidiEventCodec.FLAG_COMPRESSED);
+		MidiCompressedCodec encoder = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+		for (MidiEventSerializable me : events)
+		{
+			byte[] b = me.getMessage();
+			encoder.writeEvent(out, me.getMessageType(), me.getMetaType(), me.getTick(), me.getSendTime(), b, 0, b.length);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		MidiEventCodec.readHeader(in);
+		MidiCompressedCodec decoder = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+		for (int i = 0; i < events.length; i++)
+		{
+			bh.consume(decoder.readEvent(in));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void codecPacket(Blackhole bh) throws Exception
+	{
+		for (MidiEventSerializable me : events)
+		{
+			ByteBuffer buf = ByteBuffer.allocate(MidiEventCodec.HEADER_LENGTH + MidiEventCodec.getFrameLength(me));
+			MidiEventCodec.writeHeader(buf, 0);
+			MidiEventCodec.writeFrame(buf, me);
+			buf.flip();
+			MidiEventCodec.readHeader(buf);
+			bh.consume(MidiEventCodec.readFrame(buf));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void codecBuffer(Blackhole bh) throws Exception
+	{
+		buffer.clear();
+		MidiEventCodec.writeHeader(buffer, 0);
+		for (MidiEventSerializable me : events)
+		{
+			MidiEventCodec.writeFrame(buffer, me);
+		}
+		buffer.flip();
+		MidiEventCodec.readHeader(buffer);
+		while (buffer.hasRemaining())
+		{
+			bh.consume(MidiEventCodec.readFrame(buffer));
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.DumpReceiver;
+
+/**
+ * Cost of the -debug decoding done for every event by DumpReceiver.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumpReceiverBenchmark
+{
+	private DumpReceiver dumpReceiver;
+	private ShortMessage shortMessage;
+	private SysexMessage sysexMessage;
+	private MetaMessage metaMessage;
+	private StringBuilder buffer = new StringBuilder(256);
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		dumpReceiver = new DumpReceiver(new PrintStream(OutputStream.nullOutputStream()));
+		shortMessage = new ShortMessage();
+		shortMessage.setMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+		sysexMessage = EventStreams.sysex(new Random(20070), 256);
+		metaMessage = EventStreams.tempo();
+	}
+	
+	@Benchmark
+	public String decodeShort()
+	{
+		return dumpReceiver.decodeMessage(shortMessage);
+	}
+	
+	@Benchmark
+	public StringBuilder decodeShortInto()
+	{
+		buffer.setLength(0);
+		DumpReceiver.decodeMessage(buffer, ShortMessage.NOTE_ON, 60, 100);
+		return buffer;
+	}
+	
+	@Benchmark
+	public String decodeSysex()
+	{
+		return dumpReceiver.decodeMessage(sysexMessage);
+	}
+	
+	@Benchmark
+	public String decodeMeta()
+	{
+		return dumpReceiver.decodeMessage(metaMessage);
+	}
+	
+	@Benchmark
+	public void sendShort()
+	{
+		dumpReceiver.send(shortMessage, 1000);
+	}
+
+}
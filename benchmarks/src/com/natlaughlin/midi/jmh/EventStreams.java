@@ -0,0 +1,178 @@
+package com.natlaughlin.midi.jmh;
+
+import java.util.Random;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import com.natlaughlin.midi.MidiEventSerializable;
+
+/**
+ * Synthetic event streams shaped like real performances.
+ */
+public class EventStreams
+{
+	public final static String NOTES = "notes";
+	public final static String CC = "cc";
+	public final static String SYSEX = "sysex";
+	public final static String MIXED = "mixed";
+	
+	public final static int LENGTH = 1024;
+	
+	public static MidiEventSerializable[] create(String shape) throws Exception
+	{
+		if(NOTES.equals(shape))
+		{
+			return noteBursts(LENGTH);
+		}
+		if(CC.equals(shape))
+		{
+			return controllerSweeps(LENGTH);
+		}
+		if(SYSEX.equals(shape))
+		{
+			return largeSysex(LENGTH, 4096);
+		}
+		if(MIXED.equals(shape))
+		{
+			return mixed(LENGTH);
+		}
+		throw new IllegalArgumentException("Unknown stream shape " + shape);
+	}
+	
+	/**
+	 * Four note chords struck together, released a beat later.
+	 */
+	public static MidiEventSerializable[] noteBursts(int count) throws Exception
+	{
+		Random random = new Random(20070);
+		MidiEventSerializable[] events = new MidiEventSerializable[count];
+		long tick = 0;
+		int[] chord = new int[4];
+		for (int i = 0; i < count; i++)
+		{
+			int position = i % 8;
+			if(position == 0)
+			{
+				tick += 50000 + random.nextInt(10000);
+				int root = 48 + random.nextInt(24);
+				chord[0] = root;
+				chord[1] = root + 4;
+				chord[2] = root + 7;
+				chord[3] = root + 12;
+			}
+			else if(position == 4)
+			{
+				tick += 400000;
+			}
+			else
+			{
+				tick += random.nextInt(3000);
+			}
+			ShortMessage sm = new ShortMessage();
+			if(position < 4)
+			{
+				sm.setMessage(ShortMessage.NOTE_ON, 0, chord[position], 60 + random.nextInt(60));
+			}
+			else
+			{
+				sm.setMessage(ShortMessage.NOTE_OFF, 0, chord[position - 4], 0);
+			}
+			events[i] = new MidiEventSerializable(sm, tick);
+		}
+		return events;
+	}
+	
+	/**
+	 * Mod wheel and expression sweeps at controller rate.
+	 */
+	public static MidiEventSerializable[] controllerSweeps(int count) throws Exception
+	{
+		MidiEventSerializable[] events = new MidiEventSerializable[count];
+		long tick = 0;
+		for (int i = 0; i < count; i++)
+		{
+			tick += 2000;
+			int value = i % 256 < 128 ? i % 128 : 127 - i % 128;
+			ShortMessage sm = new ShortMessage();
+			sm.setMessage(ShortMessage.CONTROL_CHANGE, 0, i % 2 == 0 ? 1 : 11, value);
+			events[i] = new MidiEventSerializable(sm, tick);
+		}
+		return events;
+	}
+	
+	/**
+	 * Mostly note on/off pairs and controller sweeps, with an occasional short sysex.
+	 */
+	public static MidiEventSerializable[] mixed(int count) throws Exception
+	{
+		Random random = new Random(20070);
+		MidiEventSerializable[] events = new MidiEventSerializable[count];
+		long tick = 0;
+		for (int i = 0; i < count; i++)
+		{
+			tick += random.nextInt(2000);
+			int r = random.nextInt(100);
+			if(r < 70)
+			{
+				int command = (i % 2 == 0) ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+				ShortMessage sm = new ShortMessage();
+				sm.setMessage(command, 0, 36 + random.nextInt(60), random.nextInt(128));
+				events[i] = new MidiEventSerializable(sm, tick);
+			}
+			else if(r < 99)
+			{
+				ShortMessage sm = new ShortMessage();
+				sm.setMessage(ShortMessage.CONTROL_CHANGE, 0, 1, random.nextInt(128));
+				events[i] = new MidiEventSerializable(sm, tick);
+			}
+			else
+			{
+				events[i] = new MidiEventSerializable(sysex(random, 32 + random.nextInt(96)), tick);
+			}
+			// device callback a little after the device timestamp
+			events[i].setSendTime(1000000 + tick + random.nextInt(50));
+		}
+		return events;
+	}
+
+	/**
+	 * Patch dumps.
+	 */
+	public static MidiEventSerializable[] largeSysex(int count, int size) throws Exception
+	{
+		Random random = new Random(20070);
+		MidiEventSerializable[] events = new MidiEventSerializable[count];
+		long tick = 0;
+		for (int i = 0; i < count; i++)
+		{
+			tick += 100000;
+			events[i] = new MidiEventSerializable(sysex(random, size), tick);
+		}
+		return events;
+	}
+	
+	public static SysexMessage sysex(Random random, int size) throws Exception
+	{
+		byte[] data = new byte[size];
+		for (int j = 1; j < size - 1; j++)
+		{
+			data[j] = (byte) random.nextInt(128);
+		}
+		data[0] = (byte) SysexMessage.SYSTEM_EXCLUSIVE;
+		data[size - 1] = (byte) ShortMessage.END_OF_EXCLUSIVE;
+		SysexMessage sm = new SysexMessage();
+		sm.setMessage(data, data.length);
+		return sm;
+	}
+	
+	public static MetaMessage tempo() throws Exception
+	{
+		byte[] data = { 0x07, (byte) 0xA1, 0x20 };
+		MetaMessage mm = new MetaMessage();
+		mm.setMessage(0x51, data, data.length);
+		return mm;
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.natlaughlin.midi.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.natlaughlin.midi.MidiEventCodec;
+import com.natlaughlin.midi.MidiEventRing;
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiMulticast;
+
+/**
+ * Packing events into multicast datagrams the way MidiMulticastSender batches them,
+ * and unpacking them: decode allocates an event per frame, decodeInPlace reads frames
+ * from a reused direct buffer the way MidiMulticastReceiver does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MulticastPacketBenchmark
+{
+	@Param({ EventStreams.NOTES, EventStreams.CC })
+	public String shape;
+	
+	private MidiEventSerializable[] events;
+	private ByteBuffer packet = ByteBuffer.allocate(MidiMulticast.PACKET_SIZE);
+	private ByteBuffer[] packets;
+	private ByteBuffer direct = ByteBuffer.allocateDirect(MidiMulticast.PACKET_SIZE);
+	private byte[] scratch = new byte[MidiMulticast.PACKET_SIZE];
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		events = EventStreams.create(shape);
+		packets = new ByteBuffer[0];
+		List<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+		int i = 0;
+		while (i < events.length)
+		{
+			ByteBuffer buf = ByteBuffer.allocate(MidiMulticast.PACKET_SIZE);
+			i = fill(buf, i);
+			buf.flip();
+			encoded.add(buf);
+		}
+		packets = encoded.toArray(packets);
+	}
+	
+	private int fill(ByteBuffer buf, int i)
+	{
+		MidiEventCodec.writeHeader(buf, 0);
+		while (i < events.length && MidiEventCodec.getFrameLength(events[i]) <= buf.remaining())
+		{
+			MidiEventCodec.writeFrame(buf, events[i]);
+			i++;
+		}
+		return i;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void encode(Blackhole bh)
+	{
+		int i = 0;
+		while (i < events.length)
+		{
+			packet.clear();
+			i = fill(packet, i);
+			bh.consume(packet.position());
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void decode(Blackhole bh) throws Exception
+	{
+		for (ByteBuffer buf : packets)
+		{
+			buf.rewind();
+			MidiEventCodec.readHeader(buf);
+			while (buf.hasRemaining())
+			{
+				bh.consume(MidiEventCodec.readFrame(buf));
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void decodeInPlace(final Blackhole bh) throws Exception
+	{
+		MidiEventRing.Handler handler = new MidiEventRing.Handler()
+		{
+			@Override
+			public void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] data, int offset, int length)
+			{
+				bh.consume(tick);
+				bh.consume(length);
+			}
+		};
+		for (ByteBuffer buf : packets)
+		{
+			buf.rewind();
+			direct.clear();
+			direct.put(buf);
+			direct.flip();
+			MidiEventCodec.readHeader(direct);
+			while (direct.hasRemaining())
+			{
+				MidiEventCodec.readFrame(direct, scratch, handler);
+			}
+		}
+	}
+
+}
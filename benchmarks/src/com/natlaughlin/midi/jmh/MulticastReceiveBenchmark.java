@@ -0,0 +1,228 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.LatencyHistogram;
+import com.natlaughlin.midi.Midi;
+import com.natlaughlin.midi.MidiEventCodec;
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiMetrics;
+import com.natlaughlin.midi.MidiMulticast;
+import com.natlaughlin.midi.MidiMulticastReceiver;
+import com.natlaughlin.midi.MidiSequenceTracker;
+import com.natlaughlin.midi.MidiSession;
+
+/**
+ * Packets per second through a multicast receive loop in this JVM. Each invocation sends
+ * a burst of note event packets to the group, small enough for the receive buffer, and
+ * waits for the receiver to count them or a packet lost on the way. The sender reuses
+ * its buffer, so with -prof gc gc.alloc.rate.norm is what the receive path allocates
+ * per packet.
+ *
+ * channel is MidiMulticastReceiver. socket is the receive loop it used before: a
+ * MulticastSocket, a new array and DatagramPacket per packet and a MidiEventSerializable
+ * per frame. The receivers cannot be stopped, so each runs in its own fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+// the receiver's timer thread never ends
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class MulticastReceiveBenchmark
+{
+	public final static String CHANNEL = "channel";
+	public final static String SOCKET = "socket";
+
+	private final static int EVENTS_PER_PACKET = 10;
+	private final static int BURST_PACKETS = 1000;
+	private final static int DRAIN_MILLISECONDS = 100;
+
+	@Param({ CHANNEL, SOCKET })
+	public String mode;
+
+	private int port;
+	private volatile boolean running = true;
+	private AtomicLong socketPackets = new AtomicLong();
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private ObjectName metricsName;
+
+	private ByteBuffer buf = ByteBuffer.allocate(MidiMulticast.PACKET_SIZE);
+	private byte[] message = new byte[3];
+	private DatagramSocket socket;
+	private DatagramPacket pack;
+	private long tick;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+
+		String dir = Files.createTempDirectory("midi-jmh").toFile().getAbsolutePath();
+		if(SOCKET.equals(mode))
+		{
+			startSocketReceiver(dir);
+		}
+		else
+		{
+			metricsName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+					+ ObjectName.quote("MidiMulticastReceiver:" + MidiMulticast.HOST + ":" + port));
+			MidiMulticastReceiver.main(new String[] { "-port", String.valueOf(port), "-dir", dir, "-wait", "3600" });
+		}
+		Thread.sleep(1000);
+
+		socket = new DatagramSocket();
+		pack = new DatagramPacket(buf.array(), 0, InetAddress.getByName(MidiMulticast.HOST), port);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown()
+	{
+		running = false;
+		socket.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST_PACKETS)
+	public void receive() throws Exception
+	{
+		long sent = getPackets() + BURST_PACKETS;
+		for (int i = 0; i < BURST_PACKETS; i++)
+		{
+			// ticks keep rising like a device's, so the session never has to reorder
+			buf.clear();
+			MidiEventCodec.writeHeader(buf, 0);
+			for (int j = 0; j < EVENTS_PER_PACKET; j++)
+			{
+				message[0] = (byte) (j % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF);
+				message[1] = (byte) (60 + j / 2);
+				message[2] = (byte) (j % 2 == 0 ? 100 : 0);
+				MidiEventCodec.writeFrame(buf, MidiEventSerializable.SHORT, 0, tick, 0, message, 0, message.length);
+				tick += 1000;
+			}
+			pack.setLength(buf.position());
+			socket.send(pack);
+		}
+		long deadline = System.currentTimeMillis() + DRAIN_MILLISECONDS;
+		while (getPackets() < sent && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(1);
+		}
+	}
+
+	private long getPackets() throws Exception
+	{
+		return SOCKET.equals(mode) ? socketPackets.get() : (Long) server.getAttribute(metricsName, "Packets");
+	}
+
+	private void startSocketReceiver(String dir) throws Exception
+	{
+		final MulticastSocket socket = new MulticastSocket(port);
+		socket.joinGroup(InetAddress.getByName(MidiMulticast.HOST));
+		socket.setSoTimeout(MidiMulticast.NACK_MILLISECONDS);
+		socket.setReceiveBufferSize(MidiMulticast.RECEIVE_BUFFER_SIZE);
+		PrintStream quiet = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+		});
+		final MidiSession session = new MidiSession(dir, Midi.FILE_PREFIX, new SimpleDateFormat(Midi.FILE_DATEFORMAT), "", quiet, false);
+		// the same bookkeeping MidiMulticastReceiver does, so only the receive path differs
+		final MidiMetrics metrics = new MidiMetrics("MulticastReceiveBenchmark:" + port);
+		session.setMetrics(metrics);
+		session.setLatency(new LatencyHistogram("Transit", "us"), new LatencyHistogram("Processing", "ns"));
+		final MidiSequenceTracker tracker = new MidiSequenceTracker(MidiMulticast.HISTORY_PACKETS, MidiMulticast.NACK_MILLISECONDS,
+				MidiMulticast.NACK_RETRIES, metrics);
+		final MidiSequenceTracker.NackHandler nackHandler = new MidiSequenceTracker.NackHandler()
+		{
+			@Override
+			public void sendNack(SocketAddress sender, ByteBuffer nack) throws Exception
+			{
+				socket.send(new DatagramPacket(nack.array(), nack.limit(), sender));
+			}
+		};
+
+		Thread receiver = new Thread("MulticastReceiveBenchmark socket receiver")
+		{
+			@Override
+			public void run()
+			{
+				while (running)
+				{
+					byte[] bytes = new byte[MidiMulticast.PACKET_SIZE];
+					DatagramPacket pack = new DatagramPacket(bytes, bytes.length);
+					try
+					{
+						socket.receive(pack);
+					}
+					catch(SocketTimeoutException e)
+					{
+						continue;
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+						return;
+					}
+					socketPackets.incrementAndGet();
+					metrics.recordPacket();
+					try
+					{
+						ByteBuffer buf = ByteBuffer.wrap(pack.getData(), 0, pack.getLength());
+						MidiEventCodec.readHeader(buf);
+						while (buf.hasRemaining())
+						{
+							session.processEvent(MidiEventCodec.readFrame(buf));
+						}
+						tracker.sendNacks(System.currentTimeMillis(), nackHandler);
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+				socket.close();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.MidiEventCodec;
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiReceiver;
+
+/**
+ * Opens many idle sender connections against a MidiReceiver in this JVM, one event each.
+ * The score is the time to open them; the counters are the platform threads they added
+ * and the heap and resident bytes they cost per connection, once settled.
+ *
+ * The receiver cannot be stopped, so every mode runs in its own fork. The client sockets
+ * live in the same JVM, so their cost is included equally in every mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+// the counters add up over iterations
+@Measurement(iterations = 1)
+// the receiver's timer thread never ends
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class ReceiverConnectionsBenchmark
+{
+	private final static int SETTLE_MILLISECONDS = 3000;
+
+	@Param({ MidiReceiver.MODE_THREADS, MidiReceiver.MODE_VIRTUAL, MidiReceiver.MODE_NIO })
+	public String mode;
+
+	@Param({ "1000" })
+	public int connections;
+
+	private int port;
+	private byte[] stream;
+	private Socket[] sockets;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint
+	{
+		public long platformThreads;
+		public long heapBytesPerConnection;
+		public long rssBytesPerConnection;
+
+		private int threadsBefore;
+		private long heapBefore;
+		private long rssBefore;
+
+		@Setup(Level.Iteration)
+		public void before() throws Exception
+		{
+			heapBefore = usedHeap();
+			rssBefore = residentSetSize();
+			threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		}
+
+		@TearDown(Level.Iteration)
+		public void after(ReceiverConnectionsBenchmark b) throws Exception
+		{
+			Thread.sleep(SETTLE_MILLISECONDS);
+			platformThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+			heapBytesPerConnection = (usedHeap() - heapBefore) / b.connections;
+			long rss = residentSetSize();
+			rssBytesPerConnection = rss > 0 ? (rss - rssBefore) / b.connections : 0;
+			for (Socket socket : b.sockets)
+			{
+				socket.close();
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void startReceiver() throws Exception
+	{
+		ServerSocket probe = new ServerSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+		File dir = Files.createTempDirectory("midi-jmh").toFile();
+		MidiReceiver.main(new String[] { "-mode", mode, "-port", String.valueOf(port), "-dir", dir.getAbsolutePath() });
+		Thread.sleep(1000);
+
+		ShortMessage sm = new ShortMessage();
+		sm.setMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		MidiEventCodec.writeHeader(out, 0);
+		MidiEventCodec.writeFrame(out, new MidiEventSerializable(sm, 0));
+		stream = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public void connect(Footprint footprint) throws Exception
+	{
+		sockets = new Socket[connections];
+		for (int i = 0; i < connections; i++)
+		{
+			sockets[i] = new Socket("localhost", port);
+			BufferedOutputStream out = new BufferedOutputStream(sockets[i].getOutputStream());
+			out.write(stream);
+			out.flush();
+		}
+	}
+
+	private static long usedHeap() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Thread stacks live outside the heap, so resident memory is counted too where /proc is available.
+	 */
+	private static long residentSetSize()
+	{
+		try
+		{
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8))
+			{
+				if(line.startsWith("VmRSS:"))
+				{
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		}
+		catch(Exception e)
+		{
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,251 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.MidiEventCodec;
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiRelay;
+
+/**
+ * Events per second through a MidiRelay in this JVM to many local subscribers, plus one
+ * that never reads. Each invocation streams a burst from one sender and waits until every
+ * reading subscriber has it; the deliveries counter is events times subscribers.
+ *
+ * The trial fails if a reading subscriber falls behind, or if the stalled one was never
+ * dropped from, coalesced or disconnected under the relay's policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayFanOutBenchmark
+{
+	private final static int BURST_EVENTS = 1000;
+	private final static int BURST_MILLISECONDS = 5000;
+	private final static int FRAME_LENGTH = MidiEventCodec.SENDER_ID_LENGTH + MidiEventCodec.FRAME_HEADER_LENGTH + 3;
+
+	@Param({ MidiRelay.POLICY_DROP, MidiRelay.POLICY_DISCONNECT, MidiRelay.POLICY_COALESCE })
+	public String policy;
+
+	@Param({ "1000" })
+	public int subscriberCount;
+
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private ObjectName relayName;
+	private Socket stalled;
+	private SocketChannel[] subscribers;
+	private long[] received;
+	private volatile long minReceived;
+	private volatile boolean running = true;
+	private Socket sender;
+	private DataOutputStream out;
+	private byte[] message = new byte[3];
+	private long sent;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Delivered
+	{
+		public long deliveries;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		int senderPort = getFreePort();
+		int subscriberPort = getFreePort();
+		MidiRelay.main(new String[] { "-port", String.valueOf(senderPort), "-subscribers", String.valueOf(subscriberPort), "-policy", policy });
+		relayName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name=" + ObjectName.quote("MidiRelay:" + senderPort));
+		Thread.sleep(1000);
+
+		// the monitor station that stopped reading
+		stalled = new Socket();
+		stalled.setReceiveBufferSize(4096);
+		stalled.connect(new InetSocketAddress("localhost", subscriberPort));
+
+		final Selector selector = Selector.open();
+		subscribers = new SocketChannel[subscriberCount];
+		received = new long[subscriberCount];
+		for (int i = 0; i < subscriberCount; i++)
+		{
+			subscribers[i] = SocketChannel.open(new InetSocketAddress("localhost", subscriberPort));
+			subscribers[i].configureBlocking(false);
+			subscribers[i].register(selector, SelectionKey.OP_READ, i);
+		}
+		while (getValue("Subscribers") < subscriberCount + 1)
+		{
+			Thread.sleep(10);
+		}
+
+		Thread reader = new Thread("RelayFanOutBenchmark reader")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					read(selector);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		sender = new Socket("localhost", senderPort);
+		sender.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(sender.getOutputStream()));
+		MidiEventCodec.writeHeader(out, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void verify() throws Exception
+	{
+		running = false;
+		long stalls = getValue("DroppedEvents") + getValue("SlowDisconnects") + getValue("CoalescedEvents");
+		sender.close();
+		stalled.close();
+		for (SocketChannel subscriber : subscribers)
+		{
+			subscriber.close();
+		}
+		if(stalls == 0)
+		{
+			throw new IllegalStateException("The stalled subscriber held up nothing under policy " + policy);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST_EVENTS)
+	public void fanOut(Delivered delivered) throws Exception
+	{
+		for (int i = 0; i < BURST_EVENTS; i++)
+		{
+			// note on, mod wheel, note off, pitch bend
+			long n = sent + i;
+			int key = (int) (36 + n / 4 % 60);
+			switch ((int) (n % 4))
+			{
+			case 0:
+				setMessage(ShortMessage.NOTE_ON, key, 100);
+				break;
+			case 1:
+				setMessage(ShortMessage.CONTROL_CHANGE, 1, (int) (n & 0x7F));
+				break;
+			case 2:
+				setMessage(ShortMessage.NOTE_OFF, key, 0);
+				break;
+			default:
+				setMessage(ShortMessage.PITCH_BEND, (int) (n & 0x7F), 0x40);
+				break;
+			}
+			MidiEventCodec.writeFrame(out, MidiEventSerializable.SHORT, 0, n * 1000L, 0, message, 0, message.length);
+		}
+		out.flush();
+		sent += BURST_EVENTS;
+
+		long expected = MidiEventCodec.HEADER_LENGTH + sent * FRAME_LENGTH;
+		long deadline = System.currentTimeMillis() + BURST_MILLISECONDS;
+		while (minReceived < expected && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		if(minReceived < expected)
+		{
+			throw new IllegalStateException(String.format("Subscribers stopped at %d of %d events",
+					(minReceived - MidiEventCodec.HEADER_LENGTH) / FRAME_LENGTH, sent));
+		}
+		delivered.deliveries += (long) BURST_EVENTS * subscriberCount;
+	}
+
+	private void setMessage(int status, int data1, int data2)
+	{
+		message[0] = (byte) status;
+		message[1] = (byte) data1;
+		message[2] = (byte) data2;
+	}
+
+	private long getValue(String attribute) throws Exception
+	{
+		return (Long) server.getAttribute(relayName, attribute);
+	}
+
+	private static int getFreePort() throws Exception
+	{
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		return port;
+	}
+
+	/**
+	 * Counts the bytes every subscriber receives; minReceived is the least of them.
+	 */
+	private void read(Selector selector) throws Exception
+	{
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		while (running)
+		{
+			selector.select(100);
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
+				int i = (Integer) key.attachment();
+				buf.clear();
+				int n = ((SocketChannel) key.channel()).read(buf);
+				if(n < 0)
+				{
+					key.cancel();
+					continue;
+				}
+				received[i] += n;
+			}
+
+			long min = Long.MAX_VALUE;
+			for (int i = 0; i < received.length; i++)
+			{
+				min = Math.min(min, received[i]);
+			}
+			minReceived = min;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.natlaughlin.midi.jmh;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.Midi;
+import com.natlaughlin.midi.MidiEventRing;
+import com.natlaughlin.midi.MidiMulticastSender;
+import com.natlaughlin.midi.MidiSender;
+
+/**
+ * The work the device callback thread does per event in MidiSender and
+ * MidiMulticastSender receivers, sending or batching to a loopback port nobody reads.
+ * Run with -prof gc: gc.alloc.rate.norm should stay near zero bytes per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SenderCallbackBenchmark
+{
+	public final static String TCP = "tcp";
+	public final static String MULTICAST = "multicast";
+	public final static String MULTICAST_BATCHED = "multicast-batched";
+
+	private final static int MESSAGES = 128;
+
+	@Param({ TCP, MULTICAST, MULTICAST_BATCHED })
+	public String sender;
+
+	private ShortMessage[] messages = new ShortMessage[MESSAGES];
+	private Receiver receiver;
+	private Thread consumer;
+	private DatagramChannel channel;
+	private long timeStamp;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		for (int i = 0; i < messages.length; i++)
+		{
+			messages[i] = new ShortMessage();
+			messages[i].setMessage(i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.CONTROL_CHANGE, 0, i, 64);
+		}
+
+		if(TCP.equals(sender))
+		{
+			MidiSender.ObjectReceiver tcp = new MidiSender().new ObjectReceiver();
+			tcp.setRing(startConsumer());
+			receiver = tcp;
+			return;
+		}
+
+		channel = DatagramChannel.open();
+		channel.bind(null);
+		MidiMulticastSender.ObjectReceiver multicast = new MidiMulticastSender().new ObjectReceiver();
+		multicast.setGroup(new InetSocketAddress(InetAddress.getLoopbackAddress(), channel.socket().getLocalPort()));
+		multicast.setChannel(channel);
+		multicast.setBatchMicroseconds(MULTICAST_BATCHED.equals(sender) ? 1000 : 0);
+		receiver = multicast;
+	}
+
+	/**
+	 * Drains the ring on another thread, as the network writer would.
+	 */
+	private MidiEventRing startConsumer()
+	{
+		final MidiEventRing ring = new MidiEventRing(Midi.SENDER_RING_SIZE, Midi.SENDER_RING_SLOT_SIZE);
+		consumer = new Thread("SenderCallbackBenchmark consumer")
+		{
+			@Override
+			public void run()
+			{
+				MidiEventRing.Handler discard = new MidiEventRing.Handler()
+				{
+					@Override
+					public void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] data, int offset, int length)
+					{
+					}
+				};
+				try
+				{
+					while (!isInterrupted())
+					{
+						if(ring.drain(discard) == 0)
+						{
+							ring.await(1, TimeUnit.MILLISECONDS);
+						}
+					}
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+		return ring;
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception
+	{
+		receiver.close();
+		if(consumer != null)
+		{
+			consumer.interrupt();
+		}
+		if(channel != null)
+		{
+			channel.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void send()
+	{
+		for (int i = 0; i < MESSAGES; i++)
+		{
+			receiver.send(messages[i], timeStamp++);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiSession;
+
+/**
+ * Ingest throughput of MidiSession.processEvent, the recording step behind MidiReceiver and
+ * MidiMulticastReceiver, including buffered writes of the MIDI file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark
+{
+	@Param({ EventStreams.NOTES, EventStreams.CC, EventStreams.SYSEX })
+	public String shape;
+	
+	private MidiEventSerializable[] events;
+	private File directory;
+	private MidiSession session;
+	private long offset;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		events = EventStreams.create(shape);
+		directory = Files.createTempDirectory("midi-jmh").toFile();
+	}
+	
+	@Setup(Level.Iteration)
+	public void startRecording()
+	{
+		PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+		session = new MidiSession(new File(directory, "session.mid"), quiet, false);
+		offset = 0;
+	}
+	
+	@TearDown(Level.Iteration)
+	public void stopRecording() throws Exception
+	{
+		session.writeMidiFile();
+	}
+	
+	@TearDown(Level.Trial)
+	public void cleanup() throws Exception
+	{
+		FileUtils.deleteDirectory(directory);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EventStreams.LENGTH)
+	public void processEvent() throws Exception
+	{
+		// keep ticks moving forward across invocations
+		long last = events[events.length - 1].getTick();
+		for (MidiEventSerializable me : events)
+		{
+			session.processEvent(new MidiEventSerializable(me.getMessageType(), me.getMetaType(), me.getTick() + offset, me.getMessage()));
+		}
+		offset += last;
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.Midi;
+import com.natlaughlin.midi.MidiMulticast;
+import com.natlaughlin.midi.MidiMulticastReceiver;
+import com.natlaughlin.midi.MidiMulticastSender;
+import com.natlaughlin.midi.MidiPacketLoss;
+
+/**
+ * Sysex messages much larger than a packet, like patch dumps and sample transfers, sent
+ * back to back through a MidiMulticastSender receiver to a MidiMulticastReceiver in this
+ * JVM over the loopback interface. Each invocation sends a burst and waits until the one
+ * before it is reassembled or given up on: a lost last packet is only noticed when the
+ * sender sends again. The bytes counter is the transfer rate.
+ *
+ * The trial fails unless the recorded MIDI files hold every message byte for byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+// the receiver's timer thread never ends
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class SysexTransferBenchmark
+{
+	private final static int BURST_MESSAGES = 10;
+	private final static int WAIT_SECONDS = 1;
+	private final static int DEADLINE_MILLISECONDS = 30000;
+	// message i holds pattern i % PATTERNS
+	private final static int PATTERNS = 128;
+
+	@Param({ "32768" })
+	public int size;
+
+	@Param({ "0", "5" })
+	public double lossPercent;
+
+	private File dir;
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private ObjectName receiverName;
+	private DatagramChannel channel;
+	private MidiMulticastSender.ObjectReceiver sender;
+	private byte[][] patterns;
+	private SysexMessage sysex = new SysexMessage();
+	private long sent;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Transferred
+	{
+		public long bytes;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		dir = Files.createTempDirectory("midi-jmh").toFile();
+		MidiMulticastReceiver.main(new String[] { "-port", String.valueOf(port), "-dir", dir.getPath(), "-wait", String.valueOf(WAIT_SECONDS) });
+		receiverName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+				+ ObjectName.quote("MidiMulticastReceiver:" + MidiMulticast.HOST + ":" + port));
+		Thread.sleep(1000);
+
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.bind(null);
+		sender = new MidiMulticastSender().new ObjectReceiver();
+		sender.setGroup(new InetSocketAddress(InetAddress.getByName(MidiMulticast.HOST), port));
+		sender.setChannel(channel);
+		sender.setBatchMicroseconds(0);
+		if(lossPercent > 0)
+		{
+			sender.setPacketLoss(new MidiPacketLoss(lossPercent, 20070));
+		}
+		sender.startRetransmitter();
+
+		patterns = new byte[PATTERNS][];
+		for (int p = 0; p < PATTERNS; p++)
+		{
+			patterns[p] = createSysex(p, size);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST_MESSAGES)
+	public void transfer(Transferred transferred) throws Exception
+	{
+		for (int i = 0; i < BURST_MESSAGES; i++)
+		{
+			byte[] b = patterns[(int) (sent % PATTERNS)];
+			sysex.setMessage(b, b.length);
+			sender.send(sysex, sent * 1000L);
+			sent++;
+		}
+		awaitMessages(sent - BURST_MESSAGES);
+		transferred.bytes += (long) BURST_MESSAGES * size;
+	}
+
+	@TearDown(Level.Trial)
+	public void verify() throws Exception
+	{
+		// a note after the last burst shows the receiver if its end was lost
+		ShortMessage note = new ShortMessage();
+		note.setMessage(ShortMessage.NOTE_OFF, 0, 60, 0);
+		sender.send(note, sent * 1000L);
+		awaitMessages(sent);
+
+		// every session closes once idle; then each file on disk must be complete
+		long deadline = System.currentTimeMillis() + Midi.RECEIVER_POLL_MILLISECONDS * 3 + WAIT_SECONDS * 1000L;
+		while (System.currentTimeMillis() < deadline
+				&& (getValue("Sessions") > 0 || getValue("FilesWritten") < dir.listFiles().length))
+		{
+			Thread.sleep(100);
+		}
+		sender.close();
+		channel.close();
+
+		long intact = 0;
+		for (File file : dir.listFiles())
+		{
+			intact += countIntact(file);
+		}
+		FileUtils.deleteQuietly(dir);
+		if(intact != sent)
+		{
+			throw new IllegalStateException(String.format("%d of %d sysex messages recorded intact", intact, sent));
+		}
+	}
+
+	/**
+	 * Waits until this many messages are either recorded or given up on.
+	 */
+	private void awaitMessages(long count) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLISECONDS;
+		while (getValue("SysexEvents") + getValue("ReassemblyDrops") < count && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(1);
+		}
+	}
+
+	private long getValue(String attribute) throws Exception
+	{
+		return (Long) server.getAttribute(receiverName, attribute);
+	}
+
+	private static byte[] createSysex(int pattern, int size)
+	{
+		byte[] b = new byte[size];
+		b[0] = (byte) SysexMessage.SYSTEM_EXCLUSIVE;
+		b[1] = (byte) pattern;
+		for (int i = 2; i < size - 1; i++)
+		{
+			b[i] = (byte) ((pattern * 31 + i) & 0x7F);
+		}
+		b[size - 1] = (byte) ShortMessage.END_OF_EXCLUSIVE;
+		return b;
+	}
+
+	/**
+	 * Sysex messages in the file equal to the pattern their second byte names. A message
+	 * finished by a repair is recorded after the ones that overtook it, so order is not
+	 * compared.
+	 */
+	private long countIntact(File midiFile) throws Exception
+	{
+		long count = 0;
+		Sequence sequence = MidiSystem.getSequence(midiFile);
+		for (Track track : sequence.getTracks())
+		{
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiMessage m = track.get(i).getMessage();
+				if(!(m instanceof SysexMessage) || m.getLength() < 2)
+					continue;
+
+				byte[] b = m.getMessage();
+				if(Arrays.equals(b, patterns[b[1] & 0x7F]))
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+}
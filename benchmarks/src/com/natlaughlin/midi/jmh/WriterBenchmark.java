@@ -0,0 +1,209 @@
+package com.natlaughlin.midi.jmh;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.ShortMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natlaughlin.midi.Midi;
+import com.natlaughlin.midi.MidiEventSerializable;
+import com.natlaughlin.midi.MidiMetrics;
+import com.natlaughlin.midi.MidiSession;
+import com.natlaughlin.midi.MidiWriterExecutor;
+
+/**
+ * Single processEvent calls on one MidiSession, while another thread flushes it every
+ * poll like the idle checks do. The percentiles show ingest waiting on file writes.
+ *
+ * executor hands buffers to a MidiWriterExecutor, inline writes them on the calling
+ * thread as sessions without an executor do. Each iteration records its own file, and
+ * fails unless the file holds every event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark
+{
+	public final static String INLINE = "inline";
+	public final static String EXECUTOR = "executor";
+
+	private final static int FLUSH_MILLISECONDS = 10;
+	private final static int DEADLINE_MILLISECONDS = 30000;
+
+	@Param({ EXECUTOR, INLINE })
+	public String mode;
+
+	private PrintStream quiet = new PrintStream(new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+		}
+	});
+	private MidiMetrics metrics = new MidiMetrics("WriterBenchmark");
+	private MidiWriterExecutor writerExecutor;
+	private File dir;
+	private MidiSession session;
+	private Thread flusher;
+	private volatile boolean running;
+	private byte[] message = new byte[3];
+	private long events;
+	private long files;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		if(EXECUTOR.equals(mode))
+		{
+			writerExecutor = new MidiWriterExecutor("WriterBenchmark", Midi.WRITER_QUEUE_SIZE, metrics);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void startSession() throws Exception
+	{
+		dir = Files.createTempDirectory("midi-jmh").toFile();
+		session = new MidiSession(dir.getPath(), Midi.FILE_PREFIX, new SimpleDateFormat(Midi.FILE_DATEFORMAT), "", quiet, false);
+		session.setMetrics(metrics);
+		session.setWriterExecutor(writerExecutor);
+		events = 0;
+
+		running = true;
+		flusher = new Thread("WriterBenchmark flusher")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (running)
+					{
+						Thread.sleep(FLUSH_MILLISECONDS);
+						session.flush();
+					}
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@TearDown(Level.Iteration)
+	public void verify() throws Exception
+	{
+		running = false;
+		flusher.join();
+		session.writeMidiFile();
+		files++;
+
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLISECONDS;
+		while (metrics.getValues().get("FilesWritten") < files && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		File[] written = dir.listFiles();
+		long count = written != null && written.length == 1 ? countShortMessages(written[0]) : -1;
+		FileUtils.deleteQuietly(dir);
+		if(count != events)
+		{
+			throw new IllegalStateException(String.format("%d of %d events written", count, events));
+		}
+	}
+
+	@Benchmark
+	public boolean processEvent() throws Exception
+	{
+		long i = events++;
+		message[0] = (byte) (i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF);
+		message[1] = (byte) (36 + i / 2 % 60);
+		message[2] = (byte) (i % 2 == 0 ? 100 : 0);
+		return session.processEvent(MidiEventSerializable.SHORT, 0, i * 100L, 0, message, 0, message.length);
+	}
+
+	/**
+	 * Channel messages in the track up to End of Track, read as the file streams past:
+	 * loading millions of them as a Sequence would not fit the heap.
+	 */
+	private static long countShortMessages(File midiFile) throws Exception
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(midiFile)));
+		try
+		{
+			// MThd and its 6 bytes, then the MTrk header
+			in.skipBytes(14 + 8);
+			long count = 0;
+			while (true)
+			{
+				readVarInt(in);
+				int status = in.readUnsignedByte();
+				if(status == 0xFF)
+				{
+					int type = in.readUnsignedByte();
+					in.skipBytes(readVarInt(in));
+					if(type == 0x2F)
+					{
+						return count;
+					}
+				}
+				else if(status == 0xF0 || status == 0xF7)
+				{
+					in.skipBytes(readVarInt(in));
+				}
+				else
+				{
+					int command = status & 0xF0;
+					in.skipBytes(command == 0xC0 || command == 0xD0 ? 1 : 2);
+					count++;
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static int readVarInt(DataInputStream in) throws Exception
+	{
+		int value = 0;
+		int b;
+		do
+		{
+			b = in.readUnsignedByte();
+			value = (value << 7) | (b & 0x7F);
+		}
+		while ((b & 0x80) != 0);
+		return value;
+	}
+
+}
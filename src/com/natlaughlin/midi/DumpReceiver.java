@@ -56,11 +56,6 @@ public class DumpReceiver
 	implements	Receiver
 {
 
-	public static long seByteCount = 0;
-	public static long smByteCount = 0;
-	public static long seCount = 0;
-	public static long smCount = 0;
-
 	private static final String[]		sm_astrKeyNames = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
 
 	private static final String[]		sm_astrKeySignatures = {"Cb", "Gb", "Db", "Ab", "Eb", "Bb", "F", "C", "G", "D", "A", "E", "B", "F#", "C#"};
@@ -107,6 +102,8 @@ public class DumpReceiver
 	private PrintStream		m_printStream;
 	private boolean			m_bDebug;
 	private boolean			m_bPrintTimeStampAsTicks;
+	private final StringBuilder	m_buffer = new StringBuilder(256);
+	private MidiLog			m_log;
 
 
 
@@ -126,148 +123,226 @@ public class DumpReceiver
 
 
 
+	/**	Hands short messages to the asynchronous log undecoded, so
+		they are formatted on its writer thread instead of the caller's.
+	*/
+	public DumpReceiver(MidiLog log,
+			    boolean bPrintTimeStampAsTicks)
+	{
+		this((PrintStream) null, bPrintTimeStampAsTicks);
+		m_log = log;
+	}
+
+
+
 	public void close()
 	{
 	}
 
 
 
-	public void send(MidiMessage message, long lTimeStamp)
+	/**	Formats into one reused buffer; short messages are decoded from
+		tables without building intermediate strings.
+	*/
+	public synchronized void send(MidiMessage message, long lTimeStamp)
 	{
-		String	strMessage = null;
 		if (message instanceof ShortMessage)
 		{
-			strMessage = decodeMessage((ShortMessage) message);
+			ShortMessage	sm = (ShortMessage) message;
+			sendShort(sm.getStatus(), sm.getData1(), sm.getData2(), lTimeStamp);
+			return;
 		}
-		else if (message instanceof SysexMessage)
+		m_buffer.setLength(0);
+		appendTimeStamp(m_buffer, lTimeStamp, m_bPrintTimeStampAsTicks);
+		if (message instanceof SysexMessage)
 		{
-			strMessage = decodeMessage((SysexMessage) message);
+			decodeMessage(m_buffer, (SysexMessage) message);
 		}
 		else if (message instanceof MetaMessage)
 		{
-			strMessage = decodeMessage((MetaMessage) message);
+			m_buffer.append(decodeMessage((MetaMessage) message));
 		}
 		else
 		{
-			strMessage = "unknown message type";
+			m_buffer.append("unknown message type");
 		}
-		String	strTimeStamp = null;
-		if (m_bPrintTimeStampAsTicks)
+		print(m_buffer);
+	}
+
+
+
+	/**	Same as send() for a short message given as its bytes, so callers
+		holding raw events need not build a ShortMessage.
+	*/
+	public synchronized void sendShort(int nStatus, int nData1, int nData2, long lTimeStamp)
+	{
+		if (m_log != null)
 		{
-			strTimeStamp = "tick " + lTimeStamp + ": ";
+			m_log.logShort(nStatus, nData1, nData2, lTimeStamp, m_bPrintTimeStampAsTicks);
+			return;
+		}
+		m_buffer.setLength(0);
+		appendTimeStamp(m_buffer, lTimeStamp, m_bPrintTimeStampAsTicks);
+		decodeMessage(m_buffer, nStatus, nData1, nData2);
+		print(m_buffer);
+	}
+
+
+
+	private void print(StringBuilder sb)
+	{
+		if (m_log != null)
+		{
+			m_log.log(sb.toString());
 		}
 		else
 		{
-			if (lTimeStamp == -1L)
-			{
-				strTimeStamp = "timestamp [unknown]: ";
-			}
-			else
-			{
-				strTimeStamp = "timestamp " + lTimeStamp + " us: ";
-			}
+			m_printStream.println(sb.toString());
+		}
+	}
+
+
+
+	public static void appendTimeStamp(StringBuilder sb, long lTimeStamp, boolean bTicks)
+	{
+		if (bTicks)
+		{
+			sb.append("tick ").append(lTimeStamp).append(": ");
+		}
+		else if (lTimeStamp == -1L)
+		{
+			sb.append("timestamp [unknown]: ");
+		}
+		else
+		{
+			sb.append("timestamp ").append(lTimeStamp).append(" us: ");
 		}
-		m_printStream.println(strTimeStamp + strMessage);
 	}
 
 
 
 	public String decodeMessage(ShortMessage message)
 	{
-		String	strMessage = null;
-		switch (message.getCommand())
+		StringBuilder	sb = new StringBuilder(64);
+		decodeMessage(sb, message.getStatus(), message.getData1(), message.getData2());
+		return sb.toString();
+	}
+
+
+
+	public static void decodeMessage(StringBuilder sb, int nStatus, int nData1, int nData2)
+	{
+		int	nCommand = nStatus & 0xF0;
+		int	nChannel = nStatus & 0x0F;
+
+		sb.append('[');
+		appendHex(sb, nStatus);
+		int	nLength = getShortMessageLength(nStatus);
+		if (nLength > 1)
+		{
+			sb.append(' ');
+			appendHex(sb, nData1);
+		}
+		if (nLength > 2)
+		{
+			sb.append(' ');
+			appendHex(sb, nData2);
+		}
+		sb.append("] ");
+
+		if (nCommand != 0xF0)
+		{
+			sb.append(CHANNEL_TEXT[nChannel]);
+		}
+		switch (nCommand)
 		{
 		case 0x80:
-			strMessage = "note Off " + getKeyName(message.getData1()) + " velocity: " + message.getData2();
+			sb.append("note Off ").append(getKeyName(nData1)).append(" velocity: ").append(nData2);
 			break;
 
 		case 0x90:
-			strMessage = "note On " + getKeyName(message.getData1()) + " velocity: " + message.getData2();
+			sb.append("note On ").append(getKeyName(nData1)).append(" velocity: ").append(nData2);
 			break;
 
 		case 0xa0:
-			strMessage = "polyphonic key pressure " + getKeyName(message.getData1()) + " pressure: " + message.getData2();
+			sb.append("polyphonic key pressure ").append(getKeyName(nData1)).append(" pressure: ").append(nData2);
 			break;
 
 		case 0xb0:
-			strMessage = "control change " + message.getData1() + " value: " + message.getData2();
+			sb.append("control change ").append(nData1).append(" value: ").append(nData2);
 			break;
 
 		case 0xc0:
-			strMessage = "program change " + message.getData1();
+			sb.append("program change ").append(nData1);
 			break;
 
 		case 0xd0:
-			strMessage = "key pressure " + getKeyName(message.getData1()) + " pressure: " + message.getData2();
+			sb.append("key pressure ").append(getKeyName(nData1)).append(" pressure: ").append(nData2);
 			break;
 
 		case 0xe0:
-			strMessage = "pitch wheel change " + get14bitValue(message.getData1(), message.getData2());
+			sb.append("pitch wheel change ").append(get14bitValue(nData1, nData2));
 			break;
 
 		case 0xF0:
-			strMessage = SYSTEM_MESSAGE_TEXT[message.getChannel()];
-			switch (message.getChannel())
+			sb.append(SYSTEM_MESSAGE_TEXT[nChannel]);
+			switch (nChannel)
 			{
 			case 0x1:
-				int	nQType = (message.getData1() & 0x70) >> 4;
-				int	nQData = message.getData1() & 0x0F;
+				int	nQType = (nData1 & 0x70) >> 4;
+				int	nQData = nData1 & 0x0F;
 				if (nQType == 7)
 				{
 					nQData = nQData & 0x1;
 				}
-				strMessage += QUARTER_FRAME_MESSAGE_TEXT[nQType] + nQData;
+				sb.append(QUARTER_FRAME_MESSAGE_TEXT[nQType]).append(nQData);
 				if (nQType == 7)
 				{
-					int	nFrameType = (message.getData1() & 0x06) >> 1;
-					strMessage += ", frame type: " + FRAME_TYPE_TEXT[nFrameType];
+					int	nFrameType = (nData1 & 0x06) >> 1;
+					sb.append(", frame type: ").append(FRAME_TYPE_TEXT[nFrameType]);
 				}
 				break;
 
 			case 0x2:
-				strMessage += get14bitValue(message.getData1(), message.getData2());
+				sb.append(get14bitValue(nData1, nData2));
 				break;
 
 			case 0x3:
-				strMessage += message.getData1();
+				sb.append(nData1);
 				break;
 			}
 			break;
 
 		default:
-			strMessage = "unknown message: status = " + message.getStatus() + ", byte1 = " + message.getData1() + ", byte2 = " + message.getData2();
+			sb.append("unknown message: status = ").append(nStatus).append(", byte1 = ").append(nData1).append(", byte2 = ").append(nData2);
 			break;
 		}
-		if (message.getCommand() != 0xF0)
-		{
-			int	nChannel = message.getChannel() + 1;
-			String	strChannel = "channel " + nChannel + ": ";
-			strMessage = strChannel + strMessage;
-		}
-		smCount++;
-		smByteCount+=message.getLength();
-		return "["+getHexString(message)+"] "+strMessage;
 	}
 
 
 
 	public String decodeMessage(SysexMessage message)
+	{
+		StringBuilder	sb = new StringBuilder(message.getLength() * 3 + 32);
+		decodeMessage(sb, message);
+		return sb.toString();
+	}
+
+
+
+	public static void decodeMessage(StringBuilder sb, SysexMessage message)
 	{
 		byte[]	abData = message.getData();
-		String	strMessage = null;
-		// System.out.println("sysex status: " + message.getStatus());
 		if (message.getStatus() == SysexMessage.SYSTEM_EXCLUSIVE)
 		{
-			strMessage = "Sysex message: F0" + getHexString(abData);
+			sb.append("Sysex message: F0");
+			appendHex(sb, abData, 0, abData.length);
 		}
 		else if (message.getStatus() == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE)
 		{
-			strMessage = "Continued Sysex message F7" + getHexString(abData);
-			seByteCount--; // do not count the F7
+			sb.append("Continued Sysex message F7");
+			appendHex(sb, abData, 0, abData.length);
 		}
-		seByteCount += abData.length + 1;
-		seCount++; // for the status byte
-		return strMessage;
 	}
 
 
@@ -381,16 +456,11 @@ public class DumpReceiver
 
 	public static String getKeyName(int nKeyNumber)
 	{
-		if (nKeyNumber > 127)
+		if (nKeyNumber < 0 || nKeyNumber > 127)
 		{
 			return "illegal value";
 		}
-		else
-		{
-			int	nNote = nKeyNumber % 12;
-			int	nOctave = nKeyNumber / 12;
-			return sm_astrKeyNames[nNote] + (nOctave - 1);
-		}
+		return KEY_NAMES[nKeyNumber];
 	}
 
 
@@ -422,35 +492,61 @@ public class DumpReceiver
 	    '8', '9', 'A', 'B', 
 	    'C', 'D', 'E', 'F'};
 
-	public static String getHexString(byte[] aByte)
+	/**	Two hex digits per byte value, HEX_TABLE[2 * b] and HEX_TABLE[2 * b + 1].
+	*/
+	private static final char[]		HEX_TABLE = new char[512];
+
+	private static final String[]		KEY_NAMES = new String[128];
+
+	private static final String[]		CHANNEL_TEXT = new String[16];
+
+	static
 	{
-		StringBuffer	sbuf = new StringBuffer(aByte.length * 3 + 2);
-		for (int i = 0; i < aByte.length; i++)
+		for (int i = 0; i < 256; i++)
+		{
+			HEX_TABLE[2 * i] = hexDigits[i >> 4];
+			HEX_TABLE[2 * i + 1] = hexDigits[i & 0x0F];
+		}
+		for (int i = 0; i < KEY_NAMES.length; i++)
+		{
+			KEY_NAMES[i] = sm_astrKeyNames[i % 12] + (i / 12 - 1);
+		}
+		for (int i = 0; i < CHANNEL_TEXT.length; i++)
 		{
-			sbuf.append(' ');
-			sbuf.append(hexDigits[(aByte[i] & 0xF0) >> 4]);
-			sbuf.append(hexDigits[aByte[i] & 0x0F]);
-			/*byte	bhigh = (byte) ((aByte[i] &  0xf0) >> 4);
-			sbuf.append((char) (bhigh > 9 ? bhigh + 'A' - 10: bhigh + '0'));
-			byte	blow = (byte) (aByte[i] & 0x0f);
-			sbuf.append((char) (blow > 9 ? blow + 'A' - 10: blow + '0'));*/
+			CHANNEL_TEXT[i] = "channel " + (i + 1) + ": ";
 		}
-		return new String(sbuf);
 	}
-	
-	private static String intToHex(int i) {
-		return ""+hexDigits[(i & 0xF0) >> 4]
-		         +hexDigits[i & 0x0F];
+
+	public static void appendHex(StringBuilder sb, int nByte)
+	{
+		int	i = (nByte & 0xFF) << 1;
+		sb.append(HEX_TABLE[i]).append(HEX_TABLE[i + 1]);
 	}
 
-	public static String getHexString(ShortMessage sm)
+	/**	Appends each byte as a space and two hex digits.
+	*/
+	public static void appendHex(StringBuilder sb, byte[] aByte, int nOffset, int nLength)
 	{
-		// bug in J2SDK 1.4.1
-		// return getHexString(sm.getMessage());
-		int status = sm.getStatus();
-		String res = intToHex(sm.getStatus());
-		// if one-byte message, return
-		switch (status) {
+		for (int i = nOffset; i < nOffset + nLength; i++)
+		{
+			sb.append(' ');
+			appendHex(sb, aByte[i]);
+		}
+	}
+
+	public static String getHexString(byte[] aByte)
+	{
+		StringBuilder	sb = new StringBuilder(aByte.length * 3);
+		appendHex(sb, aByte, 0, aByte.length);
+		return sb.toString();
+	}
+
+	/**	Number of bytes of a short message with this status byte.
+	*/
+	private static int getShortMessageLength(int nStatus)
+	{
+		switch (nStatus)
+		{
 			case 0xF6:			// Tune Request
 			case 0xF7:			// EOX
 	    		// System real-time messages
@@ -461,23 +557,39 @@ public class DumpReceiver
 			case 0xFC:			// Stop
 			case 0xFD:			// Undefined
 			case 0xFE:			// Active Sensing
-			case 0xFF: return res;
-		}
-		res += ' '+intToHex(sm.getData1());
-		// if 2-byte message, return
-		switch (status) {
+			case 0xFF: return 1;
 			case 0xF1:			// MTC Quarter Frame
 			case 0xF3:			// Song Select
-					return res;
+				return 2;
 		}
-		switch (sm.getCommand()) {
+		switch (nStatus & 0xF0)
+		{
 			case 0xC0:
 			case 0xD0:
-					return res;
+				return 2;
+		}
+		return 3;
+	}
+
+	public static String getHexString(ShortMessage sm)
+	{
+		// bug in J2SDK 1.4.1
+		// return getHexString(sm.getMessage());
+		StringBuilder	sb = new StringBuilder(8);
+		int	nStatus = sm.getStatus();
+		appendHex(sb, nStatus);
+		int	nLength = getShortMessageLength(nStatus);
+		if (nLength > 1)
+		{
+			sb.append(' ');
+			appendHex(sb, sm.getData1());
+		}
+		if (nLength > 2)
+		{
+			sb.append(' ');
+			appendHex(sb, sm.getData2());
 		}
-		// 3-byte messages left
-		res += ' '+intToHex(sm.getData2());
-		return res;
+		return sb.toString();
 	}
 }
 
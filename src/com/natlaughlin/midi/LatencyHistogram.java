@@ -0,0 +1,138 @@
+package com.natlaughlin.midi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory, log bucketed histogram of non-negative latencies.
+ * 
+ * Values below 16 get a bucket each; above that every power of two is split into
+ * 16 linear sub-buckets, so a reported percentile is within 1/16 (about 6%) of the
+ * recorded value. Recording is lock free and never allocates.
+ */
+public class LatencyHistogram
+{
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final String name;
+	private final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+	
+	public LatencyHistogram(String name, String unit)
+	{
+		this.name = name;
+		this.unit = unit;
+	}
+	
+	public void record(long value)
+	{
+		if(value < 0)
+		{
+			// clocks of sender and receiver disagree
+			value = 0;
+		}
+		counts.incrementAndGet(getBucket(value));
+		
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+		{
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Returns the counts recorded since the last call and starts over.
+	 */
+	public Snapshot snapshotAndReset()
+	{
+		long[] values = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			values[i] = counts.getAndSet(i, 0);
+			total += values[i];
+		}
+		return new Snapshot(values, total, max.getAndSet(0));
+	}
+	
+	private static int getBucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * Highest value that falls into the bucket.
+	 */
+	private static long getBucketLimit(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lower = (long) (SUB_BUCKETS + sub) << shift;
+		return lower + ((1L << shift) - 1);
+	}
+	
+	public class Snapshot
+	{
+		private final long[] values;
+		private final long count;
+		private final long maxValue;
+		
+		private Snapshot(long[] values, long count, long maxValue)
+		{
+			this.values = values;
+			this.count = count;
+			this.maxValue = maxValue;
+		}
+		
+		public long getCount()
+		{
+			return count;
+		}
+		
+		public long getMax()
+		{
+			return maxValue;
+		}
+		
+		public long getPercentile(double percentile)
+		{
+			if(count == 0)
+			{
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < values.length; i++)
+			{
+				seen += values[i];
+				if(seen >= rank)
+				{
+					return Math.min(getBucketLimit(i), maxValue);
+				}
+			}
+			return maxValue;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format("%s latency (%s): n=%d p50=%d p99=%d p99.9=%d max=%d", 
+					name, unit, count, getPercentile(50), getPercentile(99), getPercentile(99.9), maxValue);
+		}
+	}
+
+}
@@ -11,5 +11,24 @@ public class Midi
 	public final static String FILE_DIR = "midi";
 	public final static String FILE_PREFIX = "midi_";
 	public final static String FILE_DATEFORMAT = "yyyyMMddHHmmssSSS";
+	public final static int SESSION_BUFFER_EVENTS = 65536;
+	public final static int SESSION_BUFFER_BYTES = 64 * 1024;
+	public final static int WRITER_QUEUE_SIZE = 1024;
+	public final static int ROTATE_EVENTS = 0;
+	public final static int ROTATE_BYTES = 0;
+	public final static int ROTATE_SECONDS = 0;
+	public final static String ARCHIVE_FILE = "archive.idx";
+	public final static int ARCHIVE_STRIDE_BYTES = 4096;
+	public final static String ARCHIVE_DATEFORMAT = "yyyy-MM-dd HH:mm:ss";
+	public final static String ARCHIVE_OUT = "archive.mid";
+	public final static int SENDER_RING_SIZE = 4096;
+	public final static int SENDER_RING_SLOT_SIZE = 64;
+	public final static int JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public final static int JOURNAL_SYNC_MILLISECONDS = 1000;
+	public final static int LOG_QUEUE_SIZE = 8192;
+	public final static int COMPRESSION_KEYFRAME_EVENTS = 256;
+	public final static int RELAY_PORT = 20071;
+	public final static int RELAY_QUEUE_EVENTS = 4096;
+	public final static String RELAY_POLICY = "drop";
 
 }
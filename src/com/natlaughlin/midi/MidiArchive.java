@@ -0,0 +1,846 @@
+package com.natlaughlin.midi;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Time index of the MIDI files recorded in a directory, kept in [dir]/archive.idx, so a
+ * stretch of wall-clock time can be cut out of the recordings without reading whole files.
+ *
+ * Like the journal, every record is: int length (bytes after this field), byte type,
+ * long file id, payload. FILE carries the name of a recording and the wall-clock
+ * millisecond of its tick 0. POINTS lists (tick, byte offset) pairs, at least one every
+ * strideBytes of track, where reading can start: the event at the offset counts its
+ * delta time from that tick, and MidiFileWriter never uses running status. SUMMARY ends
+ * a file with its last tick, events, length, channels and key range. Records are only
+ * appended, by the MidiFileWriter of each file whenever it flushes, so the index is as
+ * current as the files on disk.
+ *
+ * extract() seeks each file overlapping a range to the last point before it and merges
+ * their events by time into a new file. Notes still held at the end are released;
+ * programs and controllers set before the range are not replayed.
+ */
+public class MidiArchive
+{
+	public final static int FILE = 1;
+	public final static int POINTS = 2;
+	public final static int SUMMARY = 3;
+
+	// of the files MidiSession writes: resolution 5000 at 120 BPM
+	public final static int RESOLUTION = 5000;
+	public final static int TICKS_PER_MILLISECOND = 10;
+
+	private final static int RECORD_HEADER_LENGTH = 9;
+	private final static int POINTS_PER_RECORD = 256;
+	private final static int SUMMARY_LENGTH = 8 + 8 + 8 + 2 + 1 + 1 + 8;
+	private final static int TRACK_START = 22;
+	private final static int READ_BUFFER_SIZE = 8192;
+
+	private final static AtomicLong nextFileId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private File directory;
+	private File indexFile;
+	private int strideBytes;
+	private FileChannel channel;
+
+	private long bytesRead;
+	private int filesRead;
+
+	private String from;
+	private String to;
+	private String out;
+	private SimpleDateFormat dateFormat;
+
+	public MidiArchive(File directory, int strideBytes)
+	{
+		this.directory = directory;
+		this.strideBytes = strideBytes;
+		indexFile = new File(directory, Midi.ARCHIVE_FILE);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new Options();
+		Option help = new Option("help", "Print this message");
+		options.addOption(help);
+
+		Option dir = OptionBuilder.withArgName(Midi.FILE_DIR).hasArg()
+				.withDescription("Directory of the MIDI files and their archive index")
+				.create("dir");
+		options.addOption(dir);
+
+		Option from = OptionBuilder.withArgName("time").hasArg()
+				.withDescription("Extract from this time on; without -from and -to, list the recordings")
+				.create("from");
+		options.addOption(from);
+
+		Option to = OptionBuilder.withArgName("time").hasArg()
+				.withDescription("Extract up to this time")
+				.create("to");
+		options.addOption(to);
+
+		Option out = OptionBuilder.withArgName(Midi.ARCHIVE_OUT).hasArg()
+				.withDescription("MIDI file to extract into")
+				.create("out");
+		options.addOption(out);
+
+		Option df = OptionBuilder.withArgName(Midi.ARCHIVE_DATEFORMAT).hasArg()
+				.withDescription("Date format of -from and -to")
+				.create("dateformat");
+		options.addOption(df);
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cli = parser.parse(options, args);
+
+		if(cli.hasOption("help"))
+		{
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MidiArchive", options );
+			System.exit(0);
+		}
+
+		String directory = Midi.FILE_DIR;
+		if(cli.hasOption("dir"))
+		{
+			directory = cli.getOptionValue("dir");
+		}
+
+		MidiArchive archive = new MidiArchive(new File(directory), Midi.ARCHIVE_STRIDE_BYTES);
+
+		archive.dateFormat = new SimpleDateFormat(Midi.ARCHIVE_DATEFORMAT);
+		if(cli.hasOption("dateformat"))
+		{
+			archive.dateFormat = new SimpleDateFormat(cli.getOptionValue("dateformat"));
+		}
+
+		archive.from = cli.getOptionValue("from");
+		archive.to = cli.getOptionValue("to");
+
+		archive.out = Midi.ARCHIVE_OUT;
+		if(cli.hasOption("out"))
+		{
+			archive.out = cli.getOptionValue("out");
+		}
+
+		archive.run();
+	}
+
+	private void run() throws Exception
+	{
+		if(from == null && to == null)
+		{
+			for (Recording r : list())
+			{
+				System.out.println(r.toString(dateFormat));
+			}
+			return;
+		}
+
+		long fromMillis = from == null ? 0 : dateFormat.parse(from).getTime();
+		long toMillis = to == null ? Long.MAX_VALUE / TICKS_PER_MILLISECOND : dateFormat.parse(to).getTime();
+		long events = extract(fromMillis, toMillis, new File(out));
+		System.out.println(String.format("Extracted %d events from %d recordings into %s, reading %d bytes",
+				events, filesRead, out, bytesRead));
+	}
+
+	/**
+	 * Indexes a MIDI file as its MidiFileWriter writes it, from the writer thread only.
+	 */
+	public FileIndex openFile(File midiFile, long startMillis)
+	{
+		return new FileIndex(midiFile.getName(), startMillis);
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if(channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	public class FileIndex
+	{
+		private final long id = nextFileId.getAndIncrement();
+		private final String name;
+		private final long startMillis;
+		private boolean announced;
+
+		// tick and offset pairs not yet in the index
+		private final long[] points = new long[POINTS_PER_RECORD * 2];
+		private int pointCount;
+		private long lastPoint = -1;
+
+		private long lastTick;
+		private long events;
+		private int channels;
+		private int lowKey = 128;
+		private int highKey = -1;
+		private long noteOns;
+
+		private FileIndex(String name, long startMillis)
+		{
+			this.name = name;
+			this.startMillis = startMillis;
+		}
+
+		/**
+		 * An event about to be written at offset, its delta time counted from baseTick.
+		 */
+		public void event(long offset, long baseTick, long tick, int status, int data1, int data2) throws IOException
+		{
+			if(lastPoint < 0 || offset - lastPoint >= strideBytes)
+			{
+				points[pointCount * 2] = baseTick;
+				points[pointCount * 2 + 1] = offset;
+				pointCount++;
+				lastPoint = offset;
+				if(pointCount == POINTS_PER_RECORD)
+				{
+					flush();
+				}
+			}
+
+			lastTick = Math.max(lastTick, tick);
+			events++;
+			if(status < 0xF0)
+			{
+				channels |= 1 << (status & 0x0F);
+				if((status & 0xF0) == 0x90 && data2 > 0)
+				{
+					noteOns++;
+					lowKey = Math.min(lowKey, data1);
+					highKey = Math.max(highKey, data1);
+				}
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			if(announced && pointCount == 0)
+			{
+				return;
+			}
+
+			byte[] b = name.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buf = ByteBuffer.allocate(2 * (4 + RECORD_HEADER_LENGTH) + 8 + 2 + b.length + 4 + pointCount * 16);
+			if(!announced)
+			{
+				putHeader(buf, FILE, id, 8 + 2 + b.length);
+				buf.putLong(startMillis);
+				buf.putShort((short) b.length);
+				buf.put(b);
+			}
+			if(pointCount > 0)
+			{
+				putHeader(buf, POINTS, id, 4 + pointCount * 16);
+				buf.putInt(pointCount);
+				for (int i = 0; i < pointCount * 2; i++)
+				{
+					buf.putLong(points[i]);
+				}
+			}
+			buf.flip();
+			append(buf);
+			announced = true;
+			pointCount = 0;
+		}
+
+		public void close(long length) throws IOException
+		{
+			flush();
+
+			ByteBuffer buf = ByteBuffer.allocate(4 + RECORD_HEADER_LENGTH + SUMMARY_LENGTH);
+			putHeader(buf, SUMMARY, id, SUMMARY_LENGTH);
+			buf.putLong(lastTick);
+			buf.putLong(events);
+			buf.putLong(length);
+			buf.putShort((short) channels);
+			buf.put((byte) lowKey);
+			buf.put((byte) highKey);
+			buf.putLong(noteOns);
+			buf.flip();
+			append(buf);
+		}
+	}
+
+	private static void putHeader(ByteBuffer buf, int type, long id, int payloadLength)
+	{
+		buf.putInt(RECORD_HEADER_LENGTH + payloadLength);
+		buf.put((byte) type);
+		buf.putLong(id);
+	}
+
+	private synchronized void append(ByteBuffer records) throws IOException
+	{
+		if(channel == null)
+		{
+			FileUtils.forceMkdir(directory);
+			repair();
+			channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		// one write per batch, so receivers sharing the directory do not interleave records
+		while (records.hasRemaining())
+		{
+			channel.write(records);
+		}
+	}
+
+	/**
+	 * Cuts off a record half written when a previous run stopped, which would hide every
+	 * record appended after it.
+	 */
+	private void repair() throws IOException
+	{
+		if(!indexFile.exists())
+		{
+			return;
+		}
+		FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			ByteBuffer buf = readFully(fc);
+			while (nextRecord(buf) != 0)
+			{
+				skipRecord(buf);
+			}
+			if(buf.position() < fc.size())
+			{
+				fc.truncate(buf.position());
+			}
+		}
+		finally
+		{
+			fc.close();
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel fc) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+		while (buf.hasRemaining() && fc.read(buf, buf.position()) > 0)
+		{
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Returns the type of the next complete record, positioned after its type, or 0 at
+	 * the end, positioned at the start of the incomplete record if any.
+	 */
+	private static int nextRecord(ByteBuffer buf)
+	{
+		if(buf.remaining() < 4 + RECORD_HEADER_LENGTH)
+		{
+			return 0;
+		}
+		int length = buf.getInt(buf.position());
+		if(length < RECORD_HEADER_LENGTH || length > buf.remaining() - 4)
+		{
+			return 0;
+		}
+		buf.position(buf.position() + 4);
+		return buf.get();
+	}
+
+	private static void skipRecord(ByteBuffer buf)
+	{
+		int start = buf.position() - 5;
+		buf.position(start + 4 + buf.getInt(start));
+	}
+
+	/**
+	 * One recording in the index. The summary fields stay 0 until its file is complete.
+	 */
+	public static class Recording
+	{
+		private long id;
+		private String name;
+		private long startMillis;
+		private boolean complete;
+		private long lastTick;
+		private long events;
+		private long length;
+		private int channels;
+		private int lowKey;
+		private int highKey;
+		private long noteOns;
+		private long[] points = new long[64];
+		private int pointCount;
+
+		public long getId()
+		{
+			return id;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getStartMillis()
+		{
+			return startMillis;
+		}
+
+		public boolean isComplete()
+		{
+			return complete;
+		}
+
+		public long getEndMillis()
+		{
+			return startMillis + lastTick / TICKS_PER_MILLISECOND;
+		}
+
+		public long getEvents()
+		{
+			return events;
+		}
+
+		public long getLength()
+		{
+			return length;
+		}
+
+		public long getNoteOns()
+		{
+			return noteOns;
+		}
+
+		public int getPointCount()
+		{
+			return pointCount;
+		}
+
+		public String toString(SimpleDateFormat dateFormat)
+		{
+			if(!complete)
+			{
+				return String.format("%s  %s  recording", name, dateFormat.format(new Date(startMillis)));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int c = 0; c < 16; c++)
+			{
+				if((channels & (1 << c)) != 0)
+				{
+					sb.append(sb.length() == 0 ? "" : ",").append(c + 1);
+				}
+			}
+			return String.format("%s  %s - %s  %d events  %d bytes  channels %s  %d notes %s", name,
+					dateFormat.format(new Date(startMillis)), dateFormat.format(new Date(getEndMillis())),
+					events, length, sb.length() == 0 ? "-" : sb, noteOns,
+					noteOns == 0 ? "" : String.format("keys %d-%d", lowKey, highKey));
+		}
+
+		private void addPoint(long tick, long offset)
+		{
+			if(pointCount * 2 == points.length)
+			{
+				long[] grown = new long[points.length * 2];
+				System.arraycopy(points, 0, grown, 0, points.length);
+				points = grown;
+			}
+			points[pointCount * 2] = tick;
+			points[pointCount * 2 + 1] = offset;
+			pointCount++;
+		}
+
+		/**
+		 * Index of the last point before this tick, -1 if there is none.
+		 */
+		private int findPoint(long tick)
+		{
+			int low = 0;
+			int high = pointCount - 1;
+			int found = -1;
+			while (low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				if(points[mid * 2] < tick)
+				{
+					found = mid;
+					low = mid + 1;
+				}
+				else
+				{
+					high = mid - 1;
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * The recordings in the index, by start time.
+	 */
+	public List<Recording> list() throws IOException
+	{
+		List<Recording> result = new ArrayList<Recording>();
+		if(!indexFile.exists())
+		{
+			return result;
+		}
+
+		ByteBuffer buf;
+		FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+		try
+		{
+			buf = readFully(fc);
+		}
+		finally
+		{
+			fc.close();
+		}
+
+		Map<Long, Recording> recordings = new LinkedHashMap<Long, Recording>();
+		while (true)
+		{
+			int type = nextRecord(buf);
+			if(type == 0)
+				break;
+			int next = buf.position() - 5 + 4 + buf.getInt(buf.position() - 5);
+			long id = buf.getLong();
+			Recording r = recordings.get(id);
+			if(type == FILE)
+			{
+				r = new Recording();
+				r.id = id;
+				r.startMillis = buf.getLong();
+				byte[] name = new byte[buf.getShort() & 0xFFFF];
+				buf.get(name);
+				r.name = new String(name, StandardCharsets.UTF_8);
+				recordings.put(id, r);
+			}
+			else if(type == POINTS && r != null)
+			{
+				int count = buf.getInt();
+				for (int i = 0; i < count; i++)
+				{
+					r.addPoint(buf.getLong(), buf.getLong());
+				}
+			}
+			else if(type == SUMMARY && r != null)
+			{
+				r.complete = true;
+				r.lastTick = buf.getLong();
+				r.events = buf.getLong();
+				r.length = buf.getLong();
+				r.channels = buf.getShort() & 0xFFFF;
+				r.lowKey = buf.get() & 0xFF;
+				r.highKey = buf.get() & 0xFF;
+				r.noteOns = buf.getLong();
+			}
+			buf.position(next);
+		}
+
+		result.addAll(recordings.values());
+		Collections.sort(result, new Comparator<Recording>()
+		{
+			@Override
+			public int compare(Recording a, Recording b)
+			{
+				return Long.compare(a.startMillis, b.startMillis);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Writes the events of every recording from fromMillis up to toMillis into one MIDI
+	 * file, in time order, and returns how many there were.
+	 */
+	public long extract(long fromMillis, long toMillis, File out) throws Exception
+	{
+		bytesRead = 0;
+		filesRead = 0;
+		long from = fromMillis * TICKS_PER_MILLISECOND;
+		long to = toMillis * TICKS_PER_MILLISECOND;
+
+		PriorityQueue<Reader> queue = new PriorityQueue<Reader>(16, new Comparator<Reader>()
+		{
+			@Override
+			public int compare(Reader a, Reader b)
+			{
+				int c = Long.compare(a.time, b.time);
+				return c != 0 ? c : Integer.compare(a.order, b.order);
+			}
+		});
+		List<Reader> readers = new ArrayList<Reader>();
+		MidiFileWriter writer = null;
+		long events = 0;
+		try
+		{
+			for (Recording r : list())
+			{
+				long start = r.startMillis * TICKS_PER_MILLISECOND;
+				if(start >= to || (r.complete && start + r.lastTick < from))
+					continue;
+
+				File file = new File(directory, r.name);
+				if(!file.exists())
+					continue;
+
+				Reader reader = new Reader(file, r, from, readers.size());
+				readers.add(reader);
+				filesRead++;
+				if(reader.next(to))
+				{
+					queue.add(reader);
+				}
+			}
+
+			FileUtils.forceMkdir(out.getAbsoluteFile().getParentFile());
+			final MidiFileWriter output = new MidiFileWriter(out, RESOLUTION);
+			writer = output;
+			// 120 BPM
+			byte[] tempo = { 0x07, (byte) 0xA1, 0x20 };
+			output.writeMeta(0, 0x51, tempo, 0, tempo.length);
+
+			MidiChannelState state = new MidiChannelState();
+			long tick = 0;
+			while (!queue.isEmpty())
+			{
+				Reader reader = queue.poll();
+				tick = reader.time - from;
+				reader.writeTo(output, tick);
+				if(reader.status < 0xF0)
+				{
+					state.update(reader.status, reader.data[0] & 0xFF, reader.length > 1 ? reader.data[1] & 0xFF : 0);
+				}
+				events++;
+				if(reader.next(to))
+				{
+					queue.add(reader);
+				}
+			}
+
+			final long endTick = tick;
+			state.release(new MidiChannelState.Handler()
+			{
+				@Override
+				public void recovered(int status, int data1, int data2) throws Exception
+				{
+					output.writeShortMessage(endTick, status, data1, data2, 3);
+				}
+			});
+		}
+		finally
+		{
+			for (Reader reader : readers)
+			{
+				bytesRead += reader.bytesRead;
+				reader.channel.close();
+			}
+			if(writer != null)
+			{
+				writer.close();
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Bytes of MIDI files read by the last extract, headers included.
+	 */
+	public long getBytesRead()
+	{
+		return bytesRead;
+	}
+
+	/**
+	 * Files the last extract read from.
+	 */
+	public int getFilesRead()
+	{
+		return filesRead;
+	}
+
+	/**
+	 * Reads the events of one file from the last index point before the range.
+	 */
+	private static class Reader
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final long start;
+		private final long from;
+		private final int order;
+		private long trackEnd;
+		// the file offset just after buf
+		private long position;
+		private long bytesRead;
+		private long tick;
+
+		// the current event
+		private long time;
+		private int status;
+		private int type;
+		private byte[] data = new byte[16];
+		private int length;
+
+		private Reader(File file, Recording r, long from, int order) throws IOException
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			start = r.startMillis * TICKS_PER_MILLISECOND;
+			this.from = from;
+			this.order = order;
+
+			ByteBuffer header = ByteBuffer.allocate(TRACK_START);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+			{
+			}
+			bytesRead = header.position();
+			if(header.hasRemaining() || header.getInt(0) != 0x4D546864)
+			{
+				channel.close();
+				throw new IOException("Not a MIDI file: " + file);
+			}
+			trackEnd = TRACK_START + (header.getInt(TRACK_START - 4) & 0xFFFFFFFFL);
+			position = TRACK_START;
+
+			// events before the point are no later than its tick, so all before the range
+			int point = r.findPoint(from - start);
+			if(point >= 0)
+			{
+				tick = r.points[point * 2];
+				position = r.points[point * 2 + 1];
+			}
+			buf.limit(0);
+		}
+
+		/**
+		 * Moves to the next event in the range, false once there is none.
+		 */
+		private boolean next(long to) throws IOException
+		{
+			while (position - buf.remaining() < trackEnd)
+			{
+				tick += readVarInt();
+				int b = readByte();
+				if(b == 0xFF)
+				{
+					type = readByte();
+					readData(readVarInt());
+					if(type == 0x2F)
+						return false;
+					// every file has the same tempo, the extract writes its own
+					if(type == 0x51)
+						continue;
+				}
+				else if(b == 0xF0 || b == 0xF7)
+				{
+					readData(readVarInt());
+				}
+				else if(b >= 0x80)
+				{
+					// program change and channel pressure have one data byte
+					readData((b & 0xE0) == 0xC0 ? 1 : 2);
+				}
+				else
+				{
+					throw new IOException("Running status at " + (position - buf.remaining() - 1));
+				}
+				status = b;
+				time = start + tick;
+				if(time >= to)
+					return false;
+				if(time >= from)
+					return true;
+			}
+			return false;
+		}
+
+		private void writeTo(MidiFileWriter writer, long tick) throws IOException
+		{
+			if(status == 0xFF)
+			{
+				writer.writeMeta(tick, type, data, 0, length);
+			}
+			else if(status == 0xF0 || status == 0xF7)
+			{
+				writer.writeSysex(tick, status, data, 0, length);
+			}
+			else
+			{
+				writer.writeShortMessage(tick, status, data[0] & 0xFF, length > 1 ? data[1] & 0xFF : 0, length + 1);
+			}
+		}
+
+		private void read() throws IOException
+		{
+			buf.compact();
+			int n = channel.read(buf, position);
+			buf.flip();
+			if(n <= 0)
+			{
+				throw new EOFException("MIDI track ends early");
+			}
+			position += n;
+			bytesRead += n;
+		}
+
+		private int readByte() throws IOException
+		{
+			if(!buf.hasRemaining())
+			{
+				read();
+			}
+			return buf.get() & 0xFF;
+		}
+
+		private int readVarInt() throws IOException
+		{
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+			{
+				int b = readByte();
+				value = (value << 7) | (b & 0x7F);
+				if((b & 0x80) == 0)
+					break;
+			}
+			return value;
+		}
+
+		private void readData(int count) throws IOException
+		{
+			if(count > data.length)
+			{
+				data = new byte[Math.max(count, data.length * 2)];
+			}
+			for (int i = 0; i < count; i++)
+			{
+				data[i] = (byte) readByte();
+			}
+			length = count;
+		}
+	}
+
+}
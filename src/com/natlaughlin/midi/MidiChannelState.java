@@ -0,0 +1,441 @@
+package com.natlaughlin.midi;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Active notes, controller values, program and pitch bend of the 16 MIDI channels, as
+ * left by the short messages seen so far.
+ *
+ * A multicast sender writes its state into every packet as a recovery journal, in the
+ * spirit of the RTP-MIDI recovery journal. When a receiver finds packets missing, it
+ * compares its own view of the sender against the journal and plays the note offs and
+ * controller changes it missed, without waiting for a retransmission.
+ *
+ * Journal: short mask of channels whose active notes are all listed (a channel in the
+ * mask without a NOTES entry has none), then entries of a byte (kind << 4 | channel):
+ * NOTES byte count, keys
+ * BEND byte lsb, byte msb
+ * PROGRAM byte program
+ * CONTROLS byte count, controller/value pairs
+ * Entries are written in that order until the size limit, so note offs are recovered first.
+ * A journal with no room for the mask is empty, and covers nothing.
+ *
+ * A MidiSession also keeps one to cut a long recording into files that each play on
+ * their own: release ends the old file, replay starts the next.
+ */
+public class MidiChannelState
+{
+	public interface Handler
+	{
+		void recovered(int status, int data1, int data2) throws Exception;
+	}
+
+	public final static int NOTES = 1;
+	public final static int BEND = 2;
+	public final static int PROGRAM = 3;
+	public final static int CONTROLS = 4;
+
+	private final static int CHANNELS = 16;
+	// 120 and up are channel mode messages, not controller values
+	private final static int CONTROLLERS = 120;
+	private final static int SUSTAIN = 64;
+	private final static int DEFAULT_VELOCITY = 64;
+
+	private final long[] notes = new long[CHANNELS * 2];
+	private final byte[] velocities = new byte[CHANNELS * 128];
+	private final long[] controlSet = new long[CHANNELS * 2];
+	private final byte[] controls = new byte[CHANNELS * CONTROLLERS];
+	private final int[] program = new int[CHANNELS];
+	private final int[] bend = new int[CHANNELS];
+	private int covered;
+
+	public MidiChannelState()
+	{
+		reset();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < notes.length; i++)
+		{
+			notes[i] = 0;
+			controlSet[i] = 0;
+		}
+		Arrays.fill(velocities, (byte) 0);
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			program[ch] = -1;
+			bend[ch] = -1;
+		}
+		covered = 0;
+	}
+
+	public void update(int status, int data1, int data2)
+	{
+		int ch = status & 0x0F;
+		switch (status & 0xF0)
+		{
+		case 0x90:
+			if(data2 > 0)
+			{
+				setBit(notes, ch, data1);
+				velocities[ch * 128 + (data1 & 0x7F)] = (byte) data2;
+			}
+			else
+			{
+				// velocity 0 is a note off
+				clearBit(notes, ch, data1);
+			}
+			break;
+		case 0x80:
+			clearBit(notes, ch, data1);
+			break;
+		case 0xB0:
+			if(data1 < CONTROLLERS)
+			{
+				setBit(controlSet, ch, data1);
+				controls[ch * CONTROLLERS + data1] = (byte) data2;
+			}
+			else if(data1 == 120 || data1 == 123)
+			{
+				// all sound off, all notes off
+				notes[ch * 2] = 0;
+				notes[ch * 2 + 1] = 0;
+			}
+			else if(data1 == 121)
+			{
+				// reset all controllers
+				controlSet[ch * 2] = 0;
+				controlSet[ch * 2 + 1] = 0;
+			}
+			break;
+		case 0xC0:
+			program[ch] = data1;
+			break;
+		case 0xE0:
+			bend[ch] = data1 | data2 << 7;
+			break;
+		default:
+			break;
+		}
+	}
+
+	public boolean isNoteOn(int channel, int key)
+	{
+		return getBit(notes, channel, key & 0x7F);
+	}
+
+	/**
+	 * Writes the journal, at most maxBytes long, and returns its length.
+	 */
+	public int writeJournal(ByteBuffer buf, int maxBytes)
+	{
+		int start = buf.position();
+		if(maxBytes < 2)
+		{
+			return 0;
+		}
+		int end = start + maxBytes;
+		int mask = 0;
+		buf.putShort((short) 0);
+
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			int count = Long.bitCount(notes[ch * 2]) + Long.bitCount(notes[ch * 2 + 1]);
+			if(count == 0)
+			{
+				mask |= 1 << ch;
+				continue;
+			}
+			if(buf.position() + 2 + count > end)
+				continue;
+
+			buf.put((byte) (NOTES << 4 | ch));
+			buf.put((byte) count);
+			putBits(buf, notes, ch);
+			mask |= 1 << ch;
+		}
+		buf.putShort(start, (short) mask);
+
+		for (int ch = 0; ch < CHANNELS && buf.position() + 3 <= end; ch++)
+		{
+			if(bend[ch] >= 0)
+			{
+				buf.put((byte) (BEND << 4 | ch));
+				buf.put((byte) (bend[ch] & 0x7F));
+				buf.put((byte) (bend[ch] >> 7));
+			}
+		}
+		for (int ch = 0; ch < CHANNELS && buf.position() + 2 <= end; ch++)
+		{
+			if(program[ch] >= 0)
+			{
+				buf.put((byte) (PROGRAM << 4 | ch));
+				buf.put((byte) program[ch]);
+			}
+		}
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			int count = Long.bitCount(controlSet[ch * 2]) + Long.bitCount(controlSet[ch * 2 + 1]);
+			int room = (end - buf.position() - 2) / 2;
+			if(count == 0 || room <= 0)
+				continue;
+
+			count = Math.min(count, room);
+			buf.put((byte) (CONTROLS << 4 | ch));
+			buf.put((byte) count);
+			for (int word = 0; word < 2 && count > 0; word++)
+			{
+				long bits = controlSet[ch * 2 + word];
+				while (bits != 0 && count > 0)
+				{
+					int controller = word * 64 + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					buf.put((byte) controller);
+					buf.put(controls[ch * CONTROLLERS + controller]);
+					count--;
+				}
+			}
+		}
+		return buf.position() - start;
+	}
+
+	/**
+	 * Replaces this state with the journal of the given length at the buffer position.
+	 * The position is left after the journal.
+	 */
+	public void readJournal(ByteBuffer buf, int length) throws IOException
+	{
+		reset();
+		int end = buf.position() + length;
+		if(length == 1 || length < 0 || end > buf.limit())
+		{
+			throw new MidiEventCodec.FormatException("Bad recovery journal length " + length);
+		}
+		if(length == 0)
+		{
+			return;
+		}
+		try
+		{
+			covered = buf.getShort() & 0xFFFF;
+			while (buf.position() < end)
+			{
+				int tag = buf.get() & 0xFF;
+				int ch = tag & 0x0F;
+				switch (tag >> 4)
+				{
+				case NOTES:
+					for (int count = buf.get() & 0xFF; count > 0; count--)
+					{
+						setBit(notes, ch, buf.get() & 0x7F);
+					}
+					break;
+				case BEND:
+					int lsb = buf.get() & 0x7F;
+					bend[ch] = lsb | (buf.get() & 0x7F) << 7;
+					break;
+				case PROGRAM:
+					program[ch] = buf.get() & 0x7F;
+					break;
+				case CONTROLS:
+					for (int count = buf.get() & 0xFF; count > 0; count--)
+					{
+						int controller = buf.get() & 0x7F;
+						int value = buf.get() & 0x7F;
+						if(controller < CONTROLLERS)
+						{
+							setBit(controlSet, ch, controller);
+							controls[ch * CONTROLLERS + controller] = (byte) value;
+						}
+					}
+					break;
+				default:
+					throw new MidiEventCodec.FormatException("Bad recovery journal entry " + tag);
+				}
+			}
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new MidiEventCodec.FormatException("Truncated recovery journal");
+		}
+		if(buf.position() != end)
+		{
+			throw new MidiEventCodec.FormatException("Recovery journal overruns its length");
+		}
+	}
+
+	/**
+	 * Brings this state in line with a journal read by readJournal, passing every note off
+	 * and controller, program or bend change that was missed to the handler. Notes the
+	 * journal holds but this state does not are only marked active: replaying a late note
+	 * on would double it when the retransmitted packet arrives. Returns the number of
+	 * messages recovered.
+	 */
+	public int recover(MidiChannelState journal, Handler handler) throws Exception
+	{
+		int count = 0;
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			if((journal.covered & 1 << ch) != 0)
+			{
+				for (int word = 0; word < 2; word++)
+				{
+					long released = notes[ch * 2 + word] & ~journal.notes[ch * 2 + word];
+					while (released != 0)
+					{
+						int key = word * 64 + Long.numberOfTrailingZeros(released);
+						released &= released - 1;
+						handler.recovered(0x80 | ch, key, 0);
+						count++;
+					}
+					notes[ch * 2 + word] = journal.notes[ch * 2 + word];
+				}
+			}
+			else
+			{
+				notes[ch * 2] |= journal.notes[ch * 2];
+				notes[ch * 2 + 1] |= journal.notes[ch * 2 + 1];
+			}
+
+			if(journal.bend[ch] >= 0 && journal.bend[ch] != bend[ch])
+			{
+				bend[ch] = journal.bend[ch];
+				handler.recovered(0xE0 | ch, bend[ch] & 0x7F, bend[ch] >> 7);
+				count++;
+			}
+			if(journal.program[ch] >= 0 && journal.program[ch] != program[ch])
+			{
+				program[ch] = journal.program[ch];
+				handler.recovered(0xC0 | ch, program[ch], 0);
+				count++;
+			}
+			for (int word = 0; word < 2; word++)
+			{
+				long bits = journal.controlSet[ch * 2 + word];
+				while (bits != 0)
+				{
+					int controller = word * 64 + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					int index = ch * CONTROLLERS + controller;
+					if(!getBit(controlSet, ch, controller) || controls[index] != journal.controls[index])
+					{
+						setBit(controlSet, ch, controller);
+						controls[index] = journal.controls[index];
+						handler.recovered(0xB0 | ch, controller, controls[index]);
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Passes note offs for the active notes, and a sustain pedal release where it is
+	 * down, to the handler. The state is left as it was. Returns the number of messages.
+	 */
+	public int release(Handler handler) throws Exception
+	{
+		int count = 0;
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			for (int word = 0; word < 2; word++)
+			{
+				long bits = notes[ch * 2 + word];
+				while (bits != 0)
+				{
+					handler.recovered(0x80 | ch, word * 64 + Long.numberOfTrailingZeros(bits), 0);
+					bits &= bits - 1;
+					count++;
+				}
+			}
+			if(getBit(controlSet, ch, SUSTAIN) && controls[ch * CONTROLLERS + SUSTAIN] >= 64)
+			{
+				handler.recovered(0xB0 | ch, SUSTAIN, 0);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Passes the program, pitch bend, controller values and then the active notes to the
+	 * handler, which brings a player starting from nothing to this state. Notes are
+	 * played with their last velocity, or 64 where it is not known, as after readJournal.
+	 * Returns the number of messages.
+	 */
+	public int replay(Handler handler) throws Exception
+	{
+		int count = 0;
+		for (int ch = 0; ch < CHANNELS; ch++)
+		{
+			if(program[ch] >= 0)
+			{
+				handler.recovered(0xC0 | ch, program[ch], 0);
+				count++;
+			}
+			if(bend[ch] >= 0)
+			{
+				handler.recovered(0xE0 | ch, bend[ch] & 0x7F, bend[ch] >> 7);
+				count++;
+			}
+			for (int word = 0; word < 2; word++)
+			{
+				long bits = controlSet[ch * 2 + word];
+				while (bits != 0)
+				{
+					int controller = word * 64 + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					handler.recovered(0xB0 | ch, controller, controls[ch * CONTROLLERS + controller]);
+					count++;
+				}
+			}
+			for (int word = 0; word < 2; word++)
+			{
+				long bits = notes[ch * 2 + word];
+				while (bits != 0)
+				{
+					int key = word * 64 + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					int velocity = velocities[ch * 128 + key];
+					handler.recovered(0x90 | ch, key, velocity > 0 ? velocity : DEFAULT_VELOCITY);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static void putBits(ByteBuffer buf, long[] bits, int ch)
+	{
+		for (int word = 0; word < 2; word++)
+		{
+			long b = bits[ch * 2 + word];
+			while (b != 0)
+			{
+				buf.put((byte) (word * 64 + Long.numberOfTrailingZeros(b)));
+				b &= b - 1;
+			}
+		}
+	}
+
+	private static void setBit(long[] bits, int ch, int index)
+	{
+		bits[ch * 2 + (index >> 6)] |= 1L << (index & 63);
+	}
+
+	private static void clearBit(long[] bits, int ch, int index)
+	{
+		bits[ch * 2 + (index >> 6)] &= ~(1L << (index & 63));
+	}
+
+	private static boolean getBit(long[] bits, int ch, int index)
+	{
+		return (bits[ch * 2 + (index >> 6)] & 1L << (index & 63)) != 0;
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.natlaughlin.midi;
+
+/**
+ * Monotonic wall clock in microseconds.
+ * 
+ * Anchored to System.currentTimeMillis() once and advanced with System.nanoTime(), so it
+ * never jumps backwards with clock adjustments but is still comparable between hosts
+ * whose clocks are synchronized.
+ */
+public class MidiClock
+{
+	private final static long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+	private final static long EPOCH_NANOS = System.nanoTime();
+	
+	public static long currentTimeMicros()
+	{
+		return EPOCH_MICROS + (System.nanoTime() - EPOCH_NANOS) / 1000;
+	}
+
+}
@@ -0,0 +1,302 @@
+package com.natlaughlin.midi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed event stream, used on TCP links when the stream header has
+ * MidiEventCodec.FLAG_COMPRESSED set.
+ *
+ * Short messages are written as MIDI bytes with running status (a first byte below
+ * 0x80 reuses the previous channel status), followed by the tick as a zigzag varint
+ * delta from the previous event and the send time as a zigzag varint of how much more
+ * it advanced than the tick. A note in a chord or a controller sweep takes 4 bytes.
+ *
+ * Two undefined MIDI status bytes are used as escapes:
+ * KEYFRAME (F4) varint tick, varint send time: absolute values, and clears running status
+ * FRAME (F5) a complete MidiEventCodec frame, used for sysex and meta events
+ *
+ * A keyframe is written before the first event and then every keyframeInterval events,
+ * so decoding errors cannot accumulate. Encoder and decoder each keep their own instance.
+ */
+public class MidiCompressedCodec
+{
+	public final static int KEYFRAME = 0xF4;
+	public final static int FRAME = 0xF5;
+
+	private final int keyframeInterval;
+
+	private long tick;
+	private long sendTime;
+	private int runningStatus;
+	private int sinceKeyframe = -1;
+
+	public MidiCompressedCodec(int keyframeInterval)
+	{
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	public void writeEvent(DataOutput out, int messageType, int metaType, long eventTick, long eventSendTime, byte[] b, int offset, int length) throws IOException
+	{
+		if(sinceKeyframe < 0 || sinceKeyframe >= keyframeInterval)
+		{
+			out.writeByte(KEYFRAME);
+			writeVarLong(out, zigzag(eventTick));
+			writeVarLong(out, zigzag(eventSendTime));
+			tick = eventTick;
+			sendTime = eventSendTime;
+			runningStatus = 0;
+			sinceKeyframe = 0;
+		}
+		sinceKeyframe++;
+
+		int status = length > 0 ? b[offset] & 0xFF : 0;
+		if(messageType != MidiEventSerializable.SHORT || length != getShortMessageLength(status) 
+				|| status == KEYFRAME || status == FRAME)
+		{
+			out.writeByte(FRAME);
+			MidiEventCodec.writeFrame(out, messageType, metaType, eventTick, eventSendTime, b, offset, length);
+			tick = eventTick;
+			sendTime = eventSendTime;
+			return;
+		}
+
+		if(status != runningStatus)
+		{
+			out.writeByte(status);
+			runningStatus = getRunningStatus(status, runningStatus);
+		}
+		for (int i = 1; i < length; i++)
+		{
+			out.writeByte(b[offset + i]);
+		}
+		long tickDelta = eventTick - tick;
+		writeVarLong(out, zigzag(tickDelta));
+		writeVarLong(out, zigzag(eventSendTime - sendTime - tickDelta));
+		tick = eventTick;
+		sendTime = eventSendTime;
+	}
+
+	public MidiEventSerializable readEvent(DataInput in) throws IOException
+	{
+		while (true)
+		{
+			int first = in.readUnsignedByte();
+			if(first == KEYFRAME)
+			{
+				tick = unzigzag(readVarLong(in));
+				sendTime = unzigzag(readVarLong(in));
+				runningStatus = 0;
+				continue;
+			}
+			if(first == FRAME)
+			{
+				MidiEventSerializable me = MidiEventCodec.readFrame(in);
+				tick = me.getTick();
+				sendTime = me.getSendTime();
+				return me;
+			}
+
+			int status = first;
+			int index = 1;
+			byte[] b;
+			if(first < 0x80)
+			{
+				status = checkRunningStatus();
+				b = new byte[getShortMessageLength(status)];
+				b[index++] = (byte) first;
+			}
+			else
+			{
+				b = new byte[getShortMessageLength(status)];
+				runningStatus = getRunningStatus(status, runningStatus);
+			}
+			b[0] = (byte) status;
+			for (; index < b.length; index++)
+			{
+				b[index] = (byte) in.readUnsignedByte();
+			}
+			long tickDelta = unzigzag(readVarLong(in));
+			tick += tickDelta;
+			sendTime += tickDelta + unzigzag(readVarLong(in));
+			return new MidiEventSerializable(MidiEventSerializable.SHORT, 0, tick, sendTime, b);
+		}
+	}
+
+	/**
+	 * Returns the next event, or null if the buffer does not hold all of it yet; the
+	 * buffer position is then left at the start of the incomplete event.
+	 */
+	public MidiEventSerializable readEvent(ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			int start = buf.position();
+			try
+			{
+				int first = buf.get(start) & 0xFF;
+				if(first == KEYFRAME)
+				{
+					buf.get();
+					long t = unzigzag(readVarLong(buf));
+					long s = unzigzag(readVarLong(buf));
+					tick = t;
+					sendTime = s;
+					runningStatus = 0;
+					continue;
+				}
+				if(first == FRAME)
+				{
+					buf.get();
+					if(!MidiEventCodec.hasFrame(buf))
+					{
+						buf.position(start);
+						return null;
+					}
+					MidiEventSerializable me = MidiEventCodec.readFrame(buf);
+					tick = me.getTick();
+					sendTime = me.getSendTime();
+					return me;
+				}
+
+				buf.get();
+				int status = first;
+				int running = runningStatus;
+				int index = 1;
+				byte[] b;
+				if(first < 0x80)
+				{
+					status = checkRunningStatus();
+					b = new byte[getShortMessageLength(status)];
+					b[index++] = (byte) first;
+				}
+				else
+				{
+					b = new byte[getShortMessageLength(status)];
+					running = getRunningStatus(status, running);
+				}
+				b[0] = (byte) status;
+				for (; index < b.length; index++)
+				{
+					b[index] = buf.get();
+				}
+				long tickDelta = unzigzag(readVarLong(buf));
+				long sendDelta = tickDelta + unzigzag(readVarLong(buf));
+
+				runningStatus = running;
+				tick += tickDelta;
+				sendTime += sendDelta;
+				return new MidiEventSerializable(MidiEventSerializable.SHORT, 0, tick, sendTime, b);
+			}
+			catch(BufferUnderflowException e)
+			{
+				buf.position(start);
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private int checkRunningStatus() throws IOException
+	{
+		if(runningStatus == 0)
+		{
+			throw new MidiEventCodec.FormatException("Data byte without running status");
+		}
+		return runningStatus;
+	}
+
+	/**
+	 * Channel messages set running status, system common messages clear it and
+	 * real time messages leave it alone, as on a MIDI cable.
+	 */
+	private static int getRunningStatus(int status, int running)
+	{
+		if(status < 0xF0)
+		{
+			return status;
+		}
+		return status < 0xF8 ? 0 : running;
+	}
+
+	private static int getShortMessageLength(int status)
+	{
+		if(status < 0x80)
+		{
+			return -1;
+		}
+		switch (status & 0xF0)
+		{
+		case 0xC0:
+		case 0xD0:
+			return 2;
+		case 0xF0:
+			switch (status)
+			{
+			case 0xF1:
+			case 0xF3:
+				return 2;
+			case 0xF2:
+				return 3;
+			default:
+				return 1;
+			}
+		default:
+			return 3;
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new MidiEventCodec.FormatException("Varint too long");
+	}
+
+	private static long readVarLong(ByteBuffer buf) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = buf.get() & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new MidiEventCodec.FormatException("Varint too long");
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.natlaughlin.midi;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Recording buffer of events packed into primitive arrays.
+ * 
+ * Each event is a long tick plus an int word. Short messages pack
+ * status | data1 << 8 | data2 << 16 | length << 24 into the word. Sysex and meta
+ * events store SYSEX or META << 24 | meta type and keep their payload in a byte arena.
+ * Events become SMF bytes only when writeTo() hands them, sorted by tick, to a MidiFileWriter.
+ */
+public class MidiEventBuffer
+{
+	private final static int SYSEX = 0x10;
+	private final static int META = 0x20;
+	
+	private long[] ticks;
+	private int[] words;
+	private int[] offsets;
+	private byte[] arena;
+	private int size;
+	private int arenaSize;
+	private boolean sorted = true;
+	private long lastTick;
+	private int[] order = new int[0];
+	
+	public MidiEventBuffer(int capacity, int arenaCapacity)
+	{
+		ticks = new long[capacity];
+		words = new int[capacity];
+		offsets = new int[capacity];
+		arena = new byte[arenaCapacity];
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	public int getArenaSize()
+	{
+		return arenaSize;
+	}
+	
+	/**
+	 * Latest tick in the buffer, 0 when it is empty.
+	 */
+	public long getLastTick()
+	{
+		return lastTick;
+	}
+	
+	public void addShort(long tick, int status, int data1, int data2, int length)
+	{
+		int i = next(tick);
+		words[i] = (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16 | length << 24;
+	}
+	
+	public void addSysex(long tick, byte[] data, int offset, int length)
+	{
+		int i = next(tick);
+		words[i] = SYSEX << 24;
+		offsets[i] = store(data, offset, length);
+	}
+	
+	public void addMeta(long tick, int metaType, byte[] data, int offset, int length)
+	{
+		int i = next(tick);
+		words[i] = META << 24 | (metaType & 0xFF);
+		offsets[i] = store(data, offset, length);
+	}
+	
+	/**
+	 * Writes every event in tick order; events with equal ticks keep their arrival order.
+	 */
+	public void writeTo(MidiFileWriter writer) throws IOException
+	{
+		if(!sorted)
+		{
+			sort();
+		}
+		
+		for (int n = 0; n < size; n++)
+		{
+			int i = sorted ? n : order[n];
+			int word = words[i];
+			int kind = word >>> 24;
+			if(kind == SYSEX)
+			{
+				int offset = offsets[i];
+				writer.writeSysex(ticks[i], 0xF0, arena, offset + 4, readLength(offset));
+			}
+			else if(kind == META)
+			{
+				int offset = offsets[i];
+				writer.writeMeta(ticks[i], word & 0xFF, arena, offset + 4, readLength(offset));
+			}
+			else
+			{
+				writer.writeShortMessage(ticks[i], word & 0xFF, (word >> 8) & 0xFF, (word >> 16) & 0xFF, kind);
+			}
+		}
+	}
+	
+	/**
+	 * Moves the events later than tick to the other buffer, in arrival order, and keeps
+	 * the rest. Returns how many were moved.
+	 */
+	public int holdBack(long tick, MidiEventBuffer into)
+	{
+		int kept = 0;
+		boolean keptSorted = true;
+		long keptLast = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int word = words[i];
+			int kind = word >>> 24;
+			if(ticks[i] > tick)
+			{
+				if(kind == SYSEX)
+				{
+					into.addSysex(ticks[i], arena, offsets[i] + 4, readLength(offsets[i]));
+				}
+				else if(kind == META)
+				{
+					into.addMeta(ticks[i], word & 0xFF, arena, offsets[i] + 4, readLength(offsets[i]));
+				}
+				else
+				{
+					into.addShort(ticks[i], word & 0xFF, (word >> 8) & 0xFF, (word >> 16) & 0xFF, kind);
+				}
+				continue;
+			}
+			if(kept > 0 && ticks[i] < keptLast)
+			{
+				keptSorted = false;
+			}
+			keptLast = Math.max(keptLast, ticks[i]);
+			// payloads stay where they are in the arena
+			ticks[kept] = ticks[i];
+			words[kept] = word;
+			offsets[kept] = offsets[i];
+			kept++;
+		}
+		int moved = size - kept;
+		size = kept;
+		sorted = keptSorted;
+		lastTick = keptLast;
+		return moved;
+	}
+	
+	/**
+	 * Empties the buffer but keeps its arrays for the next events.
+	 */
+	public void clear()
+	{
+		size = 0;
+		arenaSize = 0;
+		sorted = true;
+		lastTick = 0;
+	}
+	
+	private int next(long tick)
+	{
+		if(size == ticks.length)
+		{
+			int capacity = size * 2;
+			ticks = Arrays.copyOf(ticks, capacity);
+			words = Arrays.copyOf(words, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+		if(size > 0 && tick < ticks[size - 1])
+		{
+			sorted = false;
+		}
+		lastTick = size > 0 ? Math.max(lastTick, tick) : tick;
+		ticks[size] = tick;
+		return size++;
+	}
+	
+	private int store(byte[] data, int offset, int length)
+	{
+		int needed = arenaSize + 4 + length;
+		if(needed > arena.length)
+		{
+			arena = Arrays.copyOf(arena, Math.max(needed, arena.length * 2));
+		}
+		int start = arenaSize;
+		arena[start] = (byte) (length >>> 24);
+		arena[start + 1] = (byte) (length >>> 16);
+		arena[start + 2] = (byte) (length >>> 8);
+		arena[start + 3] = (byte) length;
+		System.arraycopy(data, offset, arena, start + 4, length);
+		arenaSize = needed;
+		return start;
+	}
+	
+	private int readLength(int offset)
+	{
+		return (arena[offset] & 0xFF) << 24 | (arena[offset + 1] & 0xFF) << 16 
+				| (arena[offset + 2] & 0xFF) << 8 | (arena[offset + 3] & 0xFF);
+	}
+	
+	/**
+	 * Stable insertion sort of event indices, cheap for the nearly ordered ticks a device produces.
+	 */
+	private void sort()
+	{
+		if(order.length < size)
+		{
+			order = new int[ticks.length];
+		}
+		for (int n = 0; n < size; n++)
+		{
+			int i = n;
+			long tick = ticks[i];
+			int j = n - 1;
+			while (j >= 0 && ticks[order[j]] > tick)
+			{
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = i;
+		}
+	}
+
+}
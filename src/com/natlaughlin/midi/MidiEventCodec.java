@@ -0,0 +1,284 @@
+package com.natlaughlin.midi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format for MidiEventSerializable.
+ * 
+ * A stream (or datagram) starts with a header: magic "MIDI", version, flags.
+ * Every event follows as a length-prefixed frame:
+ * 
+ * int length (bytes after this field), byte type, byte meta type, long tick, long send time, payload
+ * 
+ * The send time is when the sender's device callback saw the event, in MidiClock
+ * microseconds, or 0 if unknown.
+ */
+public class MidiEventCodec
+{
+
+	public final static int MAGIC = 0x4D494449;
+	public final static int VERSION = 2;
+	public final static int HEADER_LENGTH = 6;
+	public final static int FRAME_HEADER_LENGTH = 22;
+	public final static int MAX_FRAME_LENGTH = 1 << 24;
+	
+	/**
+	 * Header flag: events follow in MidiCompressedCodec format instead of frames.
+	 */
+	public final static int FLAG_COMPRESSED = 0x01;
+	
+	/**
+	 * Header flag: an int sender id and an int packet sequence number follow the header.
+	 */
+	public final static int FLAG_SEQUENCED = 0x02;
+	
+	/**
+	 * Header flag: a receiver asks for packets again, see MidiSequenceTracker.
+	 */
+	public final static int FLAG_NACK = 0x04;
+	
+	/**
+	 * Header flag: the packet is a retransmission answering a NACK.
+	 */
+	public final static int FLAG_REPAIR = 0x08;
+	
+	/**
+	 * Header flag: a short length and a MidiChannelState recovery journal follow the sequence header.
+	 */
+	public final static int FLAG_JOURNAL = 0x10;
+	
+	/**
+	 * Header flag: instead of frames, the packet holds one piece of a frame too large for a
+	 * packet, see MidiReassemblyBuffer.
+	 */
+	public final static int FLAG_FRAGMENT = 0x20;
+	
+	/**
+	 * Header flag: every frame is preceded by the int id of the sender it came from, as
+	 * MidiRelay sends the events of all its senders in one stream.
+	 */
+	public final static int FLAG_SENDER = 0x40;
+	
+	public final static int SEQUENCE_HEADER_LENGTH = 8;
+	public final static int SENDER_ID_LENGTH = 4;
+
+	/**
+	 * The bytes read are not a valid header or frame, as opposed to an I/O failure.
+	 */
+	public static class FormatException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public FormatException(String message)
+		{
+			super(message);
+		}
+	}
+	
+	public static void writeHeader(DataOutput out, int flags) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(flags);
+	}
+
+	public static void writeHeader(ByteBuffer buf, int flags)
+	{
+		buf.putInt(MAGIC);
+		buf.put((byte) VERSION);
+		buf.put((byte) flags);
+	}
+
+	public static int readHeader(DataInput in) throws IOException
+	{
+		int magic = in.readInt();
+		int version = in.readUnsignedByte();
+		int flags = in.readUnsignedByte();
+		checkHeader(magic, version);
+		return flags;
+	}
+
+	public static int readHeader(ByteBuffer buf) throws IOException
+	{
+		if(buf.remaining() < HEADER_LENGTH)
+		{
+			throw new FormatException("Truncated header");
+		}
+		int magic = buf.getInt();
+		int version = buf.get() & 0xFF;
+		int flags = buf.get() & 0xFF;
+		checkHeader(magic, version);
+		return flags;
+	}
+
+	private static void checkHeader(int magic, int version) throws IOException
+	{
+		if(magic != MAGIC)
+		{
+			throw new FormatException(String.format("Unsupported stream header %08X", magic));
+		}
+		if(version != VERSION)
+		{
+			throw new FormatException(String.format("Unsupported stream version %d, expected %d", version, VERSION));
+		}
+	}
+
+	public static int getFrameLength(MidiEventSerializable me)
+	{
+		byte[] b = me.getMessage();
+		return FRAME_HEADER_LENGTH + (b == null ? 0 : b.length);
+	}
+
+	public static void writeFrame(DataOutput out, MidiEventSerializable me) throws IOException
+	{
+		byte[] b = me.getMessage();
+		writeFrame(out, me.getMessageType(), me.getMetaType(), me.getTick(), me.getSendTime(), b, 0, b == null ? 0 : b.length);
+	}
+
+	public static void writeFrame(DataOutput out, int messageType, int metaType, long tick, long sendTime, byte[] b, int offset, int length) throws IOException
+	{
+		out.writeInt(FRAME_HEADER_LENGTH - 4 + length);
+		out.writeByte(messageType);
+		out.writeByte(metaType);
+		out.writeLong(tick);
+		out.writeLong(sendTime);
+		if(length > 0)
+		{
+			out.write(b, offset, length);
+		}
+	}
+
+	public static void writeFrame(ByteBuffer buf, MidiEventSerializable me)
+	{
+		byte[] b = me.getMessage();
+		writeFrame(buf, me.getMessageType(), me.getMetaType(), me.getTick(), me.getSendTime(), b, 0, b == null ? 0 : b.length);
+	}
+
+	public static void writeFrame(ByteBuffer buf, int messageType, int metaType, long tick, long sendTime, byte[] b, int offset, int length)
+	{
+		buf.putInt(FRAME_HEADER_LENGTH - 4 + length);
+		buf.put((byte) messageType);
+		buf.put((byte) metaType);
+		buf.putLong(tick);
+		buf.putLong(sendTime);
+		if(length > 0)
+		{
+			buf.put(b, offset, length);
+		}
+	}
+
+	/**
+	 * Writes a short message frame straight from its status and data bytes.
+	 */
+	public static void writeShortFrame(ByteBuffer buf, long tick, long sendTime, int status, int data1, int data2, int length)
+	{
+		buf.putInt(FRAME_HEADER_LENGTH - 4 + length);
+		buf.put((byte) MidiEventSerializable.SHORT);
+		buf.put((byte) 0);
+		buf.putLong(tick);
+		buf.putLong(sendTime);
+		buf.put((byte) status);
+		if(length > 1)
+		{
+			buf.put((byte) data1);
+		}
+		if(length > 2)
+		{
+			buf.put((byte) data2);
+		}
+	}
+
+	public static MidiEventSerializable readFrame(DataInput in) throws IOException
+	{
+		int length = checkFrameLength(in.readInt());
+		int messageType = in.readUnsignedByte();
+		int metaType = in.readUnsignedByte();
+		long tick = in.readLong();
+		long sendTime = in.readLong();
+		byte[] b = new byte[length - (FRAME_HEADER_LENGTH - 4)];
+		in.readFully(b);
+		return new MidiEventSerializable(messageType, metaType, tick, sendTime, b);
+	}
+
+	public static MidiEventSerializable readFrame(ByteBuffer buf) throws IOException
+	{
+		try
+		{
+			int length = checkFrameLength(buf.getInt());
+			int messageType = buf.get() & 0xFF;
+			int metaType = buf.get() & 0xFF;
+			long tick = buf.getLong();
+			long sendTime = buf.getLong();
+			byte[] b = new byte[length - (FRAME_HEADER_LENGTH - 4)];
+			buf.get(b);
+			return new MidiEventSerializable(messageType, metaType, tick, sendTime, b);
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new FormatException("Truncated frame");
+		}
+	}
+
+	/**
+	 * Decodes the frame at the buffer position without allocating. The payload is passed
+	 * to the handler straight from the buffer's array, or for a direct buffer copied into
+	 * scratch, which must be large enough; it is only valid during the call.
+	 */
+	public static void readFrame(ByteBuffer buf, byte[] scratch, MidiEventRing.Handler handler) throws Exception
+	{
+		try
+		{
+			int length = checkFrameLength(buf.getInt()) - (FRAME_HEADER_LENGTH - 4);
+			int messageType = buf.get() & 0xFF;
+			int metaType = buf.get() & 0xFF;
+			long tick = buf.getLong();
+			long sendTime = buf.getLong();
+			if(length > buf.remaining())
+			{
+				throw new FormatException("Truncated frame");
+			}
+			if(buf.hasArray())
+			{
+				int offset = buf.arrayOffset() + buf.position();
+				buf.position(buf.position() + length);
+				handler.onEvent(messageType, metaType, tick, sendTime, buf.array(), offset, length);
+			}
+			else
+			{
+				buf.get(scratch, 0, length);
+				handler.onEvent(messageType, metaType, tick, sendTime, scratch, 0, length);
+			}
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new FormatException("Truncated frame");
+		}
+	}
+
+	/**
+	 * True if buf holds at least one complete frame at its position.
+	 */
+	public static boolean hasFrame(ByteBuffer buf) throws IOException
+	{
+		if(buf.remaining() < 4)
+		{
+			return false;
+		}
+		int length = checkFrameLength(buf.getInt(buf.position()));
+		return buf.remaining() >= 4 + length;
+	}
+
+	private static int checkFrameLength(int length) throws IOException
+	{
+		if(length < FRAME_HEADER_LENGTH - 4 || length > MAX_FRAME_LENGTH)
+		{
+			throw new FormatException("Invalid frame length " + length);
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,193 @@
+package com.natlaughlin.midi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring of preallocated MIDI event slots.
+ * 
+ * The producer (a device callback) only copies bytes and a timestamp into the next
+ * slot; when the ring is full the event is dropped and counted as an overflow.
+ * Payloads larger than a slot are copied into their own array.
+ */
+public class MidiEventRing
+{
+	public interface Handler
+	{
+		void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] data, int offset, int length) throws Exception;
+	}
+	
+	private final int capacity;
+	private final int mask;
+	private final int slotSize;
+	
+	private final byte[] data;
+	private final byte[][] large;
+	private final int[] length;
+	private final int[] messageType;
+	private final int[] metaType;
+	private final long[] tick;
+	private final long[] sendTime;
+	
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong overflowCount = new AtomicLong();
+	
+	private volatile Thread consumer;
+	
+	public MidiEventRing(int capacity, int slotSize)
+	{
+		if(Integer.bitCount(capacity) != 1)
+		{
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slotSize = Math.max(slotSize, 3);
+		
+		data = new byte[capacity * this.slotSize];
+		large = new byte[capacity][];
+		length = new int[capacity];
+		messageType = new int[capacity];
+		metaType = new int[capacity];
+		tick = new long[capacity];
+		sendTime = new long[capacity];
+	}
+	
+	public long getOverflowCount()
+	{
+		return overflowCount.get();
+	}
+	
+	public int size()
+	{
+		return (int) (tail.get() - head.get());
+	}
+	
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * Called by the producer only. Returns false if the ring was full.
+	 */
+	public boolean offer(int type, int meta, long timeStamp, long sent, byte[] bytes, int offset, int count)
+	{
+		long t = tail.get();
+		if(t - head.get() >= capacity)
+		{
+			overflowCount.incrementAndGet();
+			return false;
+		}
+		
+		int slot = (int) (t & mask);
+		if(count <= slotSize)
+		{
+			System.arraycopy(bytes, offset, data, slot * slotSize, count);
+			large[slot] = null;
+		}
+		else
+		{
+			byte[] copy = new byte[count];
+			System.arraycopy(bytes, offset, copy, 0, count);
+			large[slot] = copy;
+		}
+		length[slot] = count;
+		messageType[slot] = type;
+		metaType[slot] = meta;
+		tick[slot] = timeStamp;
+		sendTime[slot] = sent;
+		
+		// a full volatile store: with lazySet the read of consumer below could pass it,
+		// missing a consumer that saw the ring empty and parked
+		tail.set(t + 1);
+		
+		Thread waiting = consumer;
+		if(waiting != null)
+		{
+			LockSupport.unpark(waiting);
+		}
+		return true;
+	}
+	
+	/**
+	 * Called by the producer only. Copies a short message without going through a byte array.
+	 */
+	public boolean offerShort(long timeStamp, long sent, int status, int data1, int data2, int count)
+	{
+		long t = tail.get();
+		if(t - head.get() >= capacity)
+		{
+			overflowCount.incrementAndGet();
+			return false;
+		}
+		
+		int slot = (int) (t & mask);
+		int offset = slot * slotSize;
+		data[offset] = (byte) status;
+		data[offset + 1] = (byte) data1;
+		data[offset + 2] = (byte) data2;
+		large[slot] = null;
+		length[slot] = count;
+		messageType[slot] = MidiEventSerializable.SHORT;
+		metaType[slot] = 0;
+		tick[slot] = timeStamp;
+		sendTime[slot] = sent;
+		
+		// a full volatile store: with lazySet the read of consumer below could pass it,
+		// missing a consumer that saw the ring empty and parked
+		tail.set(t + 1);
+		
+		Thread waiting = consumer;
+		if(waiting != null)
+		{
+			LockSupport.unpark(waiting);
+		}
+		return true;
+	}
+	
+	/**
+	 * Called by the consumer only. Hands every available event to the handler and returns how many there were.
+	 */
+	public int drain(Handler handler) throws Exception
+	{
+		long h = head.get();
+		long t = tail.get();
+		int count = 0;
+		while (h < t)
+		{
+			int slot = (int) (h & mask);
+			byte[] payload = large[slot];
+			if(payload == null)
+			{
+				handler.onEvent(messageType[slot], metaType[slot], tick[slot], sendTime[slot], data, slot * slotSize, length[slot]);
+			}
+			else
+			{
+				handler.onEvent(messageType[slot], metaType[slot], tick[slot], sendTime[slot], payload, 0, length[slot]);
+				large[slot] = null;
+			}
+			h++;
+			count++;
+			head.lazySet(h);
+		}
+		return count;
+	}
+	
+	/**
+	 * Called by the consumer only. Parks until the producer publishes an event or the timeout expires.
+	 */
+	public void await(long timeout, TimeUnit unit)
+	{
+		// published before checking for events, the mirror of offer()
+		consumer = Thread.currentThread();
+		if(head.get() == tail.get())
+		{
+			LockSupport.parkNanos(this, unit.toNanos(timeout));
+		}
+		consumer = null;
+	}
+
+}
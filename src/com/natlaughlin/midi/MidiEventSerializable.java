@@ -19,6 +19,7 @@ public class MidiEventSerializable implements Serializable
 	private byte[] message;
 	private int messageType;
 	private int metaType;
+	private long sendTime;
 	
 	public MidiEventSerializable(MidiMessage message, long tick)
 	{
@@ -56,6 +57,20 @@ public class MidiEventSerializable implements Serializable
 		this.message = bytes;
 	}
 
+	public MidiEventSerializable(int messageType, int metaType, long tick, byte[] message)
+	{
+		this(messageType, metaType, tick, 0, message);
+	}
+
+	public MidiEventSerializable(int messageType, int metaType, long tick, long sendTime, byte[] message)
+	{
+		this.messageType = messageType;
+		this.metaType = metaType;
+		this.tick = tick;
+		this.sendTime = sendTime;
+		this.message = message;
+	}
+
 	public long getTick()
 	{
 		return tick;
@@ -75,6 +90,19 @@ public class MidiEventSerializable implements Serializable
 	{
 		return metaType;
 	}
+	
+	/**
+	 * MidiClock microseconds when the sender received the event from its device, 0 if unknown.
+	 */
+	public long getSendTime()
+	{
+		return sendTime;
+	}
+	
+	public void setSendTime(long value)
+	{
+		sendTime = value;
+	}
 
 	
 }
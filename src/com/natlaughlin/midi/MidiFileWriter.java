@@ -0,0 +1,243 @@
+package com.natlaughlin.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a format 0 Standard MIDI File incrementally.
+ * 
+ * Events are encoded with delta-time VLQs into a buffer that is drained to the file
+ * whenever it fills. Each flush() also writes an End of Track event and back-patches
+ * the MTrk length, so the file on disk is playable after every flush while the
+ * writer's memory stays constant. With an index set, each event is reported to it
+ * with the offset and tick reading can resume from, and the index is flushed and
+ * closed along with the file.
+ */
+public class MidiFileWriter
+{
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final static int MTRK_LENGTH_OFFSET = 18;
+	private final static int TRACK_START = 22;
+	private final static byte[] END_OF_TRACK = { 0x00, (byte) 0xFF, 0x2F, 0x00 };
+	
+	private File file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer patch = ByteBuffer.allocate(END_OF_TRACK.length);
+	private long position;
+	private long lastTick;
+	private long eventCount;
+	private MidiArchive.FileIndex index;
+	
+	public MidiFileWriter(File file, int resolution) throws IOException
+	{
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		
+		buffer.putInt(0x4D546864); // MThd
+		buffer.putInt(6);
+		buffer.putShort((short) 0); // format 0
+		buffer.putShort((short) 1); // one track
+		buffer.putShort((short) resolution);
+		buffer.putInt(0x4D54726B); // MTrk
+		buffer.putInt(0);
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	public void setIndex(MidiArchive.FileIndex value)
+	{
+		index = value;
+	}
+	
+	public long getEventCount()
+	{
+		return eventCount;
+	}
+	
+	/**
+	 * Bytes written so far, including any still buffered.
+	 */
+	public long getLength()
+	{
+		return position + buffer.position();
+	}
+	
+	public void writeShortMessage(long tick, int status, int data1, int data2, int length) throws IOException
+	{
+		ensureRemaining(4 + 2 + length);
+		if(index != null)
+		{
+			index.event(getLength(), lastTick, tick, status, data1, data2);
+		}
+		writeDelta(tick);
+		if(status >= 0xF0)
+		{
+			// system common and real time messages only go into a track escaped
+			buffer.put((byte) 0xF7);
+			buffer.put((byte) length);
+		}
+		buffer.put((byte) status);
+		if(length > 1)
+		{
+			buffer.put((byte) data1);
+		}
+		if(length > 2)
+		{
+			buffer.put((byte) data2);
+		}
+		eventCount++;
+	}
+	
+	public void writeSysex(long tick, int status, byte[] data, int offset, int length) throws IOException
+	{
+		ensureRemaining(4 + 1 + 4);
+		if(index != null)
+		{
+			index.event(getLength(), lastTick, tick, status, 0, 0);
+		}
+		writeDelta(tick);
+		buffer.put((byte) status);
+		writeVarInt(length);
+		writeBytes(data, offset, length);
+		eventCount++;
+	}
+	
+	public void writeMeta(long tick, int type, byte[] data, int offset, int length) throws IOException
+	{
+		ensureRemaining(4 + 2 + 4);
+		if(index != null)
+		{
+			index.event(getLength(), lastTick, tick, 0xFF, type, 0);
+		}
+		writeDelta(tick);
+		buffer.put((byte) 0xFF);
+		buffer.put((byte) type);
+		writeVarInt(length);
+		writeBytes(data, offset, length);
+		eventCount++;
+	}
+	
+	/**
+	 * Drains buffered events and makes the file on disk complete up to this point.
+	 */
+	public void flush() throws IOException
+	{
+		drain();
+		
+		// End of Track after the last event, overwritten by the next drain
+		patch.clear();
+		patch.put(END_OF_TRACK);
+		patch.flip();
+		writeFully(patch, position);
+		
+		patch.clear();
+		patch.putInt((int) (position + END_OF_TRACK.length - TRACK_START));
+		patch.flip();
+		writeFully(patch, MTRK_LENGTH_OFFSET);
+		
+		if(index != null)
+		{
+			index.flush();
+		}
+	}
+	
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+			if(index != null)
+			{
+				index.close(position + END_OF_TRACK.length);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	private void writeDelta(long tick)
+	{
+		long delta = tick - lastTick;
+		if(delta < 0)
+		{
+			// a file track cannot go back in time
+			delta = 0;
+		}
+		else
+		{
+			lastTick = tick;
+		}
+		writeVarInt(delta);
+	}
+	
+	private void writeVarInt(long value)
+	{
+		// largest value a four byte VLQ can hold
+		value = Math.min(value, 0x0FFFFFFFL);
+		if(value >= 1 << 21)
+		{
+			buffer.put((byte) (((value >> 21) & 0x7F) | 0x80));
+		}
+		if(value >= 1 << 14)
+		{
+			buffer.put((byte) (((value >> 14) & 0x7F) | 0x80));
+		}
+		if(value >= 1 << 7)
+		{
+			buffer.put((byte) (((value >> 7) & 0x7F) | 0x80));
+		}
+		buffer.put((byte) (value & 0x7F));
+	}
+	
+	private void writeBytes(byte[] data, int offset, int length) throws IOException
+	{
+		if(length <= buffer.capacity())
+		{
+			ensureRemaining(length);
+			buffer.put(data, offset, length);
+		}
+		else
+		{
+			drain();
+			ByteBuffer large = ByteBuffer.wrap(data, offset, length);
+			writeFully(large, position);
+			position += length;
+		}
+	}
+	
+	private void ensureRemaining(int length) throws IOException
+	{
+		if(buffer.remaining() < length)
+		{
+			drain();
+		}
+	}
+	
+	private void drain() throws IOException
+	{
+		buffer.flip();
+		int length = buffer.remaining();
+		writeFully(buffer, position);
+		position += length;
+		buffer.clear();
+	}
+	
+	private void writeFully(ByteBuffer buf, long offset) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			offset += channel.write(buf, offset);
+		}
+	}
+
+}
@@ -0,0 +1,354 @@
+package com.natlaughlin.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Write-ahead journal of received events, kept in memory-mapped segment files.
+ * 
+ * Every record is: int length (bytes after this field), byte type, long session id, payload.
+ * OPEN carries the path of the MIDI file a session records to, EVENT carries a
+ * MidiEventCodec frame and CLOSE marks the file as complete. A length of zero ends
+ * the written part of a segment, since new segments are zero filled.
+ * 
+ * On startup recover() rebuilds the MIDI file of every session that was opened but
+ * never closed, then starts a fresh segment. Segments are deleted once no open
+ * session has records in them.
+ */
+public class MidiJournal
+{
+	public final static int OPEN = 1;
+	public final static int EVENT = 2;
+	public final static int CLOSE = 3;
+	
+	private final static int RECORD_HEADER_LENGTH = 9;
+	private final static String SEGMENT_SUFFIX = ".wal";
+	
+	private File directory;
+	private int segmentSize;
+	private int syncMilliseconds;
+	private PrintStream log;
+	private boolean debug;
+	
+	private long segmentIndex;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	private long nextSessionId;
+	private Map<Long, Long> openSessions = new HashMap<Long, Long>();
+	private int recordEnd;
+	
+	private Timer timer;
+	
+	public MidiJournal(File directory, int segmentSize, int syncMilliseconds, PrintStream log, boolean debug)
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncMilliseconds = syncMilliseconds;
+		this.log = log;
+		this.debug = debug;
+		nextSessionId = System.currentTimeMillis() * 1000;
+	}
+	
+	/**
+	 * Replays segments left by a previous run, rebuilds unfinished MIDI files and
+	 * opens a new segment for appending.
+	 */
+	public synchronized void recover() throws Exception
+	{
+		FileUtils.forceMkdir(directory);
+		
+		File[] segments = listSegments();
+		
+		// first pass: which sessions were never closed
+		Map<Long, File> unfinished = new HashMap<Long, File>();
+		for (File file : segments)
+		{
+			ByteBuffer buf = map(file);
+			while (true)
+			{
+				int type = nextRecord(buf);
+				if(type == 0)
+					break;
+				long sessionId = buf.getLong();
+				if(type == OPEN)
+				{
+					byte[] path = new byte[buf.getShort() & 0xFFFF];
+					buf.get(path);
+					unfinished.put(sessionId, new File(new String(path, StandardCharsets.UTF_8)));
+				}
+				else if(type == CLOSE)
+				{
+					unfinished.remove(sessionId);
+				}
+				skipRecord(buf);
+			}
+		}
+		
+		// second pass: replay their events
+		Map<Long, MidiSession> sessions = new HashMap<Long, MidiSession>();
+		for (Map.Entry<Long, File> entry : unfinished.entrySet())
+		{
+			log.println("Recovering: " + entry.getValue().getAbsolutePath());
+			sessions.put(entry.getKey(), new MidiSession(entry.getValue(), log, debug));
+		}
+		for (File file : segments)
+		{
+			ByteBuffer buf = map(file);
+			while (true)
+			{
+				int type = nextRecord(buf);
+				if(type == 0)
+					break;
+				long sessionId = buf.getLong();
+				MidiSession session = sessions.get(sessionId);
+				if(type == EVENT && session != null)
+				{
+					ByteBuffer frame = buf.slice();
+					frame.limit(recordEnd - buf.position());
+					session.processEvent(MidiEventCodec.readFrame(frame));
+				}
+				skipRecord(buf);
+			}
+		}
+		for (MidiSession session : sessions.values())
+		{
+			session.writeMidiFile();
+		}
+		
+		for (File file : segments)
+		{
+			FileUtils.forceDelete(file);
+		}
+		segmentIndex = segments.length == 0 ? 0 : parseIndex(segments[segments.length - 1]);
+		openSegment(segmentSize);
+		
+		startTimer();
+	}
+	
+	public synchronized long openSession(File midiFile) throws IOException
+	{
+		long sessionId = nextSessionId++;
+		byte[] path = midiFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+		int start = reserve(RECORD_HEADER_LENGTH + 2 + path.length);
+		segment.put((byte) OPEN);
+		segment.putLong(sessionId);
+		segment.putShort((short) path.length);
+		segment.put(path);
+		commit(start);
+		openSessions.put(sessionId, segmentIndex);
+		return sessionId;
+	}
+	
+	public synchronized void appendEvent(long sessionId, MidiEventSerializable me) throws IOException
+	{
+		int start = reserve(RECORD_HEADER_LENGTH + MidiEventCodec.getFrameLength(me));
+		segment.put((byte) EVENT);
+		segment.putLong(sessionId);
+		MidiEventCodec.writeFrame(segment, me);
+		commit(start);
+	}
+	
+	public synchronized void appendEvent(long sessionId, int messageType, int metaType, long tick, long sendTime, byte[] b, int offset, int length) throws IOException
+	{
+		int start = reserve(RECORD_HEADER_LENGTH + MidiEventCodec.FRAME_HEADER_LENGTH + length);
+		segment.put((byte) EVENT);
+		segment.putLong(sessionId);
+		MidiEventCodec.writeFrame(segment, messageType, metaType, tick, sendTime, b, offset, length);
+		commit(start);
+	}
+	
+	public synchronized void closeSession(long sessionId) throws IOException
+	{
+		int start = reserve(RECORD_HEADER_LENGTH);
+		segment.put((byte) CLOSE);
+		segment.putLong(sessionId);
+		commit(start);
+		openSessions.remove(sessionId);
+		deleteUnusedSegments();
+	}
+	
+	public void force()
+	{
+		MappedByteBuffer current;
+		synchronized (this)
+		{
+			current = segment;
+		}
+		if(current != null)
+		{
+			current.force();
+		}
+	}
+	
+	public synchronized void close() throws IOException
+	{
+		if(timer != null)
+		{
+			timer.cancel();
+		}
+		if(segment != null)
+		{
+			segment.force();
+			segment = null;
+			channel.close();
+		}
+	}
+	
+	private void startTimer()
+	{
+		if(syncMilliseconds <= 0)
+			return;
+		
+		timer = new Timer(true);
+		timer.scheduleAtFixedRate(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				force();
+			}
+		}, syncMilliseconds, syncMilliseconds);
+	}
+	
+	/**
+	 * Makes room for a record and leaves the buffer positioned after its length field.
+	 */
+	private int reserve(int length) throws IOException
+	{
+		if(segment.remaining() < length + 4)
+		{
+			openSegment(Math.max(segmentSize, length + 4));
+		}
+		int start = segment.position();
+		segment.position(start + 4);
+		return start;
+	}
+	
+	/**
+	 * The length is written last so a torn record reads as the end of the segment.
+	 */
+	private void commit(int start)
+	{
+		segment.putInt(start, segment.position() - start - 4);
+	}
+	
+	private void openSegment(int size) throws IOException
+	{
+		if(segment != null)
+		{
+			if(syncMilliseconds > 0)
+			{
+				segment.force();
+			}
+			channel.close();
+		}
+		
+		segmentIndex++;
+		File file = new File(directory, String.format("%016d%s", segmentIndex, SEGMENT_SUFFIX));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, 
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		
+		deleteUnusedSegments();
+	}
+	
+	private void deleteUnusedSegments()
+	{
+		long oldest = segmentIndex;
+		for (long index : openSessions.values())
+		{
+			oldest = Math.min(oldest, index);
+		}
+		for (File file : listSegments())
+		{
+			if(parseIndex(file) < oldest)
+			{
+				FileUtils.deleteQuietly(file);
+			}
+		}
+	}
+	
+	private File[] listSegments()
+	{
+		File[] files = directory.listFiles();
+		if(files == null)
+		{
+			return new File[0];
+		}
+		List<File> segments = new ArrayList<File>();
+		for (File file : files)
+		{
+			if(file.getName().endsWith(SEGMENT_SUFFIX))
+			{
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments);
+		return segments.toArray(new File[segments.size()]);
+	}
+	
+	private static long parseIndex(File file)
+	{
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	private static ByteBuffer map(File file) throws IOException
+	{
+		FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		finally
+		{
+			fc.close();
+		}
+	}
+	
+	/**
+	 * Positions buf after the type of the next record and returns the type, or 0 at the end.
+	 */
+	private int nextRecord(ByteBuffer buf)
+	{
+		try
+		{
+			if(buf.remaining() < 4 + RECORD_HEADER_LENGTH)
+				return 0;
+			int length = buf.getInt();
+			if(length < RECORD_HEADER_LENGTH || length > buf.remaining())
+				return 0;
+			recordEnd = buf.position() + length;
+			int type = buf.get();
+			if(type != OPEN && type != EVENT && type != CLOSE)
+				return 0;
+			return type;
+		}
+		catch(BufferUnderflowException e)
+		{
+			return 0;
+		}
+	}
+	
+	private void skipRecord(ByteBuffer buf)
+	{
+		buf.position(recordEnd);
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.natlaughlin.midi;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.joda.time.DateTime;
+
+/**
+ * Asynchronous logger shared by everything in the process.
+ *
+ * Callers claim a preallocated record in a bounded multi producer ring and fill in
+ * a timestamp, a record type and its arguments; a background thread formats the
+ * records, String.format templates included, and writes them in batches. When the
+ * ring is full records are dropped and counted, so logging never blocks a MIDI
+ * thread. With nothing to write the thread parks until a caller publishes a record,
+ * so an idle process does not wake it.
+ */
+public class MidiLog
+{
+	private final static int TEXT = 1;
+	private final static int SHORT_TIMESTAMP = 2;
+	private final static int SHORT_TICK = 3;
+	private final static int FORMAT = 4;
+
+	private static MidiLog instance;
+
+	private final int capacity;
+	private final int mask;
+	private final PrintStream out;
+
+	// slot i is free for producer sequence s when sequence[i] == s, readable when it is s + 1
+	private final AtomicLongArray sequence;
+	private final long[] time;
+	private final int[] type;
+	private final String[] text;
+	private final Object[][] args;
+	private final long[] timeStamp;
+	private final int[] data;
+
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropCount = new AtomicLong();
+	private long head;
+	private volatile Thread writer;
+	private long reportedDrops;
+
+	private final StringBuilder line = new StringBuilder(256);
+	private final StringBuilder batch = new StringBuilder(4096);
+
+	public static synchronized MidiLog getInstance()
+	{
+		if(instance == null)
+		{
+			instance = new MidiLog(Midi.LOG_QUEUE_SIZE, System.out);
+			instance.start();
+		}
+		return instance;
+	}
+
+	public MidiLog(int capacity, PrintStream out)
+	{
+		if(Integer.bitCount(capacity) != 1)
+		{
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.out = out;
+
+		sequence = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+		{
+			sequence.set(i, i);
+		}
+		time = new long[capacity];
+		type = new int[capacity];
+		text = new String[capacity];
+		args = new Object[capacity][];
+		timeStamp = new long[capacity];
+		data = new int[capacity];
+	}
+
+	public long getDropCount()
+	{
+		return dropCount.get();
+	}
+
+	/**
+	 * Logs a message that is already formatted.
+	 */
+	public void log(String message)
+	{
+		long s = claim();
+		if(s < 0)
+			return;
+
+		int slot = (int) (s & mask);
+		time[slot] = System.currentTimeMillis();
+		type[slot] = TEXT;
+		text[slot] = message;
+		publish(slot, s);
+	}
+
+	/**
+	 * Logs String.format(format, args), formatted on the writer thread; the arguments
+	 * must not change once passed.
+	 */
+	public void log(String format, Object... formatArgs)
+	{
+		long s = claim();
+		if(s < 0)
+			return;
+
+		int slot = (int) (s & mask);
+		time[slot] = System.currentTimeMillis();
+		type[slot] = FORMAT;
+		text[slot] = format;
+		args[slot] = formatArgs;
+		publish(slot, s);
+	}
+
+	/**
+	 * Logs a short message the way DumpReceiver prints it; decoding happens on the writer thread.
+	 */
+	public void logShort(int status, int data1, int data2, long messageTimeStamp, boolean ticks)
+	{
+		long s = claim();
+		if(s < 0)
+			return;
+
+		int slot = (int) (s & mask);
+		time[slot] = System.currentTimeMillis();
+		type[slot] = ticks ? SHORT_TICK : SHORT_TIMESTAMP;
+		text[slot] = null;
+		timeStamp[slot] = messageTimeStamp;
+		data[slot] = (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16;
+		publish(slot, s);
+	}
+
+	/**
+	 * Makes the record readable and wakes the writer if it is parked.
+	 */
+	private void publish(int slot, long s)
+	{
+		// a full volatile store, so the read of writer below cannot pass it
+		sequence.set(slot, s + 1);
+		Thread waiting = writer;
+		if(waiting != null)
+		{
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * Returns the producer sequence of a free slot, or -1 if the ring is full.
+	 */
+	private long claim()
+	{
+		while (true)
+		{
+			long t = tail.get();
+			long available = sequence.get((int) (t & mask));
+			if(available == t)
+			{
+				if(tail.compareAndSet(t, t + 1))
+				{
+					return t;
+				}
+			}
+			else if(available < t)
+			{
+				dropCount.incrementAndGet();
+				return -1;
+			}
+		}
+	}
+
+	private void start()
+	{
+		Thread thread = new Thread("MidiLog writer")
+		{
+			@Override
+			public void run()
+			{
+				while (true)
+				{
+					if(drain() == 0)
+					{
+						// published before checking for records, the mirror of publish()
+						writer = this;
+						if(isEmpty())
+						{
+							LockSupport.park(MidiLog.this);
+						}
+						writer = null;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		});
+	}
+
+	private synchronized boolean isEmpty()
+	{
+		return sequence.get((int) (head & mask)) != head + 1;
+	}
+
+	/**
+	 * Formats and writes every published record. Returns how many there were.
+	 */
+	public synchronized int drain()
+	{
+		int count = 0;
+		batch.setLength(0);
+		while (true)
+		{
+			int slot = (int) (head & mask);
+			if(sequence.get(slot) != head + 1)
+				break;
+
+			line.setLength(0);
+			line.append(new DateTime(time[slot])).append('\t');
+			switch (type[slot])
+			{
+			case TEXT:
+				line.append(text[slot]);
+				text[slot] = null;
+				break;
+			case FORMAT:
+				line.append(String.format(text[slot], args[slot]));
+				text[slot] = null;
+				args[slot] = null;
+				break;
+			case SHORT_TIMESTAMP:
+			case SHORT_TICK:
+				DumpReceiver.appendTimeStamp(line, timeStamp[slot], type[slot] == SHORT_TICK);
+				int d = data[slot];
+				DumpReceiver.decodeMessage(line, d & 0xFF, (d >> 8) & 0xFF, (d >> 16) & 0xFF);
+				break;
+			}
+			batch.append(line).append(System.lineSeparator());
+
+			sequence.lazySet(slot, head + capacity);
+			head++;
+			count++;
+		}
+
+		long drops = dropCount.get();
+		if(drops != reportedDrops)
+		{
+			batch.append(new DateTime()).append('\t')
+				.append(String.format("MidiLog dropped %d records", drops - reportedDrops))
+				.append(System.lineSeparator());
+			reportedDrops = drops;
+		}
+
+		if(batch.length() > 0)
+		{
+			out.print(batch);
+			out.flush();
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,369 @@
+package com.natlaughlin.midi;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters of one sender or receiver pipeline, published over JMX as
+ * com.natlaughlin.midi:type=MidiMetrics,name=[name].
+ *
+ * Counters are LongAdders, so threads recording events do not contend on a single
+ * cache line. Gauges such as queue depths are read when JMX asks for them.
+ */
+public class MidiMetrics implements DynamicMBean
+{
+	public interface Gauge
+	{
+		long getValue();
+	}
+
+	private final static String[] TYPE_NAMES = {"Unknown", "Short", "Sysex", "Meta"};
+
+	private final String name;
+
+	private final LongAdder[] events = new LongAdder[TYPE_NAMES.length];
+	private final LongAdder[] bytes = new LongAdder[TYPE_NAMES.length];
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder decodeErrors = new LongAdder();
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder fileWrites = new LongAdder();
+	private final LongAdder filesWritten = new LongAdder();
+	private final LongAdder lostPackets = new LongAdder();
+	private final LongAdder repairedPackets = new LongAdder();
+	private final LongAdder unrepairedPackets = new LongAdder();
+	private final LongAdder nacks = new LongAdder();
+	private final LongAdder retransmits = new LongAdder();
+	private final LongAdder recoveredEvents = new LongAdder();
+	private final LongAdder fragments = new LongAdder();
+	private final LongAdder reassemblyDrops = new LongAdder();
+	private final LongAdder droppedEvents = new LongAdder();
+	private final LongAdder coalescedEvents = new LongAdder();
+	private final LongAdder slowDisconnects = new LongAdder();
+	private final LongAdder writeMicros = new LongAdder();
+	private final LongAdder writeErrors = new LongAdder();
+	private final LongAdder writerStalls = new LongAdder();
+	private final LongAdder rotations = new LongAdder();
+
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+	public MidiMetrics(String name)
+	{
+		this.name = name;
+		for (int i = 0; i < TYPE_NAMES.length; i++)
+		{
+			events[i] = new LongAdder();
+			bytes[i] = new LongAdder();
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void recordEvent(int messageType, int length)
+	{
+		int i = messageType > 0 && messageType < TYPE_NAMES.length ? messageType : 0;
+		events[i].increment();
+		bytes[i].add(length);
+	}
+
+	public void recordPacket()
+	{
+		packets.increment();
+	}
+
+	public void recordDecodeError()
+	{
+		decodeErrors.increment();
+	}
+
+	public void recordConnection()
+	{
+		connections.increment();
+	}
+
+	public void recordReconnect()
+	{
+		reconnects.increment();
+	}
+
+	/**
+	 * Buffered events were written to a MIDI file.
+	 */
+	public void recordFileWrite()
+	{
+		fileWrites.increment();
+	}
+
+	/**
+	 * A MIDI file was completed.
+	 */
+	public void recordFileWritten()
+	{
+		filesWritten.increment();
+	}
+
+	/**
+	 * Packets found missing from a multicast sequence.
+	 */
+	public void recordLoss(int count)
+	{
+		lostPackets.add(count);
+	}
+
+	public void recordRepair()
+	{
+		repairedPackets.increment();
+	}
+
+	/**
+	 * Missing packets were given up on.
+	 */
+	public void recordGiveUp(int count)
+	{
+		unrepairedPackets.add(count);
+	}
+
+	/**
+	 * A NACK was sent (receiver) or received (sender).
+	 */
+	public void recordNack()
+	{
+		nacks.increment();
+	}
+
+	public void recordRetransmit()
+	{
+		retransmits.increment();
+	}
+
+	/**
+	 * Events played from a recovery journal after a gap.
+	 */
+	public void recordRecovered(int count)
+	{
+		recoveredEvents.add(count);
+	}
+
+	/**
+	 * A piece of a frame too large for one packet was sent (sender) or received (receiver).
+	 */
+	public void recordFragment()
+	{
+		fragments.increment();
+	}
+	
+	/**
+	 * A fragmented frame was given up on, unfinished when it expired or pushed out for room.
+	 */
+	public void recordReassemblyDrop()
+	{
+		reassemblyDrops.increment();
+	}
+
+	/**
+	 * Events a relay dropped from a slow subscriber's full queue.
+	 */
+	public void recordDrop()
+	{
+		droppedEvents.increment();
+	}
+
+	/**
+	 * Events a relay removed from a slow subscriber's full queue because a later value replaced them.
+	 */
+	public void recordCoalesced(int count)
+	{
+		coalescedEvents.add(count);
+	}
+
+	/**
+	 * A relay subscriber was disconnected for falling behind.
+	 */
+	public void recordSlowDisconnect()
+	{
+		slowDisconnects.increment();
+	}
+
+	/**
+	 * Time from handing a write to the writer thread until it was done; divide by FileWrites for the mean.
+	 */
+	public void recordWriteLatency(long micros)
+	{
+		writeMicros.add(micros);
+	}
+
+	public void recordWriteError()
+	{
+		writeErrors.increment();
+	}
+
+	/**
+	 * A write had to wait for room in the writer's full queue.
+	 */
+	public void recordWriterStall()
+	{
+		writerStalls.increment();
+	}
+
+	/**
+	 * A recording reached a size or duration limit and went on in a new file.
+	 */
+	public void recordRotation()
+	{
+		rotations.increment();
+	}
+
+	public synchronized void addGauge(String attribute, Gauge gauge)
+	{
+		gauges.put(attribute, gauge);
+	}
+
+	/**
+	 * Registers with the platform MBeanServer, replacing an earlier registration of the same name.
+	 */
+	public void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name=" + ObjectName.quote(name));
+			if(server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Current values of all counters and gauges, in a stable order.
+	 */
+	public synchronized Map<String, Long> getValues()
+	{
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (int i = 1; i < TYPE_NAMES.length; i++)
+		{
+			values.put(TYPE_NAMES[i] + "Events", events[i].sum());
+			values.put(TYPE_NAMES[i] + "Bytes", bytes[i].sum());
+		}
+		values.put("UnknownEvents", events[0].sum());
+		values.put("Packets", packets.sum());
+		values.put("DecodeErrors", decodeErrors.sum());
+		values.put("Connections", connections.sum());
+		values.put("Reconnects", reconnects.sum());
+		values.put("FileWrites", fileWrites.sum());
+		values.put("FilesWritten", filesWritten.sum());
+		values.put("LostPackets", lostPackets.sum());
+		values.put("RepairedPackets", repairedPackets.sum());
+		values.put("UnrepairedPackets", unrepairedPackets.sum());
+		values.put("Nacks", nacks.sum());
+		values.put("Retransmits", retransmits.sum());
+		values.put("RecoveredEvents", recoveredEvents.sum());
+		values.put("Fragments", fragments.sum());
+		values.put("ReassemblyDrops", reassemblyDrops.sum());
+		values.put("DroppedEvents", droppedEvents.sum());
+		values.put("CoalescedEvents", coalescedEvents.sum());
+		values.put("SlowDisconnects", slowDisconnects.sum());
+		values.put("WriteMicros", writeMicros.sum());
+		values.put("WriteErrors", writeErrors.sum());
+		values.put("WriterStalls", writerStalls.sum());
+		values.put("Rotations", rotations.sum());
+		values.put("LogDrops", MidiLog.getInstance().getDropCount());
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+		{
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return values;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(name);
+		for (Map.Entry<String, Long> entry : getValues().entrySet())
+		{
+			sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		Long value = getValues().get(attribute);
+		if(value == null)
+		{
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes)
+	{
+		Map<String, Long> values = getValues();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			Long value = values.get(attribute);
+			if(value != null)
+			{
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Read only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+	{
+		// the MBeanInfo lists no operations
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String attribute : getValues().keySet())
+		{
+			attributes.add(new MBeanAttributeInfo(attribute, "long", attribute, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "MIDI pipeline metrics " + name,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+}
@@ -7,5 +7,16 @@ public class MidiMulticast
 
 	public final static String HOST = "225.0.0.50";
 	public final static int PORT = 20070;
+	public final static int PACKET_SIZE = 1400;
+	public final static int BATCH_MICROSECONDS = 0;
+	public final static int HISTORY_PACKETS = 1024;
+	public final static int NACK_MILLISECONDS = 20;
+	public final static int NACK_RETRIES = 3;
+	// longer than a gap is NACKed for before it is given up on
+	public final static int REORDER_MILLISECONDS = NACK_MILLISECONDS << NACK_RETRIES;
+	public final static int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+	public final static int RECOVERY_BYTES = 0;
+	public final static int REASSEMBLY_BYTES = 4 * 1024 * 1024;
+	public final static int REASSEMBLY_MILLISECONDS = 2000;
 
 }
@@ -2,18 +2,17 @@ package com.natlaughlin.midi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-
-import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.ShortMessage;
-import javax.sound.midi.SysexMessage;
-import javax.sound.midi.Track;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -22,12 +21,6 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.SerializationUtils;
-import org.joda.time.DateTime;
-import org.joda.time.Seconds;
-
-import com.natlaughlin.midi.DumpReceiver;
 
 public class MidiMulticastReceiver extends Thread
 {
@@ -42,19 +35,90 @@ public class MidiMulticastReceiver extends Thread
 	
 	private int socketPort;
 	private String hostName;
+	private String interfaceName;
 	private InetAddress multiGroup;
-	private MulticastSocket multiSocket;
+	private DatagramChannel channel;
+	private MembershipKey membership;
 
-	private DateTime lastEvent;
-	private DumpReceiver dumpReceiver;
-	private Sequence sequence;
-	private Track track;
-	private long startTick;
 	private int secondsToWait;
-	private File midiFile;
+	private long rotateEvents;
+	private long rotateBytes;
+	private int rotateSeconds;
+	private MidiArchive archive;
+	private String journalDirectory;
+	private int syncMilliseconds;
+	private MidiJournal journal;
+	private MidiSessions<Object> sessions;
+	
+	private AtomicLong packetCount = new AtomicLong();
+	private AtomicLong eventCount = new AtomicLong();
+	private LatencyHistogram transitLatency = new LatencyHistogram("Transit", "us");
+	private LatencyHistogram processingLatency = new LatencyHistogram("Processing", "ns");
+	private MidiMetrics metrics;
+	private MidiWriterExecutor writerExecutor;
+	private MidiSequenceTracker tracker;
+	private double lossPercent;
+	private Map<Integer, Sender> senders = new HashMap<Integer, Sender>();
+	private MidiChannelState journalState = new MidiChannelState();
+	private MidiReassemblyBuffer reassembly;
+	
+	// reused for every packet, frames are decoded where they lie
+	private ByteBuffer packet = ByteBuffer.allocateDirect(MidiMulticast.PACKET_SIZE);
+	private byte[] scratch = new byte[MidiMulticast.PACKET_SIZE];
+	private Object packetSender;
+	private Sender packetSenderState;
+	private MidiChannelState packetState;
+	private MidiChannelState packetRecovered;
+	private MidiEventRing.Handler frameHandler = new MidiEventRing.Handler()
+	{
+		@Override
+		public void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] b, int offset, int length) throws Exception
+		{
+			eventCount.incrementAndGet();
+			if(packetSenderState != null)
+			{
+				packetSenderState.lastTick = tick;
+				packetSenderState.lastSendTime = sendTime;
+			}
+			if(messageType == MidiEventSerializable.SHORT && length > 2)
+			{
+				int status = b[offset] & 0xFF;
+				int key = b[offset + 1] & 0xFF;
+				boolean noteOff = (status & 0xF0) == 0x80 || (status & 0xF0) == 0x90 && b[offset + 2] == 0;
+				if(packetRecovered != null && noteOff && packetRecovered.isNoteOn(status & 0x0F, key))
+				{
+					// already played from the journal
+					packetRecovered.update(0x80 | status & 0x0F, key, 0);
+					return;
+				}
+				if(packetState != null && (status & 0xF0) == 0x90 && !noteOff)
+				{
+					// a new note: a late repair of an earlier note off is no longer a repeat
+					packetSenderState.recovered.update(0x80 | status & 0x0F, key, 0);
+				}
+			}
+			if(packetState != null && messageType == MidiEventSerializable.SHORT && length > 0)
+			{
+				packetState.update(b[offset] & 0xFF, length > 1 ? b[offset + 1] & 0xFF : 0, length > 2 ? b[offset + 2] & 0xFF : 0);
+			}
+			sessions.processEvent(packetSender, messageType, metaType, tick, sendTime, b, offset, length);
+		}
+	};
 
 
 	private ServerSocket ss;
+	
+	/**
+	 * What is known of a sender of sequenced packets.
+	 */
+	private static class Sender
+	{
+		MidiChannelState state = new MidiChannelState();
+		// note offs played from the journal, held as notes on, so their repairs are not played twice
+		MidiChannelState recovered = new MidiChannelState();
+		long lastTick;
+		long lastSendTime;
+	}
 
 	public static void main(String[] args) throws Exception
 	{
@@ -65,7 +129,6 @@ public class MidiMulticastReceiver extends Thread
 	
 	public MidiMulticastReceiver()
 	{
-		dumpReceiver = new DumpReceiver(new LogPrintStream(System.out));
 	}
 
 	private void parseOptions(String[] args) throws Exception
@@ -86,11 +149,34 @@ public class MidiMulticastReceiver extends Thread
 				.create("port");
 		options.addOption(port);
 		
+		Option nif = OptionBuilder.withArgName("name").hasArg()
+				.withDescription("Join the Multicast group on this network interface (default: the one routing the group)")
+				.create("interface");
+		options.addOption(nif);
+		
 		Option wait = OptionBuilder.withArgName(String.valueOf(Midi.WAIT_SECONDS)).hasArg()
 				.withDescription("Wait this many seconds after the last MIDI event to write the MIDI file")
 				.create("wait");
 		options.addOption(wait);
 		
+		Option maxEvents = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_EVENTS)).hasArg()
+				.withDescription("Start a new MIDI file after this many events (0 never does)")
+				.create("maxevents");
+		options.addOption(maxEvents);
+		
+		Option maxBytes = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_BYTES)).hasArg()
+				.withDescription("Start a new MIDI file before this one grows past this many bytes (0 never does)")
+				.create("maxbytes");
+		options.addOption(maxBytes);
+		
+		Option maxSeconds = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_SECONDS)).hasArg()
+				.withDescription("Start a new MIDI file this many seconds after the last one started (0 never does)")
+				.create("maxseconds");
+		options.addOption(maxSeconds);
+		
+		Option arc = new Option("archive", "Keep a time index of the MIDI files in [dir] for MidiArchive to extract time ranges with");
+		options.addOption(arc);
+		
 		Option pfx = OptionBuilder.withArgName(Midi.FILE_PREFIX).hasArg()
 				.withDescription("MIDI output filename prefix [dir]/[prefix][dateformat].mid")
 				.create("prefix");
@@ -105,6 +191,21 @@ public class MidiMulticastReceiver extends Thread
 				.withDescription("MIDI output filename date format [dir]/[prefix][dateformat].mid")
 				.create("dateformat");
 		options.addOption(df);
+		
+		Option jnl = OptionBuilder.withArgName("dir").hasArg()
+				.withDescription("Journal every received MIDI event in this directory and recover unfinished MIDI files on startup")
+				.create("journal");
+		options.addOption(jnl);
+		
+		Option sync = OptionBuilder.withArgName(String.valueOf(Midi.JOURNAL_SYNC_MILLISECONDS)).hasArg()
+				.withDescription("Force the journal to disk every this many milliseconds (0 never forces)")
+				.create("sync");
+		options.addOption(sync);
+		
+		Option loss = OptionBuilder.withArgName("percent").hasArg()
+				.withDescription("Drop this share of incoming packets on purpose, to test repairs")
+				.create("loss");
+		options.addOption(loss);
 
 		CommandLineParser parser = new PosixParser();
 		cli = parser.parse(options, args);
@@ -134,18 +235,48 @@ public class MidiMulticastReceiver extends Thread
 			socketPort = Integer.parseInt(cli.getOptionValue("port"));
 		}
 		
+		interfaceName = null;
+		if(cli.hasOption("interface"))
+		{
+			interfaceName = cli.getOptionValue("interface");
+		}
+		
 		secondsToWait = Midi.WAIT_SECONDS;
 		if(cli.hasOption("wait"))
 		{
 			secondsToWait = Integer.parseInt(cli.getOptionValue("wait"));
 		}
 		
+		rotateEvents = Midi.ROTATE_EVENTS;
+		if(cli.hasOption("maxevents"))
+		{
+			rotateEvents = Long.parseLong(cli.getOptionValue("maxevents"));
+		}
+		
+		rotateBytes = Midi.ROTATE_BYTES;
+		if(cli.hasOption("maxbytes"))
+		{
+			rotateBytes = Long.parseLong(cli.getOptionValue("maxbytes"));
+		}
+		
+		rotateSeconds = Midi.ROTATE_SECONDS;
+		if(cli.hasOption("maxseconds"))
+		{
+			rotateSeconds = Integer.parseInt(cli.getOptionValue("maxseconds"));
+		}
+		
 		directory = Midi.FILE_DIR;
 		if(cli.hasOption("dir"))
 		{
 			directory = cli.getOptionValue("dir");
 		}
 		
+		archive = null;
+		if(cli.hasOption("archive"))
+		{
+			archive = new MidiArchive(new File(directory), Midi.ARCHIVE_STRIDE_BYTES);
+		}
+		
 		prefix = Midi.FILE_PREFIX;
 		if(cli.hasOption("prefix"))
 		{
@@ -157,6 +288,24 @@ public class MidiMulticastReceiver extends Thread
 		{
 			dateFormat = new SimpleDateFormat(cli.getOptionValue("dateformat"));
 		}
+		
+		journalDirectory = null;
+		if(cli.hasOption("journal"))
+		{
+			journalDirectory = cli.getOptionValue("journal");
+		}
+		
+		syncMilliseconds = Midi.JOURNAL_SYNC_MILLISECONDS;
+		if(cli.hasOption("sync"))
+		{
+			syncMilliseconds = Integer.parseInt(cli.getOptionValue("sync"));
+		}
+		
+		lossPercent = 0;
+		if(cli.hasOption("loss"))
+		{
+			lossPercent = Double.parseDouble(cli.getOptionValue("loss"));
+		}
 
 	}
 
@@ -170,154 +319,377 @@ public class MidiMulticastReceiver extends Thread
 			public void run()
 			{
 
-				log(String.format("Last MIDI event: %s", lastEvent)); 
+				log(transitLatency.snapshotAndReset().toString());
+				log(processingLatency.snapshotAndReset().toString());
+				log(writerExecutor.getLatency().snapshotAndReset().toString());
 				
-				DateTime now = new DateTime();
-
-				int secondsSinceLastEvent = 0;
-				if(lastEvent != null)
-				{
-					secondsSinceLastEvent = Seconds.secondsBetween(lastEvent,now).getSeconds();
-				}
-				
-				if (midiFile != null && secondsSinceLastEvent > secondsToWait)
-				{
-					try
-					{
-						writeMidiFile();
-					} 
-					catch (Exception e)
-					{
-						e.printStackTrace();
-					}
-				}
+				long packets = packetCount.getAndSet(0);
+				long events = eventCount.getAndSet(0);
+				log("Packets/sec: %.1f events/packet: %.2f", 
+						packets * 1000.0 / Midi.RECEIVER_POLL_MILLISECONDS,
+						packets == 0 ? 0.0 : (double) events / packets);
 
 			}
 		}, Midi.RECEIVER_POLL_MILLISECONDS, Midi.RECEIVER_POLL_MILLISECONDS);
 	}
 
+	private void openJournal() throws Exception
+	{
+		if(journalDirectory != null && journal == null)
+		{
+			log("Opening journal %s", journalDirectory);
+			
+			MidiJournal value = new MidiJournal(new File(journalDirectory), Midi.JOURNAL_SEGMENT_SIZE, 
+					syncMilliseconds, new LogPrintStream(System.out), debug);
+			value.recover();
+			journal = value;
+		}
+	}
+	
 	public void run()
 	{
+		try
+		{
+			openJournal();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		
+		metrics = new MidiMetrics("MidiMulticastReceiver:" + hostName + ":" + socketPort);
+		metrics.register();
+		writerExecutor = new MidiWriterExecutor("MidiMulticastReceiver", Midi.WRITER_QUEUE_SIZE, metrics);
+		sessions = new MidiSessions<Object>("MidiMulticastReceiver", secondsToWait, Midi.RECEIVER_POLL_MILLISECONDS, 
+				new MidiSessions.Factory<Object>()
+		{
+			@Override
+			public MidiSession createSession(Object sender)
+			{
+				MidiSession session = new MidiSession(directory, prefix, dateFormat, getSuffix(sender), new LogPrintStream(System.out), debug);
+				session.setJournal(journal);
+				session.setLatency(transitLatency, processingLatency);
+				session.setMetrics(metrics);
+				session.setWriterExecutor(writerExecutor);
+				session.setRotation(rotateEvents, rotateBytes, rotateSeconds);
+				session.setReorderWindow(MidiMulticast.REORDER_MILLISECONDS);
+				session.setArchive(archive);
+				return session;
+			}
+		});
+		metrics.addGauge("Sessions", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return sessions.size();
+			}
+		});
+		tracker = new MidiSequenceTracker(MidiMulticast.HISTORY_PACKETS, MidiMulticast.NACK_MILLISECONDS, 
+				MidiMulticast.NACK_RETRIES, metrics);
+		metrics.addGauge("MissingPackets", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return tracker.getMissingCount();
+			}
+		});
+		reassembly = new MidiReassemblyBuffer(MidiMulticast.REASSEMBLY_BYTES, MidiMulticast.REASSEMBLY_MILLISECONDS, metrics);
+		metrics.addGauge("ReassemblyBytes", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return reassembly.getBytes();
+			}
+		});
+		MidiPacketLoss packetLoss = lossPercent > 0 ? new MidiPacketLoss(lossPercent, System.nanoTime()) : null;
 		startTimer();
 
 		while (true)
 		{
+			Selector selector = null;
 			try
 			{
 
-				log(String.format("MidiMulticastReceiver joining Multicast group %s %s", hostName, socketPort));
+				log("MidiMulticastReceiver joining Multicast group %s %s", hostName, socketPort);
 				
 				multiGroup = InetAddress.getByName(hostName);
-				multiSocket = new MulticastSocket(socketPort);
-				multiSocket.joinGroup(multiGroup);
-
-				log("MidiMulticastReceiver listening.");
+				NetworkInterface networkInterface = getNetworkInterface(multiGroup);
+				channel = DatagramChannel.open(multiGroup instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, MidiMulticast.RECEIVE_BUFFER_SIZE);
+				channel.bind(new InetSocketAddress(socketPort));
+				membership = channel.join(multiGroup, networkInterface);
+				channel.configureBlocking(false);
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
 				
-				while (multiSocket.isBound())
+				MidiSequenceTracker.NackHandler nackHandler = new MidiSequenceTracker.NackHandler()
 				{
+					@Override
+					public void sendNack(SocketAddress sender, ByteBuffer nack) throws Exception
+					{
+						channel.send(nack, sender);
+					}
+				};
 
-					byte[] bytes = new byte[1024];
-					DatagramPacket pack = new DatagramPacket(bytes, bytes.length);
-					multiSocket.receive(pack);
+				log("MidiMulticastReceiver listening on %s.", networkInterface.getName());
+				
+				long nextTick = 0;
+				while (membership.isValid())
+				{
+					// on a deadline, so a steady stream of packets cannot hold back retries and expiry
+					long now = System.currentTimeMillis();
+					if(now >= nextTick)
+					{
+						tracker.sendNacks(now, nackHandler);
+						reassembly.expire(now);
+						// forgotten once their sessions would have closed; a returning sender starts over
+						for (Integer senderId : tracker.expire(now, (secondsToWait + 1) * 1000L))
+						{
+							senders.remove(senderId);
+						}
+						nextTick = now + MidiMulticast.NACK_MILLISECONDS;
+					}
+					if(selector.select(nextTick - now) == 0)
+						continue;
 					
-					MidiEventSerializable me = (MidiEventSerializable) SerializationUtils.deserialize(pack.getData());
-
-					processEvent(me);
+					selector.selectedKeys().clear();
+					
+					SocketAddress from;
+					while ((from = receive()) != null)
+					{
+						if(packetLoss != null && packetLoss.drop())
+							continue;
+						
+						packetCount.incrementAndGet();
+						metrics.recordPacket();
+						
+						try
+						{
+							processPacket(from, packet, nackHandler);
+						}
+						catch(IOException e)
+						{
+							metrics.recordDecodeError();
+							log("Dropping packet from %s: %s", from, e.getMessage());
+						}
+					}
 				}
 
 			} catch (Exception e)
 			{
 				e.printStackTrace();
 			}
+			finally
+			{
+				try
+				{
+					if(selector != null)
+					{
+						selector.close();
+					}
+					if(channel != null)
+					{
+						channel.close();
+					}
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
 		}
 	}
-
-	private void writeMidiFile() throws Exception
+	
+	private SocketAddress receive() throws IOException
+	{
+		packet.clear();
+		SocketAddress from = channel.receive(packet);
+		packet.flip();
+		return from;
+	}
+	
+	private void processPacket(SocketAddress from, ByteBuffer buf, MidiSequenceTracker.NackHandler nackHandler) throws Exception
 	{
-		if (midiFile != null)
+		int flags = MidiEventCodec.readHeader(buf);
+		if((flags & MidiEventCodec.FLAG_NACK) != 0)
+			return;
+		
+		long now = System.currentTimeMillis();
+		Sender sender = null;
+		MidiChannelState state = null;
+		MidiChannelState recovered = null;
+		int senderId = 0;
+		// sequenced packets name their sender, others only have their source address
+		packetSender = from;
+		if((flags & MidiEventCodec.FLAG_SEQUENCED) != 0)
 		{
-			log("Writing: " + midiFile.getAbsolutePath());
+			senderId = buf.getInt();
+			packetSender = senderId;
+			int sequence = buf.getInt();
+			int accepted = tracker.accept(from, senderId, sequence, now);
+			if(accepted == MidiSequenceTracker.REJECTED)
+				return;
 			
-			MidiSystem.write(sequence, 0, midiFile);
-			midiFile = null;
+			sender = senders.get(packetSender);
+			if(sender == null)
+			{
+				sender = new Sender();
+				senders.put(senderId, sender);
+			}
+			if(accepted != MidiSequenceTracker.REPAIRED)
+			{
+				state = sender.state;
+			}
+			else
+			{
+				recovered = sender.recovered;
+			}
+			if((flags & MidiEventCodec.FLAG_JOURNAL) != 0)
+			{
+				int length = buf.getShort() & 0xFFFF;
+				if(accepted == MidiSequenceTracker.AFTER_GAP)
+				{
+					journalState.readJournal(buf, length);
+					recover(sender, (flags & MidiEventCodec.FLAG_FRAGMENT) == 0 ? buf : null);
+				}
+				else
+				{
+					buf.position(buf.position() + length);
+				}
+			}
 		}
+		
+		if((flags & MidiEventCodec.FLAG_FRAGMENT) != 0)
+		{
+			if((flags & MidiEventCodec.FLAG_SEQUENCED) == 0)
+			{
+				throw new MidiEventCodec.FormatException("Fragment without a sequence number");
+			}
+			buf = reassembly.add(senderId, buf, now);
+			if(buf == null)
+			{
+				tracker.sendNacks(now, nackHandler);
+				return;
+			}
+		}
+		
+		packetSenderState = sender;
+		packetState = state;
+		packetRecovered = recovered;
+		while(buf.hasRemaining())
+		{
+			MidiEventCodec.readFrame(buf, scratch, frameHandler);
+		}
+		
+		tracker.sendNacks(now, nackHandler);
 	}
-
-	private void processEvent(MidiEventSerializable me) throws Exception
+	
+	/**
+	 * File name suffix of a sender's recordings: its sender id, or address and port.
+	 */
+	private static String getSuffix(Object sender)
 	{
-
-		lastEvent = new DateTime();
-
-		if (midiFile == null)
-		{
-			String filename = String.format("%s%s.mid", prefix,  dateFormat.format(lastEvent.toDate()));
-			midiFile = new File(directory, filename);
-			FileUtils.touch(midiFile);
-			sequence = new Sequence(Sequence.PPQ, 5000);
-			track = sequence.createTrack();
-			startTick = me.getTick();
-
-			// 120 BPM
-			final int TEMPO = 0x51;
-			int tempoInMPQ = 500000;
-			byte[] data = new byte[3];
-			data[0] = (byte) ((tempoInMPQ >> 16) & 0xFF);
-			data[1] = (byte) ((tempoInMPQ >> 8) & 0xFF);
-			data[2] = (byte) (tempoInMPQ & 0xFF);
-			MetaMessage message = new MetaMessage();
-			message.setMessage(TEMPO, data, data.length);
-			MidiEvent event = new MidiEvent(message, 0);
-			track.add(event);
-
+		if(sender instanceof Integer)
+		{
+			return String.format("_%08x", sender);
 		}
-
-		// figure out what kind of message it is.
-		MidiMessage msg = null;
-		int mt = me.getMessageType();
-		byte[] b = me.getMessage();
-		if (MidiEventSerializable.SHORT == mt)
-		{
-			ShortMessage m = new ShortMessage();
-			if(b.length == 4)
+		InetSocketAddress address = (InetSocketAddress) sender;
+		return "_" + address.getAddress().getHostAddress() + "_" + address.getPort();
+	}
+	
+	/**
+	 * The interface named with -interface, otherwise the one the kernel routes the group
+	 * through, falling back to loopback on hosts without a route.
+	 */
+	private NetworkInterface getNetworkInterface(InetAddress group) throws Exception
+	{
+		if(interfaceName != null)
+		{
+			NetworkInterface ni = NetworkInterface.getByName(interfaceName);
+			if(ni == null)
 			{
-				m.setMessage(b[0], b[1], b[2], b[3]);
+				throw new Exception("Unknown network interface " + interfaceName);
 			}
-			else
+			return ni;
+		}
+		
+		NetworkInterface ni = null;
+		DatagramSocket probe = new DatagramSocket();
+		try
+		{
+			probe.connect(group, socketPort);
+			ni = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+		}
+		catch(Exception e)
+		{
+			log("No route to %s: %s", group, e.getMessage());
+		}
+		finally
+		{
+			probe.close();
+		}
+		if(ni == null || !ni.supportsMulticast())
+		{
+			ni = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+		}
+		return ni;
+	}
+
+	/**
+	 * Plays the note offs and controller changes a gap left out, from the journal in
+	 * journalState, timed just before the first event of the packet, or with the last
+	 * event received from the sender when the packet holds a fragment.
+	 */
+	private void recover(final Sender sender, ByteBuffer buf) throws Exception
+	{
+		long packetTick = sender.lastTick;
+		long packetSendTime = sender.lastSendTime;
+		if(buf != null && MidiEventCodec.hasFrame(buf))
+		{
+			// tick and send time follow the frame length, type and meta type
+			packetTick = buf.getLong(buf.position() + 6);
+			packetSendTime = buf.getLong(buf.position() + 14);
+		}
+		final long tick = packetTick;
+		final long sendTime = packetSendTime;
+		int count = sender.state.recover(journalState, new MidiChannelState.Handler()
+		{
+			@Override
+			public void recovered(int status, int data1, int data2) throws Exception
 			{
-				m.setMessage(b[0], b[1], b[2]);
+				if((status & 0xF0) == 0x80)
+				{
+					sender.recovered.update(0x90 | status & 0x0F, data1, 1);
+				}
+				byte[] message = (status & 0xF0) == 0xC0 ? new byte[] { (byte) status, (byte) data1 } 
+						: new byte[] { (byte) status, (byte) data1, (byte) data2 };
+				sessions.processEvent(packetSender, new MidiEventSerializable(MidiEventSerializable.SHORT, 0, tick, sendTime, message));
 			}
-			msg = m;
-		} 
-		else if (MidiEventSerializable.SYSEX == mt)
-		{
-			SysexMessage m = new SysexMessage();
-			m.setMessage(b, b.length);
-			msg = m;
-		} 
-		else if (MidiEventSerializable.META == mt)
+		});
+		if(count > 0)
 		{
-			MetaMessage m = new MetaMessage();
-			m.setMessage(me.getMetaType(), b, b.length);
-			msg = m;
+			metrics.recordRecovered(count);
+			log("Recovered %d events from the journal", count);
 		}
+	}
 
+	private void log(String message)
+	{
 		if(debug)
 		{
-			dumpReceiver.send(msg, me.getTick());
+			MidiLog.getInstance().log(message);
 		}
-
-		MidiEvent e = new MidiEvent(msg, (me.getTick() - startTick) / 100);
-
-		track.add(e);
-
 	}
-	
-	private void log(String message)
+
+	private void log(String format, Object... args)
 	{
 		if(debug)
 		{
-			DateTime now = new DateTime();
-			System.out.println(String.format("%s\t%s", now, message));
+			MidiLog.getInstance().log(format, args);
 		}
 	}
 	
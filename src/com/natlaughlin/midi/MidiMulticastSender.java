@@ -1,19 +1,26 @@
 package com.natlaughlin.midi;
 
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Transmitter;
 
 import org.apache.commons.cli.CommandLine;
@@ -23,7 +30,6 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.lang.SerializationUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
 
@@ -37,19 +43,36 @@ public class MidiMulticastSender extends Thread
 	private String hostName;
 	private String deviceName;
 	private int socketPort;
-	private DateTime lastEvent;
+	private int batchMicroseconds;
+	private double lossPercent;
+	private int recoveryBytes;
+	private volatile long lastEvent;
+	
+	private AtomicLong packetCount = new AtomicLong();
+	private AtomicLong eventCount = new AtomicLong();
+	private final MidiMetrics metrics;
 	
 	public static void main(String[] args) throws Exception
 	{
-		MidiMulticastSender mc = new MidiMulticastSender();
-		mc.parseOptions(args);
+		MidiMulticastSender mc = new MidiMulticastSender(args);
 		mc.start();
 		
 	}	
 	
-	public MidiMulticastSender()
+	public MidiMulticastSender() throws Exception
 	{
-		dumpReceiver = new DumpReceiver(new LogPrintStream(System.out));
+		this(new String[0]);
+	}
+	
+	/**
+	 * Parses the options first, so metrics are named after the group from the start
+	 * and nothing is counted into an instance that is never registered.
+	 */
+	public MidiMulticastSender(String[] args) throws Exception
+	{
+		dumpReceiver = new DumpReceiver(MidiLog.getInstance(), false);
+		parseOptions(args);
+		metrics = new MidiMetrics("MidiMulticastSender:" + hostName + ":" + socketPort);
 	}
 
 	
@@ -78,6 +101,21 @@ public class MidiMulticastSender extends Thread
 				.withDescription("Socket port to send MIDI events")
 				.create("port");
 		options.addOption(port);
+		
+		Option batch = OptionBuilder.withArgName(String.valueOf(MidiMulticast.BATCH_MICROSECONDS)).hasArg()
+				.withDescription("Collect MIDI events into one packet for up to this many microseconds (0 sends every event immediately)")
+				.create("batch");
+		options.addOption(batch);
+		
+		Option loss = OptionBuilder.withArgName("percent").hasArg()
+				.withDescription("Drop this share of outgoing packets on purpose, to test repairs")
+				.create("loss");
+		options.addOption(loss);
+		
+		Option recovery = OptionBuilder.withArgName("bytes").hasArg()
+				.withDescription("Add a recovery journal of up to this many bytes to every packet, so receivers can restore notes and controllers after a gap (off by default)")
+				.create("recovery");
+		options.addOption(recovery);
 
 		CommandLineParser parser = new PosixParser();
 		cli = parser.parse(options, args);
@@ -119,6 +157,24 @@ public class MidiMulticastSender extends Thread
 			socketPort = Integer.parseInt(cli.getOptionValue("port"));
 		}
 		
+		batchMicroseconds = MidiMulticast.BATCH_MICROSECONDS;
+		if(cli.hasOption("batch"))
+		{
+			batchMicroseconds = Integer.parseInt(cli.getOptionValue("batch"));
+		}
+		
+		lossPercent = 0;
+		if(cli.hasOption("loss"))
+		{
+			lossPercent = Double.parseDouble(cli.getOptionValue("loss"));
+		}
+		
+		recoveryBytes = MidiMulticast.RECOVERY_BYTES;
+		if(cli.hasOption("recovery"))
+		{
+			recoveryBytes = Integer.parseInt(cli.getOptionValue("recovery"));
+		}
+		
 		
 
 	}
@@ -133,7 +189,13 @@ public class MidiMulticastSender extends Thread
 			public void run()
 			{
 
-				log(String.format("Last MIDI event: %s", lastEvent)); 
+				log("Last MIDI event: %s", lastEvent == 0 ? null : new DateTime(lastEvent)); 
+				
+				long packets = packetCount.getAndSet(0);
+				long events = eventCount.getAndSet(0);
+				log("Packets/sec: %.1f events/packet: %.2f", 
+						packets * 1000.0 / Midi.SENDER_POLL_MILLISECONDS,
+						packets == 0 ? 0.0 : (double) events / packets);
 
 			}
 		}, Midi.SENDER_POLL_MILLISECONDS, Midi.SENDER_POLL_MILLISECONDS);
@@ -142,6 +204,7 @@ public class MidiMulticastSender extends Thread
 	public void run()
 	{
 		
+		metrics.register();
 		startTimer(); 
 		
 		try
@@ -167,24 +230,22 @@ public class MidiMulticastSender extends Thread
 		
 		boolean connected = false;
 		
-		InetAddress group = InetAddress.getByName(hostName);
-		MulticastSocket socket = null;
+		InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(hostName), socketPort);
+		DatagramChannel channel = null;
 		while(!connected)
 		{
 
-			log(String.format("Connecting to MidiMulticastServer group %s %s",hostName, socketPort));
+			log("Connecting to MidiMulticastServer group %s %s",hostName, socketPort);
 			
 			try
 			{
-				socket = new MulticastSocket(socketPort);
-				if(socket != null)
-				{
-					connected = true;
-				}
+				channel = DatagramChannel.open(StandardProtocolFamily.INET);
+				channel.bind(null);
+				connected = true;
 			}
 			catch(Exception e)
 			{
-				log(String.format("Can't create Multicast socket %s %s", hostName, socketPort) );
+				log("Can't create Multicast socket %s %s", hostName, socketPort);
 				Thread.currentThread().sleep(10000);
 			}
 		}
@@ -195,63 +256,285 @@ public class MidiMulticastSender extends Thread
 		ObjectReceiver receiver = new ObjectReceiver();
 
 		receiver.setGroup(group);
-		receiver.setSocket(socket);
+		receiver.setChannel(channel);
+		receiver.setBatchMicroseconds(batchMicroseconds);
+		receiver.setRecoveryBytes(recoveryBytes);
+		if(lossPercent > 0)
+		{
+			receiver.setPacketLoss(new MidiPacketLoss(lossPercent, System.nanoTime()));
+		}
+		receiver.startRetransmitter();
 		t.setReceiver(receiver);
 		
 		log("Transmitting MIDI events");
 	}
 	
+	/**
+	 * Encodes events into one reused packet buffer. Short messages take no allocations.
+	 * 
+	 * Every packet carries this sender's id and a sequence number, and is kept in a
+	 * retransmit history so it can be sent again when a receiver NACKs it. Unless
+	 * recoveryBytes is 0, it also carries the channel state before its events as a
+	 * recovery journal.
+	 */
 	public class ObjectReceiver implements Receiver
 	{
-		private ObjectOutputStream oos;
-		private InetAddress group;
-		private MulticastSocket socket;
+		private final static int PACKET_HEADER_LENGTH = MidiEventCodec.HEADER_LENGTH + MidiEventCodec.SEQUENCE_HEADER_LENGTH;
+		
+		private InetSocketAddress group;
+		private DatagramChannel channel;
+		
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(MidiMulticast.PACKET_SIZE);
+		private int batchCount;
+		private int batchMicroseconds;
+		private Flusher flusher;
+		private volatile long flushDeadline;
+		
+		private final int senderId = new Random().nextInt();
+		private int sequence;
+		private int fragmentId;
+		private MidiRetransmitHistory history = new MidiRetransmitHistory(MidiMulticast.HISTORY_PACKETS, MidiMulticast.PACKET_SIZE);
+		private Retransmitter retransmitter;
+		private MidiPacketLoss packetLoss;
+		private MidiChannelState state = new MidiChannelState();
+		private int recoveryBytes = MidiMulticast.RECOVERY_BYTES;
 
-		public void setGroup(InetAddress value)
+		public void setGroup(InetSocketAddress value)
 		{
 			group = value;
 		}
 		
-		public void setSocket(MulticastSocket value)
+		public void setChannel(DatagramChannel value)
+		{
+			channel = value;
+		}
+		
+		public void setPacketLoss(MidiPacketLoss value)
+		{
+			packetLoss = value;
+		}
+		
+		public synchronized void setRecoveryBytes(int value)
 		{
-			socket = value;
+			// leave room for events; a journal smaller than its channel mask would always be empty
+			recoveryBytes = value < 2 ? 0 : Math.min(value, MidiMulticast.PACKET_SIZE / 2);
 		}
 		
-		public void setOutputStream(OutputStream value) throws Exception
+		/**
+		 * Starts answering NACKs that arrive on the channel.
+		 */
+		public void startRetransmitter()
 		{
-			oos = new ObjectOutputStream(value);
+			if(retransmitter == null)
+			{
+				retransmitter = new Retransmitter();
+				retransmitter.start();
+			}
+		}
+		
+		public void setBatchMicroseconds(int value)
+		{
+			batchMicroseconds = value;
+			if(batchMicroseconds > 0 && flusher == null)
+			{
+				flusher = new Flusher();
+				flusher.start();
+			}
 		}
 		
 		@Override
 		public void close()
 		{
+			try
+			{
+				flush();
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+			if(flusher != null)
+			{
+				flusher.interrupt();
+			}
+			if(retransmitter != null)
+			{
+				retransmitter.interrupt();
+			}
+		}
+		
+		private void writePacketHeader(ByteBuffer buf, int flags)
+		{
+			MidiEventCodec.writeHeader(buf, flags | MidiEventCodec.FLAG_SEQUENCED | (recoveryBytes > 0 ? MidiEventCodec.FLAG_JOURNAL : 0));
+			buf.putInt(senderId);
+			// sequence number is filled in when the packet is sent
+			buf.putInt(0);
+			if(recoveryBytes > 0)
+			{
+				int position = buf.position();
+				buf.putShort((short) 0);
+				buf.putShort(position, (short) state.writeJournal(buf, recoveryBytes));
+			}
+		}
+		
+		private int getPacketHeaderLength()
+		{
+			return PACKET_HEADER_LENGTH + (recoveryBytes > 0 ? 2 + recoveryBytes : 0);
+		}
+		
+		private synchronized void appendShort(ShortMessage sm, long timeStamp, long sendTime) throws Exception
+		{
+			int frameLength = MidiEventCodec.FRAME_HEADER_LENGTH + sm.getLength();
+			if(frameLength > buffer.remaining())
+			{
+				flush();
+			}
 			
+			if(batchCount == 0)
+			{
+				writePacketHeader(buffer, 0);
+			}
+			MidiEventCodec.writeShortFrame(buffer, timeStamp, sendTime, sm.getStatus(), sm.getData1(), sm.getData2(), sm.getLength());
+			state.update(sm.getStatus(), sm.getData1(), sm.getData2());
+			metrics.recordEvent(MidiEventSerializable.SHORT, sm.getLength());
+			appended();
+		}
+		
+		private synchronized void append(MidiEventSerializable mes) throws Exception
+		{
+			int frameLength = MidiEventCodec.getFrameLength(mes);
+			metrics.recordEvent(mes.getMessageType(), frameLength - MidiEventCodec.FRAME_HEADER_LENGTH);
+			
+			if(getPacketHeaderLength() + frameLength > buffer.capacity())
+			{
+				// too large for one packet
+				flush();
+				sendFragments(mes, frameLength);
+				return;
+			}
+			
+			if(frameLength > buffer.remaining())
+			{
+				flush();
+			}
+			
+			if(batchCount == 0)
+			{
+				writePacketHeader(buffer, 0);
+			}
+			MidiEventCodec.writeFrame(buffer, mes);
+			appended();
+		}
+		
+		/**
+		 * Sends the frame in pieces that each fill a packet, see MidiReassemblyBuffer.
+		 */
+		private void sendFragments(MidiEventSerializable mes, int frameLength) throws Exception
+		{
+			ByteBuffer frame = ByteBuffer.allocate(frameLength);
+			MidiEventCodec.writeFrame(frame, mes);
+			frame.flip();
+			
+			int messageId = fragmentId++;
+			int pieceLength = buffer.capacity() - getPacketHeaderLength() - MidiReassemblyBuffer.FRAGMENT_HEADER_LENGTH;
+			while (frame.hasRemaining())
+			{
+				int offset = frame.position();
+				int length = Math.min(pieceLength, frame.remaining());
+				writePacketHeader(buffer, MidiEventCodec.FLAG_FRAGMENT);
+				buffer.putInt(messageId);
+				buffer.putInt(offset);
+				buffer.putInt(frameLength);
+				frame.limit(offset + length);
+				buffer.put(frame);
+				frame.limit(frameLength);
+				try
+				{
+					// the event counts once, with its last piece
+					sendPacket(buffer, frame.hasRemaining() ? 0 : 1);
+				}
+				finally
+				{
+					buffer.clear();
+				}
+				metrics.recordFragment();
+			}
+		}
+		
+		private void appended() throws Exception
+		{
+			batchCount++;
+			
+			if(batchMicroseconds <= 0)
+			{
+				flush();
+			}
+			else if(flushDeadline == 0)
+			{
+				flushDeadline = System.nanoTime() + batchMicroseconds * 1000L;
+				LockSupport.unpark(flusher);
+			}
+		}
+		
+		public synchronized void flush() throws Exception
+		{
+			flushDeadline = 0;
+			
+			if(batchCount == 0)
+				return;
+			
+			try
+			{
+				sendPacket(buffer, batchCount);
+			}
+			finally
+			{
+				buffer.clear();
+				batchCount = 0;
+			}
+		}
+		
+		private void sendPacket(ByteBuffer buf, int events) throws Exception
+		{
+			int seq = sequence++;
+			buf.putInt(MidiEventCodec.HEADER_LENGTH + 4, seq);
+			buf.flip();
+			history.store(seq, buf);
+			if(packetLoss == null || !packetLoss.drop())
+			{
+				channel.send(buf, group);
+			}
+			packetCount.incrementAndGet();
+			eventCount.addAndGet(events);
+			metrics.recordPacket();
 		}
 
 		@Override
 		public void send(MidiMessage message, long timeStamp)
 		{
-		
-			lastEvent = new DateTime();
+			long sendTime = MidiClock.currentTimeMicros();
+			lastEvent = System.currentTimeMillis();
 			
 			if(debug)
 			{
 				dumpReceiver.send(message, timeStamp);
 			}
 			
-			if(message.getMessage().length < 2)
+			if(message.getLength() < 2)
 				return;
 			
 			try
 			{ 
-				MidiEventSerializable mes = new MidiEventSerializable(message, timeStamp);
-				
-				byte[] bytes = SerializationUtils.serialize(mes);
-				DatagramPacket pack = new DatagramPacket(bytes, bytes.length,
-						 group, socket.getLocalPort());
-				socket.send(pack);
-				
-				//oos.writeObject(mes);
+				if(message instanceof ShortMessage)
+				{
+					appendShort((ShortMessage) message, timeStamp, sendTime);
+				}
+				else
+				{
+					MidiEventSerializable mes = new MidiEventSerializable(message, timeStamp);
+					mes.setSendTime(sendTime);
+					append(mes);
+				}
 			}
 			catch(Exception e)
 			{
@@ -259,6 +542,105 @@ public class MidiMulticastSender extends Thread
 			}
 		}
 		
+		/**
+		 * Answers NACKs from receivers by sending them the missing packets again, unicast.
+		 */
+		private class Retransmitter extends Thread
+		{
+			public Retransmitter()
+			{
+				super("MidiMulticastSender retransmitter");
+				setDaemon(true);
+			}
+			
+			@Override
+			public void run()
+			{
+				ByteBuffer in = ByteBuffer.allocate(MidiSequenceTracker.NACK_LENGTH);
+				ByteBuffer repair = ByteBuffer.allocate(MidiMulticast.PACKET_SIZE);
+				while (!isInterrupted() && channel.isOpen())
+				{
+					try
+					{
+						in.clear();
+						SocketAddress from = channel.receive(in);
+						in.flip();
+						int flags = MidiEventCodec.readHeader(in);
+						if((flags & MidiEventCodec.FLAG_NACK) == 0 || in.remaining() < 12)
+							continue;
+						
+						int id = in.getInt();
+						int first = in.getInt();
+						int count = in.getInt();
+						if(id != senderId)
+							continue;
+						
+						metrics.recordNack();
+						for (int i = 0; i < Math.min(count, MidiMulticast.HISTORY_PACKETS); i++)
+						{
+							if(history.copy(first + i, repair))
+							{
+								repair.put(MidiEventCodec.HEADER_LENGTH - 1, 
+										(byte) (repair.get(MidiEventCodec.HEADER_LENGTH - 1) | MidiEventCodec.FLAG_REPAIR));
+								channel.send(repair, from);
+								metrics.recordRetransmit();
+							}
+						}
+					}
+					catch(ClosedChannelException e)
+					{
+						return;
+					}
+					catch(Exception e)
+					{
+						log("Ignoring NACK: %s", e.getMessage());
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Sends a partly filled batch when its deadline passes.
+		 */
+		private class Flusher extends Thread
+		{
+			public Flusher()
+			{
+				super("MidiMulticastSender flusher");
+				setDaemon(true);
+			}
+			
+			@Override
+			public void run()
+			{
+				while (!isInterrupted())
+				{
+					long deadline = flushDeadline;
+					if(deadline == 0)
+					{
+						LockSupport.park(this);
+						continue;
+					}
+					
+					long wait = deadline - System.nanoTime();
+					if(wait > 0)
+					{
+						LockSupport.parkNanos(this, wait);
+						continue;
+					}
+					
+					try
+					{
+						flush();
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		
 	}
 	
 	public void listTransmitterDevices() throws MidiUnavailableException
@@ -301,8 +683,15 @@ public class MidiMulticastSender extends Thread
 	{
 		if(debug)
 		{
-			DateTime now = new DateTime();
-			System.out.println(String.format("%s\t%s", now, message));
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
 		}
 	}
 	
@@ -0,0 +1,36 @@
+package com.natlaughlin.midi;
+
+import java.util.Random;
+
+/**
+ * Drops a share of packets on purpose, to try repairs locally with -loss.
+ * A fixed seed makes runs repeatable.
+ */
+public class MidiPacketLoss
+{
+	private final double probability;
+	private final Random random;
+	private long dropCount;
+
+	public MidiPacketLoss(double percent, long seed)
+	{
+		probability = percent / 100.0;
+		random = new Random(seed);
+	}
+
+	public synchronized boolean drop()
+	{
+		if(probability > 0 && random.nextDouble() < probability)
+		{
+			dropCount++;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized long getDropCount()
+	{
+		return dropCount;
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.natlaughlin.midi;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts back together frames that MidiMulticastSender split over several packets
+ * because they were larger than one, typically sysex patch dumps and sample transfers.
+ *
+ * A fragment packet holds, after the sequence header and any recovery journal:
+ * int message id, int offset of the piece in the frame, int total frame length, then
+ * the piece. Fragments always come in sequenced packets, so MidiSequenceTracker has
+ * already dropped duplicates and NACKed the pieces that went missing.
+ *
+ * At most maxBytes of unfinished frames are held; the oldest is dropped to make room,
+ * and any not finished within expireMilliseconds of its first piece is dropped too.
+ */
+public class MidiReassemblyBuffer
+{
+	public final static int FRAGMENT_HEADER_LENGTH = 12;
+
+	private final int maxBytes;
+	private final int expireMilliseconds;
+	private final MidiMetrics metrics;
+
+	// oldest first
+	private final LinkedHashMap<Long, Message> messages = new LinkedHashMap<Long, Message>();
+	private int bytes;
+
+	private static class Message
+	{
+		byte[] data;
+		int received;
+		long started;
+	}
+
+	public MidiReassemblyBuffer(int maxBytes, int expireMilliseconds, MidiMetrics metrics)
+	{
+		this.maxBytes = maxBytes;
+		this.expireMilliseconds = expireMilliseconds;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds the fragment between the buffer's position and limit. Returns the whole frame,
+	 * ready for MidiEventCodec.readFrame, once its last piece is in, otherwise null.
+	 */
+	public synchronized ByteBuffer add(int senderId, ByteBuffer buf, long now) throws MidiEventCodec.FormatException
+	{
+		if(buf.remaining() < FRAGMENT_HEADER_LENGTH)
+		{
+			throw new MidiEventCodec.FormatException("Truncated fragment");
+		}
+		int messageId = buf.getInt();
+		int offset = buf.getInt();
+		int total = buf.getInt();
+		int length = buf.remaining();
+		if(total < MidiEventCodec.FRAME_HEADER_LENGTH || total > MidiEventCodec.MAX_FRAME_LENGTH + 4
+				|| offset < 0 || length == 0 || length > total - offset)
+		{
+			throw new MidiEventCodec.FormatException(String.format("Bad fragment of %d bytes at %d of %d", length, offset, total));
+		}
+		metrics.recordFragment();
+		expire(now);
+
+		Long key = (long) senderId << 32 | (messageId & 0xFFFFFFFFL);
+		Message message = messages.get(key);
+		if(message == null)
+		{
+			if(total > maxBytes)
+			{
+				metrics.recordReassemblyDrop();
+				return null;
+			}
+			while (bytes + total > maxBytes)
+			{
+				Iterator<Message> it = messages.values().iterator();
+				drop(it.next());
+				it.remove();
+			}
+			message = new Message();
+			message.data = new byte[total];
+			message.started = now;
+			messages.put(key, message);
+			bytes += total;
+		}
+		else if(message.data.length != total)
+		{
+			throw new MidiEventCodec.FormatException(String.format("Fragment of a %d byte frame given as %d", message.data.length, total));
+		}
+
+		buf.get(message.data, offset, length);
+		message.received += length;
+		if(message.received < total)
+		{
+			return null;
+		}
+		messages.remove(key);
+		bytes -= total;
+		return ByteBuffer.wrap(message.data);
+	}
+
+	/**
+	 * Drops frames whose first piece arrived more than expireMilliseconds ago.
+	 */
+	public synchronized void expire(long now)
+	{
+		Iterator<Map.Entry<Long, Message>> it = messages.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Message message = it.next().getValue();
+			if(now - message.started <= expireMilliseconds)
+				return;
+
+			drop(message);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Bytes held for unfinished frames.
+	 */
+	public synchronized int getBytes()
+	{
+		return bytes;
+	}
+
+	private void drop(Message message)
+	{
+		bytes -= message.data.length;
+		metrics.recordReassemblyDrop();
+	}
+
+}
@@ -1,23 +1,40 @@
 package com.natlaughlin.midi;
 
 import org.apache.commons.cli.*;
-import org.apache.commons.io.FileUtils;
-import org.joda.time.DateTime;
-import org.joda.time.Seconds;
 
-import javax.sound.midi.*;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.ObjectInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MidiReceiver extends Thread
 {
+	public final static String MODE_SINGLE = "single";
+	public final static String MODE_NIO = "nio";
+	public final static String MODE_VIRTUAL = "virtual";
+	public final static String MODE_THREADS = "threads";
+	
+	private final static int READ_BUFFER_SIZE = 8192;
+	
 	private boolean debug;
 
 	private CommandLine cli;
@@ -26,14 +43,22 @@ public class MidiReceiver extends Thread
 	private SimpleDateFormat dateFormat;
 	private String directory;
 	private int socketPort;
+	private String mode;
+	private String relayHost;
 	
-	private File midiFile;
-	private DateTime lastEvent;
-	private DumpReceiver dumpReceiver;
-	private Sequence sequence;
-	private Track track;
-	private long startTick;
 	private int secondsToWait;
+	private long rotateEvents;
+	private long rotateBytes;
+	private int rotateSeconds;
+	private MidiArchive archive;
+	private String journalDirectory;
+	private int syncMilliseconds;
+	private MidiJournal journal;
+	private MidiSessions<String> sessions;
+	private LatencyHistogram transitLatency = new LatencyHistogram("Transit", "us");
+	private LatencyHistogram processingLatency = new LatencyHistogram("Processing", "ns");
+	private MidiMetrics metrics;
+	private MidiWriterExecutor writerExecutor;
 
 	private ServerSocket ss;
 	private Socket socket;
@@ -48,7 +73,6 @@ public class MidiReceiver extends Thread
 	
 	public MidiReceiver()
 	{
-		dumpReceiver = new DumpReceiver(new LogPrintStream(System.out));
 	}
 
 	private void parseOptions(String[] args) throws Exception
@@ -64,11 +88,42 @@ public class MidiReceiver extends Thread
 				.create("port");
 		options.addOption(port);
 		
+		Option md = OptionBuilder.withArgName(MODE_SINGLE).hasArg()
+				.withDescription("Connection handling: " + MODE_SINGLE + " (one sender at a time), " 
+						+ MODE_NIO + " (many senders on one selector thread), "
+						+ MODE_VIRTUAL + " (a virtual thread per sender) or "
+						+ MODE_THREADS + " (a platform thread per sender)")
+				.create("mode");
+		options.addOption(md);
+		
+		Option relay = OptionBuilder.withArgName("host").hasArg()
+				.withDescription("Subscribe to the MidiRelay on this host instead of accepting senders (port " + Midi.RELAY_PORT + " unless -port is given)")
+				.create("relay");
+		options.addOption(relay);
+		
 		Option wait = OptionBuilder.withArgName(String.valueOf(Midi.WAIT_SECONDS)).hasArg()
 				.withDescription("Wait this many seconds after the last MIDI event to write the MIDI file")
 				.create("wait");
 		options.addOption(wait);
 		
+		Option maxEvents = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_EVENTS)).hasArg()
+				.withDescription("Start a new MIDI file after this many events (0 never does)")
+				.create("maxevents");
+		options.addOption(maxEvents);
+		
+		Option maxBytes = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_BYTES)).hasArg()
+				.withDescription("Start a new MIDI file before this one grows past this many bytes (0 never does)")
+				.create("maxbytes");
+		options.addOption(maxBytes);
+		
+		Option maxSeconds = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_SECONDS)).hasArg()
+				.withDescription("Start a new MIDI file this many seconds after the last one started (0 never does)")
+				.create("maxseconds");
+		options.addOption(maxSeconds);
+		
+		Option arc = new Option("archive", "Keep a time index of the MIDI files in [dir] for MidiArchive to extract time ranges with");
+		options.addOption(arc);
+		
 		Option pfx = OptionBuilder.withArgName(Midi.FILE_PREFIX).hasArg()
 				.withDescription("MIDI output filename prefix [dir]/[prefix][dateformat].mid")
 				.create("prefix");
@@ -83,6 +138,16 @@ public class MidiReceiver extends Thread
 				.withDescription("MIDI output filename date format [dir]/[prefix][dateformat].mid")
 				.create("dateformat");
 		options.addOption(df);
+		
+		Option jnl = OptionBuilder.withArgName("dir").hasArg()
+				.withDescription("Journal every received MIDI event in this directory and recover unfinished MIDI files on startup")
+				.create("journal");
+		options.addOption(jnl);
+		
+		Option sync = OptionBuilder.withArgName(String.valueOf(Midi.JOURNAL_SYNC_MILLISECONDS)).hasArg()
+				.withDescription("Force the journal to disk every this many milliseconds (0 never forces)")
+				.create("sync");
+		options.addOption(sync);
 
 		CommandLineParser parser = new PosixParser();
 		cli = parser.parse(options, args);
@@ -100,24 +165,65 @@ public class MidiReceiver extends Thread
 			debug = true;
 		}	
 		
-		socketPort = Midi.PORT;
+		relayHost = null;
+		if(cli.hasOption("relay"))
+		{
+			relayHost = cli.getOptionValue("relay");
+		}
+		
+		socketPort = relayHost != null ? Midi.RELAY_PORT : Midi.PORT;
 		if(cli.hasOption("port"))
 		{
 			socketPort = Integer.parseInt(cli.getOptionValue("port"));
 		}
 		
+		mode = MODE_SINGLE;
+		if(cli.hasOption("mode"))
+		{
+			mode = cli.getOptionValue("mode");
+			if(!MODE_SINGLE.equals(mode) && !MODE_NIO.equals(mode)
+					&& !MODE_VIRTUAL.equals(mode) && !MODE_THREADS.equals(mode))
+			{
+				throw new Exception("Unknown mode " + mode);
+			}
+		}
+		
 		secondsToWait = Midi.WAIT_SECONDS;
 		if(cli.hasOption("wait"))
 		{
 			secondsToWait = Integer.parseInt(cli.getOptionValue("wait"));
 		}
 		
+		rotateEvents = Midi.ROTATE_EVENTS;
+		if(cli.hasOption("maxevents"))
+		{
+			rotateEvents = Long.parseLong(cli.getOptionValue("maxevents"));
+		}
+		
+		rotateBytes = Midi.ROTATE_BYTES;
+		if(cli.hasOption("maxbytes"))
+		{
+			rotateBytes = Long.parseLong(cli.getOptionValue("maxbytes"));
+		}
+		
+		rotateSeconds = Midi.ROTATE_SECONDS;
+		if(cli.hasOption("maxseconds"))
+		{
+			rotateSeconds = Integer.parseInt(cli.getOptionValue("maxseconds"));
+		}
+		
 		directory = Midi.FILE_DIR;
 		if(cli.hasOption("dir"))
 		{
 			directory = cli.getOptionValue("dir");
 		}
 		
+		archive = null;
+		if(cli.hasOption("archive"))
+		{
+			archive = new MidiArchive(new File(directory), Midi.ARCHIVE_STRIDE_BYTES);
+		}
+		
 		prefix = Midi.FILE_PREFIX;
 		if(cli.hasOption("prefix"))
 		{
@@ -130,6 +236,18 @@ public class MidiReceiver extends Thread
 			dateFormat = new SimpleDateFormat(cli.getOptionValue("dateformat"));
 		}
 		
+		journalDirectory = null;
+		if(cli.hasOption("journal"))
+		{
+			journalDirectory = cli.getOptionValue("journal");
+		}
+		
+		syncMilliseconds = Midi.JOURNAL_SYNC_MILLISECONDS;
+		if(cli.hasOption("sync"))
+		{
+			syncMilliseconds = Integer.parseInt(cli.getOptionValue("sync"));
+		}
+		
 
 	}
 
@@ -146,40 +264,100 @@ public class MidiReceiver extends Thread
 			public void run()
 			{
 				
-				log(String.format("Last MIDI event: %s", lastEvent)); 
-				
-				DateTime now = new DateTime();
+				log(transitLatency.snapshotAndReset().toString());
+				log(processingLatency.snapshotAndReset().toString());
+				log(writerExecutor.getLatency().snapshotAndReset().toString());
 
-				int secondsSinceLastEvent = 0;
-				if(lastEvent != null)
+			}
+		}, Midi.RECEIVER_POLL_MILLISECONDS, Midi.RECEIVER_POLL_MILLISECONDS);
+	}
+
+	private void openJournal() throws Exception
+	{
+		if(journalDirectory != null && journal == null)
+		{
+			log("Opening journal %s", journalDirectory);
+			
+			MidiJournal value = new MidiJournal(new File(journalDirectory), Midi.JOURNAL_SEGMENT_SIZE, 
+					syncMilliseconds, new LogPrintStream(System.out), debug);
+			value.recover();
+			journal = value;
+		}
+	}
+	
+	/**
+	 * One session per connection, keyed by its address, or one for -mode single. With
+	 * -relay, one per sender of the relay, keyed by the id the relay tags its events with.
+	 */
+	private void openSessions()
+	{
+		if(sessions == null)
+		{
+			sessions = new MidiSessions<String>("MidiReceiver", secondsToWait, Midi.RECEIVER_POLL_MILLISECONDS, 
+					new MidiSessions.Factory<String>()
+			{
+				@Override
+				public MidiSession createSession(String key)
 				{
-					secondsSinceLastEvent = Seconds.secondsBetween(lastEvent,now).getSeconds();
+					return MidiReceiver.this.createSession(MODE_SINGLE.equals(key) ? "" : "_" + key);
 				}
-
-				if (midiFile != null && secondsSinceLastEvent > secondsToWait)
+			});
+		}
+	}
+	
+	private void openMetrics()
+	{
+		if(metrics == null)
+		{
+			metrics = new MidiMetrics("MidiReceiver:" + socketPort);
+			metrics.addGauge("Sessions", new MidiMetrics.Gauge()
+			{
+				@Override
+				public long getValue()
 				{
-					try
-					{
-						writeMidiFile();
-					} 
-					catch (Exception e)
-					{
-						e.printStackTrace();
-					}
+					return sessions.size();
 				}
-
-			}
-		}, Midi.RECEIVER_POLL_MILLISECONDS, Midi.RECEIVER_POLL_MILLISECONDS);
+			});
+			metrics.register();
+		}
 	}
-
+	
+	private void openWriter()
+	{
+		if(writerExecutor == null)
+		{
+			writerExecutor = new MidiWriterExecutor("MidiReceiver", Midi.WRITER_QUEUE_SIZE, metrics);
+		}
+	}
+	
 	public void run()
 	{
 		
 		try
 		{
+			openSessions();
+			openMetrics();
+			openWriter();
+			openJournal();
 			startTimer();
-			openSocket();
-			readSocket();
+			if(relayHost != null)
+			{
+				subscribe();
+				readSocket();
+			}
+			else if(MODE_NIO.equals(mode))
+			{
+				serveSelector();
+			}
+			else if(MODE_VIRTUAL.equals(mode) || MODE_THREADS.equals(mode))
+			{
+				serveThreads();
+			}
+			else
+			{
+				openSocket();
+				readSocket();
+			}
 		}
 		catch(Exception e)
 		{
@@ -198,10 +376,22 @@ public class MidiReceiver extends Thread
 		}
 	}
 	
+	private MidiSession createSession(String suffix)
+	{
+		MidiSession session = new MidiSession(directory, prefix, dateFormat, suffix, new LogPrintStream(System.out), debug);
+		session.setJournal(journal);
+		session.setLatency(transitLatency, processingLatency);
+		session.setMetrics(metrics);
+		session.setWriterExecutor(writerExecutor);
+		session.setRotation(rotateEvents, rotateBytes, rotateSeconds);
+		session.setArchive(archive);
+		return session;
+	}
+	
 	private void openSocket() throws Exception
 	{
 
-		log(String.format("MidiReceiver waiting for connection on socket %s", socketPort));
+		log("MidiReceiver waiting for connection on socket %s", socketPort);
 		
 		if(ss != null)
 			ss.close();
@@ -214,110 +404,353 @@ public class MidiReceiver extends Thread
 		
 		ss = new ServerSocket(socketPort);
 		socket = ss.accept();
+		metrics.recordConnection();
 
 		log("MidiSender connected.");
 		
 	}
 	
+	private void subscribe() throws Exception
+	{
+		log("MidiReceiver subscribing to MidiRelay %s %s", relayHost, socketPort);
+		
+		if(socket != null)
+		{
+			socket.close();
+		}
+		
+		socket = new Socket(relayHost, socketPort);
+		socket.setTcpNoDelay(true);
+		metrics.recordConnection();
+		
+		log("MidiRelay connected.");
+	}
+	
 	private void readSocket() throws Exception
 	{
 		log("Reading MIDI events");
 		
-		ObjectInputStream ois = new ObjectInputStream(
-				socket.getInputStream());
+		readSocket(socket, MODE_SINGLE);
+	}
+	
+	private void readSocket(Socket socket, String name) throws Exception
+	{
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		int flags = MidiEventCodec.readHeader(in);
+		MidiCompressedCodec decompressor = null;
+		if((flags & MidiEventCodec.FLAG_COMPRESSED) != 0)
+		{
+			decompressor = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+		}
+		boolean tagged = (flags & MidiEventCodec.FLAG_SENDER) != 0;
+		Map<Integer, String> senderNames = new HashMap<Integer, String>();
 		
 		while (socket.isConnected())
 		{
+			String key = name;
+			if(tagged)
+			{
+				int id = in.readInt();
+				key = senderNames.get(id);
+				if(key == null)
+				{
+					key = "sender" + id;
+					senderNames.put(id, key);
+				}
+			}
 
-			MidiEventSerializable me = (MidiEventSerializable) ois
-					.readObject();
+			MidiEventSerializable me = decompressor != null ? decompressor.readEvent(in) : MidiEventCodec.readFrame(in);
 
-			processEvent(me);
+			sessions.processEvent(key, me);
 		}
 	}
-
-	private void writeMidiFile() throws Exception
+	
+	private static String getConnectionName(InetSocketAddress remote)
+	{
+		return remote.getAddress().getHostAddress() + "_" + remote.getPort();
+	}
+	
+	/**
+	 * Virtual threads need Java 21, so the factory is looked up at runtime.
+	 */
+	private ExecutorService createExecutor()
 	{
-		if (midiFile != null)
+		if(MODE_VIRTUAL.equals(mode))
 		{
-			log("Writing: " + midiFile.getAbsolutePath());
-			
-			FileUtils.touch(midiFile);
-			MidiSystem.write(sequence, 0, midiFile);
-			midiFile = null;
+			try
+			{
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch(Exception e)
+			{
+				log("Virtual threads are not available on this JVM, using platform threads");
+			}
 		}
+		return Executors.newCachedThreadPool();
 	}
-
-	private void processEvent(MidiEventSerializable me) throws Exception
+	
+	private void serveThreads() throws Exception
 	{
-
-		lastEvent = new DateTime();
-
-		if (midiFile == null)
+		log("MidiReceiver waiting for connections on socket %s", socketPort);
+		
+		ExecutorService executor = createExecutor();
+		
+		if(ss != null)
+			ss.close();
+		
+		ss = new ServerSocket();
+		ss.setReuseAddress(true);
+		ss.bind(new InetSocketAddress(socketPort));
+		
+		try
 		{
-			String filename = String.format("%s%s.mid", prefix,  dateFormat.format(lastEvent.toDate()));
-			midiFile = new File(directory, filename);
-			sequence = new Sequence(Sequence.PPQ, 5000);
-			track = sequence.createTrack();
-			startTick = me.getTick();
-
-			// 120 BPM
-			final int TEMPO = 0x78;
-			int tempoInMPQ = 500000;
-			byte[] data = new byte[3];
-			data[0] = (byte) ((tempoInMPQ >> 16) & 0xFF);
-			data[1] = (byte) ((tempoInMPQ >> 8) & 0xFF);
-			data[2] = (byte) (tempoInMPQ & 0xFF);
-			MetaMessage message = new MetaMessage();
-			message.setMessage(TEMPO, data, data.length);
-			MidiEvent event = new MidiEvent(message, 0);
-			track.add(event);
-
+			while (true)
+			{
+				final Socket connection = ss.accept();
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						readConnection(connection);
+					}
+				});
+			}
 		}
-
-		// figure out what kind of message it is.
-		MidiMessage msg = null;
-		int mt = me.getMessageType();
-		byte[] b = me.getMessage();
-		if (MidiEventSerializable.SHORT == mt)
-		{
-			ShortMessage m = new ShortMessage();
-			if(b.length == 3){
-				m.setMessage(b[0], b[1], b[2]);
+		finally
+		{
+			executor.shutdownNow();
+			ss.close();
+		}
+	}
+	
+	private void readConnection(Socket connection)
+	{
+		String name = getConnectionName((InetSocketAddress) connection.getRemoteSocketAddress());
+		
+		metrics.recordConnection();
+		log("MidiSender connected: %s", name);
+		
+		try
+		{
+			connection.setTcpNoDelay(true);
+			readSocket(connection, name);
+		}
+		catch(EOFException e)
+		{
+			log("MidiSender disconnected: %s", name);
+		}
+		catch(MidiEventCodec.FormatException e)
+		{
+			metrics.recordDecodeError();
+			log("MidiSender %s failed: %s", name, e.getMessage());
+		}
+		catch(Exception e)
+		{
+			log("MidiSender %s failed: %s", name, e.getMessage());
+		}
+		finally
+		{
+			try
+			{
+				connection.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			sessions.close(name);
+		}
+	}
+	
+	private void serveSelector() throws Exception
+	{
+		log("MidiReceiver waiting for connections on socket %s", socketPort);
+		
+		Selector selector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try
+		{
+			server.socket().setReuseAddress(true);
+			server.bind(new InetSocketAddress(socketPort));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			
+			while (true)
+			{
+				selector.select();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					
+					if(!key.isValid())
+						continue;
+					
+					if(key.isAcceptable())
+					{
+						SocketChannel channel = server.accept();
+						if(channel == null)
+							continue;
+						
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						SelectorConnection connection = new SelectorConnection(channel);
+						channel.register(selector, SelectionKey.OP_READ, connection);
+						
+						metrics.recordConnection();
+						log("MidiSender connected: %s", connection.name);
+					}
+					else if(key.isReadable())
+					{
+						SelectorConnection connection = (SelectorConnection) key.attachment();
+						try
+						{
+							if(!connection.read())
+							{
+								log("MidiSender disconnected: %s", connection.name);
+								connection.close();
+								key.cancel();
+							}
+						}
+						catch(Exception e)
+						{
+							if(e instanceof MidiEventCodec.FormatException)
+							{
+								metrics.recordDecodeError();
+							}
+							log("MidiSender %s failed: %s", connection.name, e.getMessage());
+							connection.close();
+							key.cancel();
+						}
+					}
+				}
 			}
-			//m.setMessage(b[0], b[1], b[2]);
-			msg = m;
-		} 
-		else if (MidiEventSerializable.SYSEX == mt)
+		}
+		finally
 		{
-			SysexMessage m = new SysexMessage();
-			m.setMessage(b, b.length);
-			msg = m;
-		} 
-		else if (MidiEventSerializable.META == mt)
+			for(SelectionKey key : selector.keys())
+			{
+				if(key.attachment() instanceof SelectorConnection)
+				{
+					((SelectorConnection) key.attachment()).close();
+				}
+			}
+			selector.close();
+			server.close();
+		}
+	}
+	
+	/**
+	 * Framing state of one sender in selector mode.
+	 */
+	private class SelectorConnection
+	{
+		private SocketChannel channel;
+		private String name;
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private boolean headerRead;
+		private MidiCompressedCodec decompressor;
+		
+		public SelectorConnection(SocketChannel channel) throws IOException
 		{
-			MetaMessage m = new MetaMessage();
-			m.setMessage(me.getMetaType(), b, b.length);
-			msg = m;
+			this.channel = channel;
+			name = getConnectionName((InetSocketAddress) channel.getRemoteAddress());
 		}
-
-		if(debug)
+		
+		/**
+		 * Reads what is available and processes every complete frame.
+		 * Returns false at end of stream.
+		 */
+		public boolean read() throws Exception
+		{
+			int n = channel.read(in);
+			if(n < 0)
+			{
+				return false;
+			}
+			
+			in.flip();
+			if(!headerRead)
+			{
+				if(in.remaining() < MidiEventCodec.HEADER_LENGTH)
+				{
+					in.compact();
+					return true;
+				}
+				int flags = MidiEventCodec.readHeader(in);
+				if((flags & MidiEventCodec.FLAG_COMPRESSED) != 0)
+				{
+					decompressor = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+				}
+				headerRead = true;
+			}
+			
+			if(decompressor != null)
+			{
+				MidiEventSerializable me;
+				while ((me = decompressor.readEvent(in)) != null)
+				{
+					sessions.processEvent(name, me);
+				}
+			}
+			else
+			{
+				while (MidiEventCodec.hasFrame(in))
+				{
+					sessions.processEvent(name, MidiEventCodec.readFrame(in));
+				}
+			}
+			in.compact();
+			
+			// grow for frames larger than the buffer, e.g. sysex dumps
+			int lengthOffset = decompressor != null ? 1 : 0;
+			if(in.position() >= lengthOffset + 4 
+					&& (decompressor == null || (in.get(0) & 0xFF) == MidiCompressedCodec.FRAME))
+			{
+				int frameLength = lengthOffset + 4 + in.getInt(lengthOffset);
+				if(frameLength > in.capacity())
+				{
+					ByteBuffer larger = ByteBuffer.allocate(frameLength);
+					in.flip();
+					larger.put(in);
+					in = larger;
+				}
+			}
+			return true;
+		}
+		
+		public void close()
 		{
-			dumpReceiver.send(msg, me.getTick());
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			
+			sessions.close(name);
 		}
-
-		MidiEvent e = new MidiEvent(msg, (me.getTick() - startTick) / 100);
-
-		track.add(e);
-
 	}
 	
 	private void log(String message)
 	{
 		if(debug)
 		{
-			DateTime now = new DateTime();
-			System.out.println(String.format("%s\t%s", now, message));
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
 		}
 	}
 	
@@ -0,0 +1,693 @@
+package com.natlaughlin.midi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Accepts MidiSender connections like a MidiReceiver and sends every event on to any
+ * number of subscribers over TCP, e.g. MidiReceivers started with -relay, across
+ * segments multicast does not reach. Subscribers get one stream with the events of all
+ * senders, each frame tagged with the id the relay gave its sender's connection.
+ *
+ * One selector thread does all the work. Each event is encoded once and queued for
+ * every subscriber; a subscriber's queue holds at most -queue events, and -policy
+ * decides what happens when it is full, so a slow subscriber never holds up the others:
+ * drop (the oldest queued event), disconnect, or coalesce (controller, pitch bend and
+ * pressure values replaced by a later one for the same target are dropped first, then
+ * the oldest event).
+ */
+public class MidiRelay extends Thread
+{
+	public final static String POLICY_DROP = "drop";
+	public final static String POLICY_DISCONNECT = "disconnect";
+	public final static String POLICY_COALESCE = "coalesce";
+
+	private final static int READ_BUFFER_SIZE = 8192;
+	private final static int WRITE_BUFFER_SIZE = 8192;
+	// small, so a slow subscriber's backlog waits in its queue where the policy applies
+	private final static int SEND_BUFFER_SIZE = 64 * 1024;
+
+	private boolean debug;
+
+	private CommandLine cli;
+
+	private int senderPort;
+	private int subscriberPort;
+	private int queueEvents;
+	private String policy;
+
+	private MidiMetrics metrics;
+	private List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private List<Subscriber> pending = new ArrayList<Subscriber>();
+	private volatile int senderCount;
+	private int nextSenderId = 1;
+	private volatile int subscriberCount;
+
+	public static void main(String[] args) throws Exception
+	{
+		MidiRelay mr = new MidiRelay();
+		mr.parseOptions(args);
+		mr.start();
+	}
+
+	public MidiRelay()
+	{
+	}
+
+	private void parseOptions(String[] args) throws Exception
+	{
+		Options options = new Options();
+		Option help = new Option("help", "Print this message");
+		options.addOption(help);
+		Option dbg = new Option("debug", "Print debugging information");
+		options.addOption(dbg);
+
+		Option port = OptionBuilder.withArgName(String.valueOf(Midi.PORT)).hasArg()
+				.withDescription("Socket port to accept MidiSender connections on")
+				.create("port");
+		options.addOption(port);
+
+		Option subs = OptionBuilder.withArgName(String.valueOf(Midi.RELAY_PORT)).hasArg()
+				.withDescription("Socket port to accept subscribers on")
+				.create("subscribers");
+		options.addOption(subs);
+
+		Option queue = OptionBuilder.withArgName(String.valueOf(Midi.RELAY_QUEUE_EVENTS)).hasArg()
+				.withDescription("Events queued for each subscriber at most")
+				.create("queue");
+		options.addOption(queue);
+
+		Option pol = OptionBuilder.withArgName(Midi.RELAY_POLICY).hasArg()
+				.withDescription("When a subscriber's queue is full: " + POLICY_DROP + " the oldest event, "
+						+ POLICY_DISCONNECT + " the subscriber, or " + POLICY_COALESCE + " controller values, then drop")
+				.create("policy");
+		options.addOption(pol);
+
+		CommandLineParser parser = new PosixParser();
+		cli = parser.parse(options, args);
+
+		if(cli.hasOption("help"))
+		{
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MidiRelay", options );
+			System.exit(0);
+		}
+
+		debug = false;
+		if(cli.hasOption("debug"))
+		{
+			debug = true;
+		}
+
+		senderPort = Midi.PORT;
+		if(cli.hasOption("port"))
+		{
+			senderPort = Integer.parseInt(cli.getOptionValue("port"));
+		}
+
+		subscriberPort = Midi.RELAY_PORT;
+		if(cli.hasOption("subscribers"))
+		{
+			subscriberPort = Integer.parseInt(cli.getOptionValue("subscribers"));
+		}
+
+		queueEvents = Midi.RELAY_QUEUE_EVENTS;
+		if(cli.hasOption("queue"))
+		{
+			queueEvents = Integer.parseInt(cli.getOptionValue("queue"));
+		}
+
+		policy = Midi.RELAY_POLICY;
+		if(cli.hasOption("policy"))
+		{
+			policy = cli.getOptionValue("policy");
+			if(!POLICY_DROP.equals(policy) && !POLICY_DISCONNECT.equals(policy) && !POLICY_COALESCE.equals(policy))
+			{
+				throw new Exception("Unknown policy " + policy);
+			}
+		}
+	}
+
+	private void openMetrics()
+	{
+		if(metrics == null)
+		{
+			metrics = new MidiMetrics("MidiRelay:" + senderPort);
+			metrics.addGauge("Senders", new MidiMetrics.Gauge()
+			{
+				@Override
+				public long getValue()
+				{
+					return senderCount;
+				}
+			});
+			metrics.addGauge("Subscribers", new MidiMetrics.Gauge()
+			{
+				@Override
+				public long getValue()
+				{
+					return subscriberCount;
+				}
+			});
+			metrics.register();
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				openMetrics();
+				serve();
+				return;
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+				log("MidiRelay restarting");
+			}
+			try
+			{
+				sleep(10000);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	private void serve() throws Exception
+	{
+		log("MidiRelay waiting for senders on socket %s and subscribers on socket %s", senderPort, subscriberPort);
+
+		Selector selector = Selector.open();
+		ServerSocketChannel senderServer = ServerSocketChannel.open();
+		ServerSocketChannel subscriberServer = ServerSocketChannel.open();
+		ByteBuffer discard = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try
+		{
+			senderServer.socket().setReuseAddress(true);
+			senderServer.bind(new InetSocketAddress(senderPort));
+			senderServer.configureBlocking(false);
+			senderServer.register(selector, SelectionKey.OP_ACCEPT);
+
+			subscriberServer.socket().setReuseAddress(true);
+			subscriberServer.bind(new InetSocketAddress(subscriberPort));
+			subscriberServer.configureBlocking(false);
+			subscriberServer.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (true)
+			{
+				selector.select();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					if(!key.isValid())
+						continue;
+
+					if(key.isAcceptable())
+					{
+						SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+						if(channel == null)
+							continue;
+
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						metrics.recordConnection();
+						if(key.channel() == senderServer)
+						{
+							Sender sender = new Sender(channel);
+							channel.register(selector, SelectionKey.OP_READ, sender);
+							senderCount++;
+							log("MidiSender connected: %s", sender.name);
+						}
+						else
+						{
+							channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+							Subscriber subscriber = new Subscriber(channel);
+							subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+							subscribers.add(subscriber);
+							subscriberCount = subscribers.size();
+							markPending(subscriber);
+							log("Subscriber connected: %s", subscriber.name);
+						}
+					}
+					else if(key.attachment() instanceof Sender)
+					{
+						Sender sender = (Sender) key.attachment();
+						try
+						{
+							if(!sender.read())
+							{
+								log("MidiSender disconnected: %s", sender.name);
+								sender.close();
+								key.cancel();
+							}
+						}
+						catch(Exception e)
+						{
+							if(e instanceof MidiEventCodec.FormatException)
+							{
+								metrics.recordDecodeError();
+							}
+							log("MidiSender %s failed: %s", sender.name, e.getMessage());
+							sender.close();
+							key.cancel();
+						}
+					}
+					else
+					{
+						Subscriber subscriber = (Subscriber) key.attachment();
+						try
+						{
+							if(key.isReadable())
+							{
+								// subscribers have nothing to say, reading only notices when they leave
+								discard.clear();
+								if(subscriber.channel.read(discard) < 0)
+								{
+									log("Subscriber disconnected: %s", subscriber.name);
+									subscriber.close();
+									continue;
+								}
+							}
+							if(key.isValid() && key.isWritable())
+							{
+								subscriber.write();
+							}
+						}
+						catch(IOException e)
+						{
+							log("Subscriber %s failed: %s", subscriber.name, e.getMessage());
+							subscriber.close();
+						}
+					}
+				}
+
+				writePending();
+			}
+		}
+		finally
+		{
+			for(SelectionKey key : selector.keys())
+			{
+				if(key.attachment() instanceof Sender)
+				{
+					((Sender) key.attachment()).close();
+				}
+				else if(key.attachment() instanceof Subscriber)
+				{
+					((Subscriber) key.attachment()).close();
+				}
+			}
+			subscribers.clear();
+			pending.clear();
+			subscriberCount = 0;
+			selector.close();
+			senderServer.close();
+			subscriberServer.close();
+		}
+	}
+
+	/**
+	 * Queues a frame, after its sender id, for every subscriber; they are written once
+	 * the selected keys have all been handled, so a burst goes out in few writes.
+	 */
+	private void publish(byte[] frame)
+	{
+		long key = getCoalesceKey(frame);
+		// backwards, as a subscriber disconnected by its policy leaves the list
+		for (int i = subscribers.size() - 1; i >= 0; i--)
+		{
+			Subscriber subscriber = subscribers.get(i);
+			if(subscriber.offer(frame, key))
+			{
+				markPending(subscriber);
+			}
+		}
+	}
+
+	private void markPending(Subscriber subscriber)
+	{
+		if(!subscriber.pending)
+		{
+			subscriber.pending = true;
+			pending.add(subscriber);
+		}
+	}
+
+	private void writePending()
+	{
+		for (int i = 0; i < pending.size(); i++)
+		{
+			Subscriber subscriber = pending.get(i);
+			subscriber.pending = false;
+			try
+			{
+				subscriber.write();
+			}
+			catch(IOException e)
+			{
+				log("Subscriber %s failed: %s", subscriber.name, e.getMessage());
+				subscriber.close();
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Non zero for events whose value a later event for the same key from the same
+	 * sender replaces: controllers below the channel mode messages, pitch bend and pressure.
+	 */
+	private static long getCoalesceKey(byte[] frame)
+	{
+		int header = MidiEventCodec.SENDER_ID_LENGTH + MidiEventCodec.FRAME_HEADER_LENGTH;
+		if(frame[MidiEventCodec.SENDER_ID_LENGTH + 4] != MidiEventSerializable.SHORT || frame.length < header + 2)
+			return 0;
+
+		long sender = (long) ((frame[0] & 0xFF) << 24 | (frame[1] & 0xFF) << 16 | (frame[2] & 0xFF) << 8 | (frame[3] & 0xFF)) << 32;
+		int status = frame[header] & 0xFF;
+		int data1 = frame[header + 1] & 0x7F;
+		switch (status & 0xF0)
+		{
+		case 0xB0:
+			return data1 < 120 ? sender | 0x10000 | status << 8 | data1 : 0;
+		case 0xA0:
+			return sender | 0x10000 | status << 8 | data1;
+		case 0xD0:
+		case 0xE0:
+			return sender | 0x10000 | status << 8;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Framing state of one MidiSender connection.
+	 */
+	private class Sender
+	{
+		private SocketChannel channel;
+		private int id;
+		private String name;
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private boolean headerRead;
+		private MidiCompressedCodec decompressor;
+
+		public Sender(SocketChannel channel) throws IOException
+		{
+			this.channel = channel;
+			id = nextSenderId++;
+			InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+			name = remote.getAddress().getHostAddress() + "_" + remote.getPort() + " (sender " + id + ")";
+		}
+
+		/**
+		 * Reads what is available and publishes every complete event.
+		 * Returns false at end of stream.
+		 */
+		public boolean read() throws Exception
+		{
+			int n = channel.read(in);
+			if(n < 0)
+			{
+				return false;
+			}
+
+			in.flip();
+			if(!headerRead)
+			{
+				if(in.remaining() < MidiEventCodec.HEADER_LENGTH)
+				{
+					in.compact();
+					return true;
+				}
+				int flags = MidiEventCodec.readHeader(in);
+				if((flags & MidiEventCodec.FLAG_COMPRESSED) != 0)
+				{
+					decompressor = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+				}
+				headerRead = true;
+			}
+
+			if(decompressor != null)
+			{
+				// subscribers get plain frames, so the stream can be joined at any point
+				MidiEventSerializable me;
+				while ((me = decompressor.readEvent(in)) != null)
+				{
+					ByteBuffer frame = ByteBuffer.allocate(MidiEventCodec.SENDER_ID_LENGTH + MidiEventCodec.getFrameLength(me));
+					frame.putInt(id);
+					MidiEventCodec.writeFrame(frame, me);
+					metrics.recordEvent(me.getMessageType(), frame.capacity() - MidiEventCodec.SENDER_ID_LENGTH - MidiEventCodec.FRAME_HEADER_LENGTH);
+					publish(frame.array());
+				}
+			}
+			else
+			{
+				while (MidiEventCodec.hasFrame(in))
+				{
+					byte[] frame = new byte[MidiEventCodec.SENDER_ID_LENGTH + 4 + in.getInt(in.position())];
+					frame[0] = (byte) (id >>> 24);
+					frame[1] = (byte) (id >>> 16);
+					frame[2] = (byte) (id >>> 8);
+					frame[3] = (byte) id;
+					in.get(frame, MidiEventCodec.SENDER_ID_LENGTH, frame.length - MidiEventCodec.SENDER_ID_LENGTH);
+					metrics.recordEvent(frame[MidiEventCodec.SENDER_ID_LENGTH + 4], frame.length - MidiEventCodec.SENDER_ID_LENGTH - MidiEventCodec.FRAME_HEADER_LENGTH);
+					publish(frame);
+				}
+			}
+			in.compact();
+
+			// grow for frames larger than the buffer, e.g. sysex dumps
+			int lengthOffset = decompressor != null ? 1 : 0;
+			if(in.position() >= lengthOffset + 4
+					&& (decompressor == null || (in.get(0) & 0xFF) == MidiCompressedCodec.FRAME))
+			{
+				int frameLength = lengthOffset + 4 + in.getInt(lengthOffset);
+				if(frameLength > in.capacity())
+				{
+					ByteBuffer larger = ByteBuffer.allocate(frameLength);
+					in.flip();
+					larger.put(in);
+					in = larger;
+				}
+			}
+			return true;
+		}
+
+		public void close()
+		{
+			senderCount--;
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The bounded queue of encoded frames waiting for one subscriber's socket.
+	 */
+	private class Subscriber
+	{
+		private SocketChannel channel;
+		private SelectionKey key;
+		private String name;
+		private ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+		private int coalescible;
+		private ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		// bytes taken from the queue and not yet written, in read mode
+		private ByteBuffer current;
+		private boolean pending;
+		private boolean closed;
+
+		public Subscriber(SocketChannel channel) throws IOException
+		{
+			this.channel = channel;
+			InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+			name = remote.getAddress().getHostAddress() + "_" + remote.getPort();
+
+			MidiEventCodec.writeHeader(out, MidiEventCodec.FLAG_SENDER);
+			out.flip();
+			current = out;
+		}
+
+		/**
+		 * Queues a frame, applying the policy if the queue is full.
+		 * Returns false if the subscriber is gone.
+		 */
+		public boolean offer(byte[] frame, long coalesceKey)
+		{
+			if(closed)
+				return false;
+
+			if(queue.size() >= queueEvents)
+			{
+				if(POLICY_DISCONNECT.equals(policy))
+				{
+					log("Subscriber %s disconnected, %d events behind", name, queue.size());
+					metrics.recordSlowDisconnect();
+					close();
+					return false;
+				}
+				if(POLICY_COALESCE.equals(policy) && coalescible > 0)
+				{
+					coalesce();
+				}
+				if(queue.size() >= queueEvents)
+				{
+					poll();
+					metrics.recordDrop();
+				}
+			}
+
+			queue.add(frame);
+			if(coalesceKey != 0)
+			{
+				coalescible++;
+			}
+			return true;
+		}
+
+		private byte[] poll()
+		{
+			byte[] frame = queue.poll();
+			if(getCoalesceKey(frame) != 0)
+			{
+				coalescible--;
+			}
+			return frame;
+		}
+
+		/**
+		 * Drops queued values that a later event for the same controller replaces.
+		 */
+		private void coalesce()
+		{
+			Set<Long> later = new HashSet<Long>();
+			int removed = 0;
+			Iterator<byte[]> it = queue.descendingIterator();
+			while (it.hasNext())
+			{
+				long key = getCoalesceKey(it.next());
+				if(key != 0 && !later.add(key))
+				{
+					it.remove();
+					removed++;
+				}
+			}
+			coalescible -= removed;
+			metrics.recordCoalesced(removed);
+		}
+
+		/**
+		 * Writes queued frames until the socket stops taking them, then waits for OP_WRITE.
+		 */
+		public void write() throws IOException
+		{
+			if(closed)
+				return;
+
+			while (true)
+			{
+				if(current == null)
+				{
+					if(queue.isEmpty())
+						break;
+
+					if(queue.peek().length > out.capacity())
+					{
+						// larger than the buffer, e.g. a sysex dump
+						current = ByteBuffer.wrap(poll());
+					}
+					else
+					{
+						out.clear();
+						while (!queue.isEmpty() && queue.peek().length <= out.remaining())
+						{
+							out.put(poll());
+						}
+						out.flip();
+						current = out;
+					}
+				}
+
+				channel.write(current);
+				if(current.hasRemaining())
+				{
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				current = null;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		public void close()
+		{
+			if(closed)
+				return;
+
+			closed = true;
+			queue.clear();
+			subscribers.remove(this);
+			subscriberCount = subscribers.size();
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void log(String message)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.natlaughlin.midi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent multicast packets of a sender, kept so they can be sent again
+ * when a receiver reports them missing. Slots are preallocated; packets larger than
+ * a slot are not kept.
+ */
+public class MidiRetransmitHistory
+{
+	private final int capacity;
+	private final int slotSize;
+	private final byte[] data;
+	private final int[] length;
+	private final int[] sequence;
+
+	public MidiRetransmitHistory(int capacity, int slotSize)
+	{
+		this.capacity = capacity;
+		this.slotSize = slotSize;
+		data = new byte[capacity * slotSize];
+		length = new int[capacity];
+		sequence = new int[capacity];
+	}
+
+	/**
+	 * Copies the packet between position and limit, leaving the buffer unchanged.
+	 */
+	public synchronized void store(int seq, ByteBuffer packet)
+	{
+		int slot = getSlot(seq);
+		int count = packet.remaining();
+		if(count > slotSize)
+		{
+			length[slot] = 0;
+			return;
+		}
+		int position = packet.position();
+		packet.get(data, slot * slotSize, count);
+		packet.position(position);
+		length[slot] = count;
+		sequence[slot] = seq;
+	}
+
+	/**
+	 * Copies a stored packet into dst, ready to send. Returns false if it is no longer kept.
+	 */
+	public synchronized boolean copy(int seq, ByteBuffer dst)
+	{
+		int slot = getSlot(seq);
+		if(length[slot] == 0 || sequence[slot] != seq)
+		{
+			return false;
+		}
+		dst.clear();
+		dst.put(data, slot * slotSize, length[slot]);
+		dst.flip();
+		return true;
+	}
+
+	private int getSlot(int seq)
+	{
+		return (seq & 0x7FFFFFFF) % capacity;
+	}
+
+}
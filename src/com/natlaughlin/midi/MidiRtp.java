@@ -0,0 +1,14 @@
+package com.natlaughlin.midi;
+
+public class MidiRtp
+{
+
+	public final static String HOST = "localhost";
+	public final static int PORT = 5004;
+	public final static String SESSION_NAME = "midi";
+	public final static int PAYLOAD_TYPE = 0x61;
+	public final static int PACKET_SIZE = 1400;
+	public final static int INVITE_MILLISECONDS = 1000;
+	public final static int CLOCK_SYNC_MILLISECONDS = 10000;
+
+}
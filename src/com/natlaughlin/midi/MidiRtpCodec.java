@@ -0,0 +1,456 @@
+package com.natlaughlin.midi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * RTP-MIDI payload format (RFC 6295): an RTP header followed by a MIDI command section.
+ *
+ * RTP header: byte 0x80 (version 2), byte marker | payload type, short sequence number,
+ * int timestamp, int SSRC. Timestamps count MidiRtp clock units of 100 microseconds.
+ *
+ * Command section: a header of B J Z P flags and the list length (4 bits, or 12 bits
+ * in a second byte when B is set), then MIDI commands separated by delta times in
+ * SMF variable length format. The first command has a delta time only if Z is set.
+ * Commands use running status; sysex can be split into F0 ... F0, F7 ... F0 and
+ * F7 ... F7 segments. P only says the sender put back a status byte its source had
+ * left out; the byte is in the list either way, so it needs no decoding.
+ *
+ * Packets are written without a recovery journal (J is never set); journals in
+ * received packets are skipped. Encoder and decoder each keep their own instance.
+ */
+public class MidiRtpCodec
+{
+	public interface Handler
+	{
+		/**
+		 * A complete MIDI command at the given time in clock units.
+		 */
+		void onCommand(long time, byte[] b, int offset, int length) throws Exception;
+	}
+
+	public final static int RTP_HEADER_LENGTH = 12;
+	public final static int MICROSECONDS_PER_TICK = 100;
+	public final static int MAX_LIST_LENGTH = 0x0FFF;
+
+	private final static int FLAG_B = 0x80;
+	private final static int FLAG_J = 0x40;
+	private final static int FLAG_Z = 0x20;
+	// the marker bit is set when the MIDI list is not empty
+	private final static int PAYLOAD_TYPE_MARKED = 0x80 | MidiRtp.PAYLOAD_TYPE;
+
+	// encoder
+	private int listStart;
+	private long lastTime;
+	private int encodeStatus;
+	private boolean firstCommand;
+	private boolean firstHasDelta;
+
+	// decoder
+	private int runningStatus;
+	private long lastTimestamp = -1;
+	private final byte[] command = new byte[3];
+	private byte[] sysex = new byte[256];
+	private int sysexLength = -1;
+	// a sysex segment with system real time bytes taken out
+	private byte[] segment = new byte[256];
+
+	/**
+	 * Writes the RTP header and leaves room for the command section header.
+	 */
+	public void beginPacket(ByteBuffer buf, int sequence, long timestamp, int ssrc)
+	{
+		buf.put((byte) 0x80);
+		buf.put((byte) PAYLOAD_TYPE_MARKED);
+		buf.putShort((short) sequence);
+		buf.putInt((int) timestamp);
+		buf.putInt(ssrc);
+		listStart = buf.position();
+		// long header for now, shortened in endPacket if the list fits in 4 bits
+		buf.putShort((short) 0);
+		lastTime = timestamp;
+		encodeStatus = 0;
+		firstCommand = true;
+		firstHasDelta = false;
+	}
+
+	/**
+	 * Appends a complete MIDI message at the given time, which must not be before the
+	 * previous one. Returns false, writing nothing, if it does not fit in the buffer.
+	 */
+	public boolean writeCommand(ByteBuffer buf, long time, byte[] b, int offset, int length)
+	{
+		long delta = Math.max(0, time - lastTime);
+		int status = b[offset] & 0xFF;
+		boolean running = status < 0xF0 && status == encodeStatus;
+		int size = (firstCommand && delta == 0 ? 0 : getDeltaLength(delta)) + length - (running ? 1 : 0);
+		if(size > buf.remaining() || buf.position() + size - listStart - 2 > MAX_LIST_LENGTH)
+		{
+			return false;
+		}
+
+		if(firstCommand)
+		{
+			firstHasDelta = delta != 0;
+		}
+		if(!firstCommand || firstHasDelta)
+		{
+			writeDelta(buf, delta);
+		}
+		buf.put(b, running ? offset + 1 : offset, running ? length - 1 : length);
+
+		if(status < 0xF0)
+		{
+			encodeStatus = status;
+		}
+		else if(status < 0xF8)
+		{
+			encodeStatus = 0;
+		}
+		lastTime = time;
+		firstCommand = false;
+		return true;
+	}
+
+	/**
+	 * Writes the command section header; the packet is then between 0 and the buffer
+	 * position.
+	 */
+	public void endPacket(ByteBuffer buf)
+	{
+		int length = buf.position() - listStart - 2;
+		int flags = firstHasDelta ? FLAG_Z : 0;
+		if(length == 0)
+		{
+			// no commands, clear the marker bit
+			buf.put(listStart - RTP_HEADER_LENGTH + 1, (byte) MidiRtp.PAYLOAD_TYPE);
+		}
+		if(length <= 0x0F)
+		{
+			buf.put(listStart, (byte) (flags | length));
+			for (int i = 0; i < length; i++)
+			{
+				buf.put(listStart + 1 + i, buf.get(listStart + 2 + i));
+			}
+			buf.position(buf.position() - 1);
+		}
+		else
+		{
+			buf.put(listStart, (byte) (FLAG_B | flags | length >> 8));
+			buf.put(listStart + 1, (byte) length);
+		}
+	}
+
+	/**
+	 * Returns true if the buffer holds an RTP packet rather than a session message,
+	 * judging by the version bits.
+	 */
+	public static boolean isRtpPacket(ByteBuffer buf)
+	{
+		return buf.remaining() >= RTP_HEADER_LENGTH && (buf.get(buf.position()) & 0xC0) == 0x80;
+	}
+
+	public static int getSequence(ByteBuffer buf)
+	{
+		return buf.getShort(buf.position() + 2) & 0xFFFF;
+	}
+
+	public static int getSsrc(ByteBuffer buf)
+	{
+		return buf.getInt(buf.position() + 8);
+	}
+
+	/**
+	 * Decodes one packet in a heap buffer, passing every complete command to the
+	 * handler in order.
+	 */
+	public void readPacket(ByteBuffer buf, Handler handler) throws Exception
+	{
+		try
+		{
+			int first = buf.get() & 0xFF;
+			if((first & 0xC0) != 0x80)
+			{
+				throw new MidiEventCodec.FormatException("Not an RTP version 2 packet");
+			}
+			int end = buf.limit();
+			if((first & 0x20) != 0)
+			{
+				// padding, the last byte counts it
+				end -= buf.get(end - 1) & 0xFF;
+			}
+			buf.get();
+			buf.getShort();
+			long timestamp = extendTimestamp(buf.getInt() & 0xFFFFFFFFL);
+			buf.getInt();
+			buf.position(buf.position() + 4 * (first & 0x0F));
+			if((first & 0x10) != 0)
+			{
+				buf.getShort();
+				int words = buf.getShort() & 0xFFFF;
+				buf.position(buf.position() + 4 * words);
+			}
+
+			int header = buf.get() & 0xFF;
+			int length = header & 0x0F;
+			if((header & FLAG_B) != 0)
+			{
+				length = length << 8 | (buf.get() & 0xFF);
+			}
+			int listEnd = buf.position() + length;
+			if(listEnd > end)
+			{
+				throw new MidiEventCodec.FormatException("MIDI list overruns the packet");
+			}
+
+			long time = timestamp;
+			boolean firstCommand = true;
+			while (buf.position() < listEnd)
+			{
+				if(!firstCommand || (header & FLAG_Z) != 0)
+				{
+					time += readDelta(buf);
+				}
+				firstCommand = false;
+				readCommand(buf, listEnd, time, handler);
+			}
+			// a journal, if J is set, follows up to the end of the packet
+			buf.position((header & FLAG_J) != 0 ? end : listEnd);
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new MidiEventCodec.FormatException("Truncated RTP-MIDI packet");
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new MidiEventCodec.FormatException("Truncated RTP-MIDI packet");
+		}
+	}
+
+	private void readCommand(ByteBuffer buf, int listEnd, long time, Handler handler) throws Exception
+	{
+		int status = buf.get(buf.position()) & 0xFF;
+		if(status == 0xF0 || status == 0xF7)
+		{
+			readSysex(buf, listEnd, time, handler);
+			return;
+		}
+		if(status >= 0x80)
+		{
+			buf.get();
+			if(status < 0xF0)
+			{
+				runningStatus = status;
+			}
+			else if(status < 0xF8)
+			{
+				runningStatus = 0;
+			}
+		}
+		else
+		{
+			if(runningStatus == 0)
+			{
+				throw new MidiEventCodec.FormatException("Data byte without running status");
+			}
+			status = runningStatus;
+		}
+
+		int length = getCommandLength(status);
+		if(length < 0)
+		{
+			throw new MidiEventCodec.FormatException("Bad MIDI status " + status);
+		}
+		command[0] = (byte) status;
+		for (int i = 1; i < length; i++)
+		{
+			command[i] = buf.get();
+		}
+		handler.onCommand(time, command, 0, length);
+	}
+
+	/**
+	 * Reads one sysex segment, up to and including its end byte, and passes complete
+	 * messages on. System real time bytes inside it are passed on as they are met and
+	 * left out of the sysex.
+	 */
+	private void readSysex(ByteBuffer buf, int listEnd, long time, Handler handler) throws Exception
+	{
+		int start = buf.position();
+		int start0 = buf.get() & 0xFF;
+		int endByte = -1;
+		boolean realtime = false;
+		while (buf.position() < listEnd)
+		{
+			int b = buf.get() & 0xFF;
+			if(b >= 0xF8)
+			{
+				command[0] = (byte) b;
+				handler.onCommand(time, command, 0, 1);
+				realtime = true;
+			}
+			else if(b >= 0x80)
+			{
+				endByte = b;
+				break;
+			}
+		}
+		runningStatus = 0;
+		if(endByte != 0xF0 && endByte != 0xF7 && endByte != 0xF4)
+		{
+			sysexLength = -1;
+			throw new MidiEventCodec.FormatException("Unterminated sysex");
+		}
+
+		byte[] array = buf.array();
+		int offset = buf.arrayOffset() + start;
+		int length = buf.position() - start;
+		if(realtime)
+		{
+			length = removeRealtime(array, offset, length);
+			array = segment;
+			offset = 0;
+		}
+		if(start0 == 0xF0 && endByte == 0xF7)
+		{
+			sysexLength = -1;
+			handler.onCommand(time, array, offset, length);
+		}
+		else if(start0 == 0xF0 && endByte == 0xF0)
+		{
+			// first segment, keep F0 and the data
+			sysexLength = 0;
+			appendSysex(array, offset, length - 1);
+		}
+		else if(sysexLength < 0 || endByte == 0xF4)
+		{
+			// continuation of a message we did not see begin, or a cancel
+			sysexLength = -1;
+		}
+		else
+		{
+			// middle or last segment, drop the leading F7
+			appendSysex(array, offset + 1, endByte == 0xF7 ? length - 1 : length - 2);
+			if(endByte == 0xF7)
+			{
+				handler.onCommand(time, sysex, 0, sysexLength);
+				sysexLength = -1;
+			}
+		}
+	}
+
+	/**
+	 * Copies the segment to the segment buffer without its system real time bytes and
+	 * returns its new length.
+	 */
+	private int removeRealtime(byte[] b, int offset, int length)
+	{
+		if(segment.length < length)
+		{
+			segment = new byte[Math.max(segment.length * 2, length)];
+		}
+		int n = 0;
+		for (int i = offset; i < offset + length; i++)
+		{
+			if((b[i] & 0xFF) < 0xF8)
+			{
+				segment[n++] = b[i];
+			}
+		}
+		return n;
+	}
+
+	private void appendSysex(byte[] b, int offset, int length)
+	{
+		if(sysexLength + length > sysex.length)
+		{
+			byte[] grown = new byte[Math.max(sysex.length * 2, sysexLength + length)];
+			System.arraycopy(sysex, 0, grown, 0, sysexLength);
+			sysex = grown;
+		}
+		System.arraycopy(b, offset, sysex, sysexLength, length);
+		sysexLength += length;
+	}
+
+	/**
+	 * Widens a 32 bit RTP timestamp relative to the latest one, so time keeps
+	 * increasing across wraps (every 5 days at 10 kHz).
+	 */
+	private long extendTimestamp(long timestamp)
+	{
+		if(lastTimestamp < 0)
+		{
+			lastTimestamp = timestamp;
+			return timestamp;
+		}
+		long extended = lastTimestamp + (int) (timestamp - lastTimestamp);
+		lastTimestamp = Math.max(lastTimestamp, extended);
+		return extended;
+	}
+
+	public static int getCommandLength(int status)
+	{
+		if(status < 0x80)
+		{
+			return -1;
+		}
+		switch (status & 0xF0)
+		{
+		case 0xC0:
+		case 0xD0:
+			return 2;
+		case 0xF0:
+			switch (status)
+			{
+			case 0xF1:
+			case 0xF3:
+				return 2;
+			case 0xF2:
+				return 3;
+			case 0xF0:
+			case 0xF7:
+				return -1;
+			default:
+				return 1;
+			}
+		default:
+			return 3;
+		}
+	}
+
+	private static int getDeltaLength(long delta)
+	{
+		int length = 1;
+		while ((delta >>= 7) != 0 && length < 4)
+		{
+			length++;
+		}
+		return length;
+	}
+
+	private static void writeDelta(ByteBuffer buf, long delta)
+	{
+		delta = Math.min(delta, 0x0FFFFFFF);
+		for (int shift = 7 * (getDeltaLength(delta) - 1); shift > 0; shift -= 7)
+		{
+			buf.put((byte) (0x80 | (delta >> shift) & 0x7F));
+		}
+		buf.put((byte) (delta & 0x7F));
+	}
+
+	private static long readDelta(ByteBuffer buf) throws MidiEventCodec.FormatException
+	{
+		long delta = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			int b = buf.get() & 0xFF;
+			delta = delta << 7 | (b & 0x7F);
+			if((b & 0x80) == 0)
+			{
+				return delta;
+			}
+		}
+		throw new MidiEventCodec.FormatException("Delta time too long");
+	}
+
+}
@@ -0,0 +1,500 @@
+package com.natlaughlin.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Records MIDI events from RTP-MIDI peers (RFC 6295), such as MidiRtpSender or the
+ * network MIDI drivers of macOS and iOS, as the session responder on a control port
+ * and the data port above it.
+ */
+public class MidiRtpReceiver extends Thread
+{
+
+	private boolean debug;
+
+	private CommandLine cli;
+
+	private String prefix;
+	private SimpleDateFormat dateFormat;
+	private String directory;
+
+	private int socketPort;
+	private String sessionName;
+	private DatagramSocket controlSocket;
+	private DatagramSocket dataSocket;
+	private final int ssrc = new Random().nextInt();
+
+	private int secondsToWait;
+	private long rotateEvents;
+	private long rotateBytes;
+	private int rotateSeconds;
+	private MidiArchive archive;
+	private MidiSessions<Integer> sessions;
+
+	private AtomicLong packetCount = new AtomicLong();
+	private AtomicLong eventCount = new AtomicLong();
+	private LatencyHistogram transitLatency = new LatencyHistogram("Transit", "us");
+	private LatencyHistogram processingLatency = new LatencyHistogram("Processing", "ns");
+	private MidiMetrics metrics;
+	private MidiWriterExecutor writerExecutor;
+	private Map<Integer, Peer> peers = new HashMap<Integer, Peer>();
+
+	private static class Peer
+	{
+		MidiRtpCodec codec = new MidiRtpCodec();
+		int expected = -1;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		MidiRtpReceiver mr = new MidiRtpReceiver();
+		mr.parseOptions(args);
+		mr.start();
+	}
+
+	public MidiRtpReceiver()
+	{
+	}
+
+	private void parseOptions(String[] args) throws Exception
+	{
+		Options options = new Options();
+		Option help = new Option("help", "Print this message");
+		options.addOption(help);
+		Option dbg = new Option("debug", "Print debugging information");
+		options.addOption(dbg);
+
+		Option port = OptionBuilder.withArgName(String.valueOf(MidiRtp.PORT)).hasArg()
+				.withDescription("Control port to accept RTP-MIDI sessions on, data arrives on the next port")
+				.create("port");
+		options.addOption(port);
+
+		Option name = OptionBuilder.withArgName(MidiRtp.SESSION_NAME).hasArg()
+				.withDescription("Session name shown to peers")
+				.create("name");
+		options.addOption(name);
+
+		Option wait = OptionBuilder.withArgName(String.valueOf(Midi.WAIT_SECONDS)).hasArg()
+				.withDescription("Wait this many seconds after the last MIDI event to write the MIDI file")
+				.create("wait");
+		options.addOption(wait);
+
+		Option maxEvents = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_EVENTS)).hasArg()
+				.withDescription("Start a new MIDI file after this many events (0 never does)")
+				.create("maxevents");
+		options.addOption(maxEvents);
+
+		Option maxBytes = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_BYTES)).hasArg()
+				.withDescription("Start a new MIDI file before this one grows past this many bytes (0 never does)")
+				.create("maxbytes");
+		options.addOption(maxBytes);
+
+		Option maxSeconds = OptionBuilder.withArgName(String.valueOf(Midi.ROTATE_SECONDS)).hasArg()
+				.withDescription("Start a new MIDI file this many seconds after the last one started (0 never does)")
+				.create("maxseconds");
+		options.addOption(maxSeconds);
+
+		Option arc = new Option("archive", "Keep a time index of the MIDI files in [dir] for MidiArchive to extract time ranges with");
+		options.addOption(arc);
+
+		Option pfx = OptionBuilder.withArgName(Midi.FILE_PREFIX).hasArg()
+				.withDescription("MIDI output filename prefix [dir]/[prefix][dateformat].mid")
+				.create("prefix");
+		options.addOption(pfx);
+
+		Option dir = OptionBuilder.withArgName(Midi.FILE_DIR).hasArg()
+				.withDescription("MIDI output filename directory [dir]/[prefix][dateformat].mid")
+				.create("dir");
+		options.addOption(dir);
+
+		Option df = OptionBuilder.withArgName(Midi.FILE_DATEFORMAT).hasArg()
+				.withDescription("MIDI output filename date format [dir]/[prefix][dateformat].mid")
+				.create("dateformat");
+		options.addOption(df);
+
+		CommandLineParser parser = new PosixParser();
+		cli = parser.parse(options, args);
+
+		if(cli.hasOption("help"))
+		{
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MidiRtpReceiver", options );
+			System.exit(0);
+		}
+
+		debug = false;
+		if(cli.hasOption("debug"))
+		{
+			debug = true;
+		}
+
+		socketPort = MidiRtp.PORT;
+		if(cli.hasOption("port"))
+		{
+			socketPort = Integer.parseInt(cli.getOptionValue("port"));
+		}
+
+		sessionName = MidiRtp.SESSION_NAME;
+		if(cli.hasOption("name"))
+		{
+			sessionName = cli.getOptionValue("name");
+		}
+
+		secondsToWait = Midi.WAIT_SECONDS;
+		if(cli.hasOption("wait"))
+		{
+			secondsToWait = Integer.parseInt(cli.getOptionValue("wait"));
+		}
+
+		rotateEvents = Midi.ROTATE_EVENTS;
+		if(cli.hasOption("maxevents"))
+		{
+			rotateEvents = Long.parseLong(cli.getOptionValue("maxevents"));
+		}
+
+		rotateBytes = Midi.ROTATE_BYTES;
+		if(cli.hasOption("maxbytes"))
+		{
+			rotateBytes = Long.parseLong(cli.getOptionValue("maxbytes"));
+		}
+
+		rotateSeconds = Midi.ROTATE_SECONDS;
+		if(cli.hasOption("maxseconds"))
+		{
+			rotateSeconds = Integer.parseInt(cli.getOptionValue("maxseconds"));
+		}
+
+		directory = Midi.FILE_DIR;
+		if(cli.hasOption("dir"))
+		{
+			directory = cli.getOptionValue("dir");
+		}
+
+		archive = null;
+		if(cli.hasOption("archive"))
+		{
+			archive = new MidiArchive(new File(directory), Midi.ARCHIVE_STRIDE_BYTES);
+		}
+
+		prefix = Midi.FILE_PREFIX;
+		if(cli.hasOption("prefix"))
+		{
+			prefix = cli.getOptionValue("prefix");
+		}
+
+		dateFormat = new SimpleDateFormat(Midi.FILE_DATEFORMAT);
+		if(cli.hasOption("dateformat"))
+		{
+			dateFormat = new SimpleDateFormat(cli.getOptionValue("dateformat"));
+		}
+
+	}
+
+	private void startTimer()
+	{
+		Timer timer = new Timer();
+
+		timer.scheduleAtFixedRate(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+
+				log(transitLatency.snapshotAndReset().toString());
+				log(processingLatency.snapshotAndReset().toString());
+				log(writerExecutor.getLatency().snapshotAndReset().toString());
+
+				long packets = packetCount.getAndSet(0);
+				long events = eventCount.getAndSet(0);
+				log("Packets/sec: %.1f events/packet: %.2f",
+						packets * 1000.0 / Midi.RECEIVER_POLL_MILLISECONDS,
+						packets == 0 ? 0.0 : (double) events / packets);
+
+			}
+		}, Midi.RECEIVER_POLL_MILLISECONDS, Midi.RECEIVER_POLL_MILLISECONDS);
+	}
+
+	public void run()
+	{
+		metrics = new MidiMetrics("MidiRtpReceiver:" + socketPort);
+		metrics.register();
+		writerExecutor = new MidiWriterExecutor("MidiRtpReceiver", Midi.WRITER_QUEUE_SIZE, metrics);
+		// one recording per peer, named after its SSRC
+		sessions = new MidiSessions<Integer>("MidiRtpReceiver", secondsToWait, Midi.RECEIVER_POLL_MILLISECONDS,
+				new MidiSessions.Factory<Integer>()
+		{
+			@Override
+			public MidiSession createSession(Integer peerSsrc)
+			{
+				MidiSession session = new MidiSession(directory, prefix, dateFormat, String.format("_%08x", peerSsrc), 
+						new LogPrintStream(System.out), debug);
+				session.setLatency(transitLatency, processingLatency);
+				session.setMetrics(metrics);
+				session.setWriterExecutor(writerExecutor);
+				session.setRotation(rotateEvents, rotateBytes, rotateSeconds);
+				session.setArchive(archive);
+				return session;
+			}
+		});
+		metrics.addGauge("Sessions", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return sessions.size();
+			}
+		});
+		startTimer();
+
+		while (true)
+		{
+			try
+			{
+				log("MidiRtpReceiver accepting sessions on ports %s and %s", socketPort, socketPort + 1);
+
+				controlSocket = new DatagramSocket(socketPort);
+				dataSocket = new DatagramSocket(socketPort + 1);
+
+				Thread control = new Thread("MidiRtpReceiver control")
+				{
+					@Override
+					public void run()
+					{
+						listen(controlSocket);
+					}
+				};
+				control.setDaemon(true);
+				control.start();
+
+				listen(dataSocket);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				if(controlSocket != null)
+				{
+					controlSocket.close();
+				}
+				if(dataSocket != null)
+				{
+					dataSocket.close();
+				}
+			}
+
+			try
+			{
+				Thread.sleep(MidiRtp.INVITE_MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	private void listen(DatagramSocket socket)
+	{
+		byte[] bytes = new byte[MidiRtp.PACKET_SIZE];
+		DatagramPacket pack = new DatagramPacket(bytes, bytes.length);
+		ByteBuffer reply = ByteBuffer.allocate(MidiRtp.PACKET_SIZE);
+
+		while (!socket.isClosed())
+		{
+			try
+			{
+				pack.setLength(bytes.length);
+				socket.receive(pack);
+			}
+			catch(IOException e)
+			{
+				if(!socket.isClosed())
+				{
+					e.printStackTrace();
+				}
+				return;
+			}
+
+			try
+			{
+				ByteBuffer buf = ByteBuffer.wrap(pack.getData(), 0, pack.getLength());
+				if(MidiRtpSession.isSessionPacket(buf))
+				{
+					handleSession(socket, pack.getSocketAddress(), buf, reply);
+				}
+				else if(MidiRtpCodec.isRtpPacket(buf))
+				{
+					handleRtp(buf);
+				}
+				else
+				{
+					throw new MidiEventCodec.FormatException("Neither a session nor an RTP packet");
+				}
+			}
+			catch(IOException e)
+			{
+				metrics.recordDecodeError();
+				log("Dropping packet from %s: %s", pack.getSocketAddress(), e.getMessage());
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void handleSession(DatagramSocket socket, SocketAddress from, ByteBuffer buf, ByteBuffer reply) throws Exception
+	{
+		reply.clear();
+		switch (MidiRtpSession.getCommand(buf))
+		{
+		case MidiRtpSession.INVITATION:
+			MidiRtpSession.Invitation in = MidiRtpSession.readInvitation(buf);
+			log("Invitation from %s %s on port %s", in.name, from, socket.getLocalPort());
+			MidiRtpSession.writeInvitation(reply, MidiRtpSession.ACCEPTED, in.token, ssrc, sessionName);
+			if(socket == dataSocket)
+			{
+				metrics.recordConnection();
+			}
+			break;
+		case MidiRtpSession.BYE:
+			MidiRtpSession.Invitation bye = MidiRtpSession.readInvitation(buf);
+			log("Session ended by %s", from);
+			synchronized (peers)
+			{
+				peers.remove(bye.ssrc);
+			}
+			sessions.close(bye.ssrc);
+			return;
+		case MidiRtpSession.CLOCK:
+			MidiRtpSession.Clock ck = MidiRtpSession.readClock(buf);
+			if(ck.count == 0)
+			{
+				MidiRtpSession.writeClock(reply, ssrc, 1, ck.timestamps[0], MidiRtpSession.getTimestamp(), 0);
+			}
+			else if(ck.count == 2)
+			{
+				long roundTrip = ck.timestamps[2] - ck.timestamps[0];
+				log("Clock sync with %s: round trip %d us", from, roundTrip * MidiRtpCodec.MICROSECONDS_PER_TICK);
+				return;
+			}
+			else
+			{
+				return;
+			}
+			break;
+		default:
+			// receiver feedback and unknown commands need no answer
+			return;
+		}
+		reply.flip();
+		socket.send(new DatagramPacket(reply.array(), reply.limit(), from));
+	}
+
+	private void handleRtp(ByteBuffer buf) throws Exception
+	{
+		packetCount.incrementAndGet();
+		metrics.recordPacket();
+
+		Peer peer;
+		final int ssrc = MidiRtpCodec.getSsrc(buf);
+		synchronized (peers)
+		{
+			peer = peers.get(ssrc);
+			if(peer == null)
+			{
+				peer = new Peer();
+				peers.put(ssrc, peer);
+			}
+		}
+
+		int sequence = MidiRtpCodec.getSequence(buf);
+		if(peer.expected >= 0 && sequence != peer.expected)
+		{
+			int gap = (sequence - peer.expected) & 0xFFFF;
+			if(gap < 0x8000)
+			{
+				metrics.recordLoss(gap);
+			}
+		}
+		peer.expected = (sequence + 1) & 0xFFFF;
+
+		peer.codec.readPacket(buf, new MidiRtpCodec.Handler()
+		{
+			@Override
+			public void onCommand(long time, byte[] b, int offset, int length) throws Exception
+			{
+				// system real time and other single byte commands are not recorded, as the senders skip them
+				if(length < 2)
+					return;
+				
+				// sysex payloads go without the F0 status byte
+				int type = (b[offset] & 0xFF) == 0xF0 ? MidiEventSerializable.SYSEX : MidiEventSerializable.SHORT;
+				int skip = type == MidiEventSerializable.SYSEX ? 1 : 0;
+				byte[] message = new byte[length - skip];
+				System.arraycopy(b, offset + skip, message, 0, length - skip);
+				eventCount.incrementAndGet();
+				// RTP carries no wall clock send time
+				sessions.processEvent(ssrc, new MidiEventSerializable(type, 0, time * MidiRtpCodec.MICROSECONDS_PER_TICK, message));
+			}
+		});
+	}
+
+	private void log(String message)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
+		}
+	}
+
+	public class LogPrintStream extends PrintStream
+	{
+
+		public LogPrintStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void println(String message)
+		{
+			log(message);
+		}
+
+	}
+
+
+}
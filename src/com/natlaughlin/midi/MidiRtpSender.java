@@ -0,0 +1,522 @@
+package com.natlaughlin.midi;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.joda.time.DateTime;
+
+/**
+ * Sends MIDI events from a device to an RTP-MIDI peer (RFC 6295), such as
+ * MidiRtpReceiver or the network MIDI drivers of macOS and iOS, as the session
+ * initiator.
+ */
+public class MidiRtpSender extends Thread
+{
+	private CommandLine cli;
+	private DumpReceiver dumpReceiver;
+
+	private boolean debug;
+	private String hostName;
+	private String deviceName;
+	private String sessionName;
+	private int socketPort;
+	private volatile long lastEvent;
+
+	private AtomicLong packetCount = new AtomicLong();
+	private AtomicLong eventCount = new AtomicLong();
+	private final MidiMetrics metrics;
+
+	public static void main(String[] args) throws Exception
+	{
+		MidiRtpSender ms = new MidiRtpSender(args);
+		ms.start();
+	}
+
+	public MidiRtpSender() throws Exception
+	{
+		this(new String[0]);
+	}
+
+	/**
+	 * Parses the options first, so metrics are named after the peer from the start.
+	 */
+	public MidiRtpSender(String[] args) throws Exception
+	{
+		dumpReceiver = new DumpReceiver(MidiLog.getInstance(), false);
+		parseOptions(args);
+		metrics = new MidiMetrics("MidiRtpSender:" + hostName + ":" + socketPort);
+	}
+
+	private void parseOptions(String[] args) throws Exception
+	{
+		Options options = new Options();
+		Option help = new Option("help", "Print this message");
+		options.addOption(help);
+		Option dbg = new Option("debug", "Print debugging information");
+		options.addOption(dbg);
+
+		Option printMidi = new Option("list", "Show all MIDI devices");
+		options.addOption(printMidi);
+
+		Option device = OptionBuilder.withArgName("name").hasArg()
+				.withDescription("Use this MIDI device as transmitter")
+				.create("device");
+		options.addOption(device);
+
+		Option host = OptionBuilder.withArgName(MidiRtp.HOST).hasArg()
+				.withDescription("Invite this RTP-MIDI peer to a session")
+				.create("host");
+		options.addOption(host);
+
+		Option port = OptionBuilder.withArgName(String.valueOf(MidiRtp.PORT)).hasArg()
+				.withDescription("Control port of the peer, data goes to the next port")
+				.create("port");
+		options.addOption(port);
+
+		Option name = OptionBuilder.withArgName(MidiRtp.SESSION_NAME).hasArg()
+				.withDescription("Session name shown to the peer")
+				.create("name");
+		options.addOption(name);
+
+		CommandLineParser parser = new PosixParser();
+		cli = parser.parse(options, args);
+
+		debug = false;
+		if(cli.hasOption("debug"))
+		{
+			debug = true;
+		}
+
+		if(cli.hasOption("help"))
+		{
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("MidiRtpSender", options );
+			System.exit(0);
+		}
+
+		if(cli.hasOption("list"))
+		{
+			listTransmitterDevices();
+			System.exit(0);
+		}
+
+		deviceName = "";
+		if(cli.hasOption("device"))
+		{
+			deviceName = cli.getOptionValue("device");
+		}
+
+		hostName = MidiRtp.HOST;
+		if(cli.hasOption("host"))
+		{
+			hostName = cli.getOptionValue("host");
+		}
+
+		socketPort = MidiRtp.PORT;
+		if(cli.hasOption("port"))
+		{
+			socketPort = Integer.parseInt(cli.getOptionValue("port"));
+		}
+
+		sessionName = MidiRtp.SESSION_NAME;
+		if(cli.hasOption("name"))
+		{
+			sessionName = cli.getOptionValue("name");
+		}
+
+	}
+
+	private void startTimer(final RtpReceiver receiver)
+	{
+		Timer timer = new Timer();
+
+		timer.scheduleAtFixedRate(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+
+				log("Last MIDI event: %s", lastEvent == 0 ? null : new DateTime(lastEvent));
+
+				long packets = packetCount.getAndSet(0);
+				long events = eventCount.getAndSet(0);
+				log("Packets/sec: %.1f events/packet: %.2f",
+						packets * 1000.0 / Midi.SENDER_POLL_MILLISECONDS,
+						packets == 0 ? 0.0 : (double) events / packets);
+
+			}
+		}, Midi.SENDER_POLL_MILLISECONDS, Midi.SENDER_POLL_MILLISECONDS);
+
+		// peers end sessions that stop synchronizing clocks
+		timer.scheduleAtFixedRate(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					receiver.syncClock();
+				}
+				catch(Exception e)
+				{
+					log("Clock sync failed: %s", e.getMessage());
+				}
+			}
+		}, MidiRtp.CLOCK_SYNC_MILLISECONDS, MidiRtp.CLOCK_SYNC_MILLISECONDS);
+	}
+
+	public void run()
+	{
+
+		metrics.register();
+
+		try
+		{
+			openMidiDevice();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+
+	}
+
+	public void openMidiDevice() throws Exception
+	{
+
+		log("Opening device matching: " + deviceName);
+
+		MidiDevice device = getInputDeviceByName(deviceName);
+		device.open();
+
+		log("Transmitter device opened");
+
+		RtpReceiver receiver = new RtpReceiver(sessionName);
+		receiver.connect(new InetSocketAddress(InetAddress.getByName(hostName), socketPort));
+		startTimer(receiver);
+
+		Transmitter t = device.getTransmitter();
+		t.setReceiver(receiver);
+
+		log("Transmitting MIDI events");
+	}
+
+	/**
+	 * One RTP-MIDI session: invites the peer on its control and data ports, then sends
+	 * every message in its own packet from a reused buffer. Sysex too large for one
+	 * packet is split into segments.
+	 */
+	public class RtpReceiver implements Receiver
+	{
+		// RTP header, long command section header and a delta time
+		private final static int MAX_COMMAND_LENGTH = MidiRtp.PACKET_SIZE - MidiRtpCodec.RTP_HEADER_LENGTH - 2 - 4;
+
+		private final String name;
+		private final int ssrc = new Random().nextInt();
+		private final int token = new Random().nextInt();
+		private DatagramSocket controlSocket;
+		private DatagramSocket dataSocket;
+		private InetSocketAddress controlAddress;
+		private InetSocketAddress dataAddress;
+
+		private final MidiRtpCodec codec = new MidiRtpCodec();
+		private final ByteBuffer buffer = ByteBuffer.allocate(MidiRtp.PACKET_SIZE);
+		private final DatagramPacket packet = new DatagramPacket(buffer.array(), 0);
+		private final byte[] segment = new byte[MAX_COMMAND_LENGTH];
+		private int sequence = new Random().nextInt(0x10000);
+
+		public RtpReceiver(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Invites the peer on both ports, retrying until it accepts, and starts
+		 * answering its session messages.
+		 */
+		public void connect(InetSocketAddress control) throws Exception
+		{
+			controlAddress = control;
+			dataAddress = new InetSocketAddress(control.getAddress(), control.getPort() + 1);
+			controlSocket = new DatagramSocket();
+			dataSocket = new DatagramSocket();
+
+			invite(controlSocket, controlAddress);
+			invite(dataSocket, dataAddress);
+			metrics.recordConnection();
+
+			Thread listener = new Thread("MidiRtpSender session")
+			{
+				@Override
+				public void run()
+				{
+					listen();
+				}
+			};
+			listener.setDaemon(true);
+			listener.start();
+
+			syncClock();
+		}
+
+		private void invite(DatagramSocket socket, InetSocketAddress address) throws Exception
+		{
+			ByteBuffer buf = ByteBuffer.allocate(MidiRtp.PACKET_SIZE);
+			MidiRtpSession.writeInvitation(buf, MidiRtpSession.INVITATION, token, ssrc, name);
+			buf.flip();
+			DatagramPacket invitation = new DatagramPacket(buf.array(), buf.limit(), address);
+			byte[] bytes = new byte[MidiRtp.PACKET_SIZE];
+			DatagramPacket answer = new DatagramPacket(bytes, bytes.length);
+
+			socket.setSoTimeout(MidiRtp.INVITE_MILLISECONDS);
+			while (true)
+			{
+				log("Inviting RTP-MIDI peer %s", address);
+				socket.send(invitation);
+				try
+				{
+					answer.setLength(bytes.length);
+					socket.receive(answer);
+				}
+				catch(SocketTimeoutException e)
+				{
+					continue;
+				}
+
+				ByteBuffer in = ByteBuffer.wrap(bytes, 0, answer.getLength());
+				if(!MidiRtpSession.isSessionPacket(in))
+					continue;
+
+				MidiRtpSession.Invitation reply = MidiRtpSession.readInvitation(in);
+				if(reply.token != token)
+					continue;
+
+				if(reply.command == MidiRtpSession.ACCEPTED)
+				{
+					log("Session accepted by %s %s", reply.name, address);
+					socket.setSoTimeout(0);
+					return;
+				}
+				if(reply.command == MidiRtpSession.REJECTED)
+				{
+					log("Session rejected by %s %s", reply.name, address);
+					Thread.sleep(MidiRtp.INVITE_MILLISECONDS);
+				}
+			}
+		}
+
+		public void syncClock() throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.allocate(MidiRtpSession.CLOCK_LENGTH);
+			MidiRtpSession.writeClock(buf, ssrc, 0, MidiRtpSession.getTimestamp(), 0, 0);
+			dataSocket.send(new DatagramPacket(buf.array(), buf.position(), dataAddress));
+		}
+
+		private void listen()
+		{
+			byte[] bytes = new byte[MidiRtp.PACKET_SIZE];
+			DatagramPacket pack = new DatagramPacket(bytes, bytes.length);
+			ByteBuffer reply = ByteBuffer.allocate(MidiRtpSession.CLOCK_LENGTH);
+			while (!dataSocket.isClosed())
+			{
+				try
+				{
+					pack.setLength(bytes.length);
+					dataSocket.receive(pack);
+					ByteBuffer in = ByteBuffer.wrap(bytes, 0, pack.getLength());
+					if(!MidiRtpSession.isSessionPacket(in))
+						continue;
+
+					int command = MidiRtpSession.getCommand(in);
+					if(command == MidiRtpSession.CLOCK)
+					{
+						MidiRtpSession.Clock ck = MidiRtpSession.readClock(in);
+						if(ck.count == 1)
+						{
+							reply.clear();
+							MidiRtpSession.writeClock(reply, ssrc, 2, ck.timestamps[0], ck.timestamps[1], MidiRtpSession.getTimestamp());
+							dataSocket.send(new DatagramPacket(reply.array(), reply.position(), dataAddress));
+						}
+					}
+					else if(command == MidiRtpSession.BYE)
+					{
+						log("Session ended by %s", pack.getSocketAddress());
+					}
+				}
+				catch(Exception e)
+				{
+					if(!dataSocket.isClosed())
+					{
+						log("Ignoring session message: %s", e.getMessage());
+					}
+				}
+			}
+		}
+
+		@Override
+		public void send(MidiMessage message, long timeStamp)
+		{
+			lastEvent = System.currentTimeMillis();
+
+			if(debug)
+			{
+				dumpReceiver.send(message, timeStamp);
+			}
+
+			if(message.getLength() < 2)
+				return;
+
+			// device time stamps count from when it opened, if it keeps time at all, while
+			// the peer syncs its clock to ours
+			try
+			{
+				sendCommand(MidiRtpSession.getTimestamp(), message.getMessage(), message.getLength());
+				metrics.recordEvent(message.getStatus() == 0xF0 ? MidiEventSerializable.SYSEX : MidiEventSerializable.SHORT, message.getLength());
+				eventCount.incrementAndGet();
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Sends one message, in segments F0 ... F0, F7 ... F0, F7 ... F7 if it is a sysex
+		 * too long for one packet.
+		 */
+		public synchronized void sendCommand(long time, byte[] b, int length) throws IOException
+		{
+			if(length <= MAX_COMMAND_LENGTH)
+			{
+				sendPacket(time, b, 0, length);
+				return;
+			}
+
+			int offset = 1;
+			int data = length - 2;
+			int chunk = MAX_COMMAND_LENGTH - 2;
+			while (data > 0)
+			{
+				int count = Math.min(chunk, data);
+				segment[0] = (byte) (offset == 1 ? 0xF0 : 0xF7);
+				System.arraycopy(b, offset, segment, 1, count);
+				segment[count + 1] = (byte) (count == data ? 0xF7 : 0xF0);
+				sendPacket(time, segment, 0, count + 2);
+				offset += count;
+				data -= count;
+			}
+		}
+
+		private void sendPacket(long time, byte[] b, int offset, int length) throws IOException
+		{
+			buffer.clear();
+			codec.beginPacket(buffer, sequence, time, ssrc);
+			sequence = (sequence + 1) & 0xFFFF;
+			codec.writeCommand(buffer, time, b, offset, length);
+			codec.endPacket(buffer);
+
+			packet.setLength(buffer.position());
+			packet.setSocketAddress(dataAddress);
+			dataSocket.send(packet);
+			packetCount.incrementAndGet();
+			metrics.recordPacket();
+		}
+
+		/**
+		 * Ends the session with BY on the control port.
+		 */
+		@Override
+		public void close()
+		{
+			try
+			{
+				ByteBuffer buf = ByteBuffer.allocate(MidiRtp.PACKET_SIZE);
+				MidiRtpSession.writeInvitation(buf, MidiRtpSession.BYE, token, ssrc, null);
+				controlSocket.send(new DatagramPacket(buf.array(), buf.position(), controlAddress));
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+			controlSocket.close();
+			dataSocket.close();
+		}
+
+	}
+
+	public void listTransmitterDevices() throws MidiUnavailableException
+	{
+		MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+		for (int i = 0; i < infos.length; i++)
+		{
+			MidiDevice device = MidiSystem.getMidiDevice(infos[i]);
+			if (device.getMaxTransmitters() != 0)
+			{
+				String dName = device.getDeviceInfo().getName();
+				String description = device.getDeviceInfo().getDescription();
+				String vendor = device.getDeviceInfo().getVendor();
+				String version = device.getDeviceInfo().getVersion();
+				System.out.println(String.format("%s\t%s\t%s\t%s", dName, description, vendor, version));
+			}
+		}
+	}
+
+	public MidiDevice getInputDeviceByName(String deviceName) throws MidiUnavailableException
+	{
+		MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+		for (int i = 0; i < infos.length; i++)
+		{
+			MidiDevice device = MidiSystem.getMidiDevice(infos[i]);
+			if (device.getMaxTransmitters() != 0
+					&& device.getDeviceInfo().getName().contains(deviceName))
+			{
+				if(debug)
+				{
+					log("Found device " + device.getDeviceInfo().getName().toString());
+				}
+				return device;
+			}
+		}
+		return null;
+	}
+
+	private void log(String message)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.natlaughlin.midi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Session messages of the AppleMIDI protocol, used by RTP-MIDI peers to set up
+ * sessions on a control port and the data port above it.
+ *
+ * Every message starts with short 0xFFFF and a two letter command:
+ * IN, OK, NO, BY: int protocol version, int initiator token, int SSRC, then a name
+ * ending in a 0 byte (no name for BY)
+ * CK: int SSRC, byte count (0, 1, 2), 3 bytes padding, three long timestamps
+ *
+ * The initiator invites the responder on both ports, then both clocks are compared
+ * with a CK exchange: count 0 from the initiator, 1 back, 2 to finish.
+ */
+public class MidiRtpSession
+{
+	public final static int SIGNATURE = 0xFFFF;
+	public final static int PROTOCOL_VERSION = 2;
+
+	public final static int INVITATION = 0x494E;
+	public final static int ACCEPTED = 0x4F4B;
+	public final static int REJECTED = 0x4E4F;
+	public final static int BYE = 0x4259;
+	public final static int CLOCK = 0x434B;
+	public final static int FEEDBACK = 0x5253;
+
+	public final static int CLOCK_LENGTH = 36;
+
+	/**
+	 * An IN, OK, NO or BY message.
+	 */
+	public static class Invitation
+	{
+		public int command;
+		public int version;
+		public int token;
+		public int ssrc;
+		public String name;
+	}
+
+	/**
+	 * A CK message.
+	 */
+	public static class Clock
+	{
+		public int ssrc;
+		public int count;
+		public long[] timestamps = new long[3];
+	}
+
+	public static boolean isSessionPacket(ByteBuffer buf)
+	{
+		return buf.remaining() >= 4 && (buf.getShort(buf.position()) & 0xFFFF) == SIGNATURE;
+	}
+
+	/**
+	 * Returns the command of a session packet without moving the position.
+	 */
+	public static int getCommand(ByteBuffer buf)
+	{
+		return buf.getShort(buf.position() + 2) & 0xFFFF;
+	}
+
+	public static void writeInvitation(ByteBuffer buf, int command, int token, int ssrc, String name)
+	{
+		buf.putShort((short) SIGNATURE);
+		buf.putShort((short) command);
+		buf.putInt(PROTOCOL_VERSION);
+		buf.putInt(token);
+		buf.putInt(ssrc);
+		if(name != null)
+		{
+			buf.put(name.getBytes(StandardCharsets.UTF_8));
+			buf.put((byte) 0);
+		}
+	}
+
+	public static void writeClock(ByteBuffer buf, int ssrc, int count, long t1, long t2, long t3)
+	{
+		buf.putShort((short) SIGNATURE);
+		buf.putShort((short) CLOCK);
+		buf.putInt(ssrc);
+		buf.put((byte) count);
+		buf.put((byte) 0);
+		buf.putShort((short) 0);
+		buf.putLong(t1);
+		buf.putLong(t2);
+		buf.putLong(t3);
+	}
+
+	public static Invitation readInvitation(ByteBuffer buf) throws MidiEventCodec.FormatException
+	{
+		try
+		{
+			buf.getShort();
+			Invitation in = new Invitation();
+			in.command = buf.getShort() & 0xFFFF;
+			in.version = buf.getInt();
+			in.token = buf.getInt();
+			in.ssrc = buf.getInt();
+			int end = buf.position();
+			while (end < buf.limit() && buf.get(end) != 0)
+			{
+				end++;
+			}
+			byte[] name = new byte[end - buf.position()];
+			buf.get(name);
+			buf.position(buf.limit());
+			in.name = new String(name, StandardCharsets.UTF_8);
+			return in;
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new MidiEventCodec.FormatException("Truncated session message");
+		}
+	}
+
+	public static Clock readClock(ByteBuffer buf) throws MidiEventCodec.FormatException
+	{
+		if(buf.remaining() < CLOCK_LENGTH)
+		{
+			throw new MidiEventCodec.FormatException("Truncated clock message");
+		}
+		buf.getInt();
+		Clock ck = new Clock();
+		ck.ssrc = buf.getInt();
+		ck.count = buf.get() & 0xFF;
+		buf.get();
+		buf.getShort();
+		for (int i = 0; i < 3; i++)
+		{
+			ck.timestamps[i] = buf.getLong();
+		}
+		return ck;
+	}
+
+	/**
+	 * The current time in RTP clock units of 100 microseconds.
+	 */
+	public static long getTimestamp()
+	{
+		return MidiClock.currentTimeMicros() / MidiRtpCodec.MICROSECONDS_PER_TICK;
+	}
+
+}
@@ -1,7 +1,7 @@
 package com.natlaughlin.midi;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.DatagramPacket;
@@ -11,12 +11,14 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Transmitter;
 import javax.sound.sampled.Port.Info;
 
@@ -40,10 +42,14 @@ public class MidiSender extends Thread
 	private String hostName;
 	private String deviceName;
 	private int socketPort;
-	private DateTime lastEvent;
+	private volatile long lastEvent;
 	
 	private MidiDevice device;
 	private Socket socket;
+	private MidiEventRing ring;
+	private NetworkWriter writer;
+	private MidiMetrics metrics;
+	private boolean compressed;
 	
 	private Timer timer;
 	
@@ -59,7 +65,7 @@ public class MidiSender extends Thread
 	
 	public MidiSender()
 	{
-		dumpReceiver = new DumpReceiver(new LogPrintStream(System.out));
+		dumpReceiver = new DumpReceiver(MidiLog.getInstance(), false);
 	}
 
 	
@@ -88,6 +94,9 @@ public class MidiSender extends Thread
 				.withDescription("Socket port to send MIDI events")
 				.create("port");
 		options.addOption(port);
+		
+		Option compress = new Option("compress", "Compress the stream with running status and delta timestamps, for slow links");
+		options.addOption(compress);
 
 		CommandLineParser parser = new PosixParser();
 		cli = parser.parse(options, args);
@@ -129,6 +138,12 @@ public class MidiSender extends Thread
 			socketPort = Integer.parseInt(cli.getOptionValue("port"));
 		}
 		
+		compressed = false;
+		if(cli.hasOption("compress"))
+		{
+			compressed = true;
+		}
+		
 		
 
 	}
@@ -148,7 +163,12 @@ public class MidiSender extends Thread
 			public void run()
 			{
 
-				log(String.format("Last MIDI event: %s", lastEvent)); 
+				log("Last MIDI event: %s", lastEvent == 0 ? null : new DateTime(lastEvent)); 
+				
+				if(ring != null)
+				{
+					log("Queued events: %d overflows: %d", ring.size(), ring.getOverflowCount());
+				}
 			
 			}
 		}, Midi.SENDER_POLL_MILLISECONDS, Midi.SENDER_POLL_MILLISECONDS);
@@ -161,7 +181,7 @@ public class MidiSender extends Thread
 		{
 			startTimer();
 			openMidiDevice();
-			openSocket();
+			startWriter();
 			transmitEvents();
 		}
 		catch(Exception e)
@@ -198,7 +218,7 @@ public class MidiSender extends Thread
 	
 	public void openSocket() throws Exception
 	{
-		log(String.format("Connecting to MidiReceiver %s %s", hostName, String.valueOf(socketPort)));
+		log("Connecting to MidiReceiver %s %s", hostName, String.valueOf(socketPort));
 		
 		if(socket != null)
 		{
@@ -206,6 +226,7 @@ public class MidiSender extends Thread
 		}
 		
 		socket = new Socket(hostName,socketPort);
+		socket.setTcpNoDelay(true);
 		
 		if(socket == null)
 		{
@@ -223,33 +244,135 @@ public class MidiSender extends Thread
 			throw new Exception("Device not available");
 		}
 		
-		if(socket == null)
-		{
-			throw new Exception("Socket not connected");
-		}
-		
 		Transmitter t = device.getTransmitter();
 		ObjectReceiver receiver = new ObjectReceiver();
-		receiver.setMidiSender(this);
-		receiver.setOutputStream(socket.getOutputStream());
+		receiver.setRing(ring);
 		t.setReceiver(receiver);
 		
 		log("Transmitting MIDI events");
 	}
 	
-	public class ObjectReceiver implements Receiver
+	/**
+	 * Starts the thread that sends queued events, once. It owns the socket and reconnects on its own.
+	 */
+	private void startWriter()
+	{
+		if(writer != null)
+			return;
+		
+		ring = new MidiEventRing(Midi.SENDER_RING_SIZE, Midi.SENDER_RING_SLOT_SIZE);
+		
+		metrics = new MidiMetrics("MidiSender:" + hostName + ":" + socketPort);
+		metrics.addGauge("QueueDepth", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return ring.size();
+			}
+		});
+		metrics.addGauge("QueueOverflows", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return ring.getOverflowCount();
+			}
+		});
+		metrics.register();
+		
+		writer = new NetworkWriter();
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	public class NetworkWriter extends Thread implements MidiEventRing.Handler
 	{
-		private ObjectOutputStream oos;
-		private MidiSender midiSender;
+		private DataOutputStream out;
+		private MidiCompressedCodec compressor;
 		
-		public void setMidiSender(MidiSender value)
+		public NetworkWriter()
 		{
-			midiSender = value;
+			super("MidiSender writer");
+		}
+		
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					openSocket();
+					metrics.recordConnection();
+					
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					if(compressed)
+					{
+						compressor = new MidiCompressedCodec(Midi.COMPRESSION_KEYFRAME_EVENTS);
+						MidiEventCodec.writeHeader(out, MidiEventCodec.FLAG_COMPRESSED);
+					}
+					else
+					{
+						compressor = null;
+						MidiEventCodec.writeHeader(out, 0);
+					}
+					out.flush();
+					
+					while (true)
+					{
+						if(ring.drain(this) > 0)
+						{
+							out.flush();
+						}
+						else
+						{
+							ring.await(Midi.SENDER_POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+						}
+					}
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+					metrics.recordReconnect();
+					log("MidiSender reconnecting");
+					try
+					{
+						sleep(TIMEOUT);
+					}
+					catch(InterruptedException ex)
+					{
+						return;
+					}
+				}
+			}
 		}
 
-		public void setOutputStream(OutputStream value) throws Exception
+		@Override
+		public void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] data, int offset, int length) throws Exception
 		{
-			oos = new ObjectOutputStream(value);
+			if(compressor != null)
+			{
+				compressor.writeEvent(out, messageType, metaType, tick, sendTime, data, offset, length);
+			}
+			else
+			{
+				MidiEventCodec.writeFrame(out, messageType, metaType, tick, sendTime, data, offset, length);
+			}
+			metrics.recordEvent(messageType, length);
+		}
+	}
+	
+	/**
+	 * Runs on the device's thread, so it only copies the event into the ring.
+	 */
+	public class ObjectReceiver implements Receiver
+	{
+		private MidiEventRing ring;
+		
+		public void setRing(MidiEventRing value)
+		{
+			ring = value;
 		}
 		
 		@Override
@@ -261,27 +384,28 @@ public class MidiSender extends Thread
 		@Override
 		public void send(MidiMessage message, long timeStamp)
 		{
-			lastEvent = new DateTime();
+			long sendTime = MidiClock.currentTimeMicros();
+			lastEvent = System.currentTimeMillis();
 			
 			if(debug)
 			{
 				dumpReceiver.send(message, timeStamp);
 			}
 			
-			if(message.getMessage().length < 2)
+			if(message.getLength() < 2)
 				return;
 			
-			try
-			{ 
-				MidiEventSerializable mes = new MidiEventSerializable(message, timeStamp);
-				
-				oos.writeObject(mes);
+			if(message instanceof ShortMessage)
+			{
+				// getMessage() would copy the bytes
+				ShortMessage sm = (ShortMessage) message;
+				ring.offerShort(timeStamp, sendTime, sm.getStatus(), sm.getData1(), sm.getData2(), sm.getLength());
 			}
-			catch(Exception e)
+			else
 			{
-				e.printStackTrace();
-				log("MidiSender restarting");
-				midiSender.run();
+				MidiEventSerializable mes = new MidiEventSerializable(message, timeStamp);
+				byte[] b = mes.getMessage();
+				ring.offer(mes.getMessageType(), mes.getMetaType(), timeStamp, sendTime, b, 0, b == null ? 0 : b.length);
 			}
 		}
 		
@@ -327,8 +451,15 @@ public class MidiSender extends Thread
 	{
 		if(debug)
 		{
-			DateTime now = new DateTime();
-			System.out.println(String.format("%s\t%s", now, message));
+			MidiLog.getInstance().log(message);
+		}
+	}
+
+	private void log(String format, Object... args)
+	{
+		if(debug)
+		{
+			MidiLog.getInstance().log(format, args);
 		}
 	}
 	
@@ -0,0 +1,215 @@
+package com.natlaughlin.midi;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the packet sequence numbers of every multicast sender seen by a receiver.
+ *
+ * Packets that skip ahead mark the sequence numbers in between as missing. Missing
+ * packets are NACKed to the sender right away and again after nackMilliseconds,
+ * doubling each time, and given up on after nackRetries attempts or when the gap is
+ * larger than the sender keeps. A NACK is a stream header with FLAG_NACK, then int
+ * sender id, int first sequence number and int count.
+ *
+ * A lost last packet is not noticed until the sender sends again. Senders not heard
+ * from for a while are forgotten with expire(), giving up on their missing packets.
+ */
+public class MidiSequenceTracker
+{
+	public interface NackHandler
+	{
+		void sendNack(SocketAddress sender, ByteBuffer nack) throws Exception;
+	}
+
+	public final static int NACK_LENGTH = MidiEventCodec.HEADER_LENGTH + 12;
+	
+	public final static int REJECTED = 0;
+	public final static int IN_ORDER = 1;
+	/**
+	 * The packet follows missing ones, or is the first seen from its sender.
+	 */
+	public final static int AFTER_GAP = 2;
+	public final static int REPAIRED = 3;
+
+	private final int maxGap;
+	private final int nackMilliseconds;
+	private final int nackRetries;
+	private final MidiMetrics metrics;
+
+	private final Map<Integer, Sender> senders = new HashMap<Integer, Sender>();
+	private final ByteBuffer nack = ByteBuffer.allocate(NACK_LENGTH);
+
+	public MidiSequenceTracker(int maxGap, int nackMilliseconds, int nackRetries, MidiMetrics metrics)
+	{
+		this.maxGap = maxGap;
+		this.nackMilliseconds = nackMilliseconds;
+		this.nackRetries = nackRetries;
+		this.metrics = metrics;
+	}
+
+	private static class Missing
+	{
+		int attempts;
+		long nextNack;
+	}
+
+	private static class Sender
+	{
+		SocketAddress address;
+		int expected;
+		long lastSeen;
+		TreeMap<Integer, Missing> missing = new TreeMap<Integer, Missing>();
+	}
+
+	/**
+	 * Returns REJECTED for duplicates and repairs that are no longer wanted, which
+	 * should not be processed.
+	 */
+	public synchronized int accept(SocketAddress address, int senderId, int sequence, long now)
+	{
+		Sender sender = senders.get(senderId);
+		if(sender == null)
+		{
+			sender = new Sender();
+			sender.address = address;
+			sender.expected = sequence + 1;
+			sender.lastSeen = now;
+			senders.put(senderId, sender);
+			return AFTER_GAP;
+		}
+		sender.address = address;
+		sender.lastSeen = now;
+
+		int ahead = sequence - sender.expected;
+		if(ahead == 0)
+		{
+			sender.expected++;
+			return IN_ORDER;
+		}
+		if(ahead > 0)
+		{
+			metrics.recordLoss(ahead);
+			int gap = Math.min(ahead, maxGap);
+			if(gap < ahead)
+			{
+				metrics.recordGiveUp(ahead - gap);
+			}
+			int first = sequence - gap;
+			for (int i = first; i != sequence; i++)
+			{
+				Missing m = new Missing();
+				m.nextNack = now;
+				sender.missing.put(i, m);
+			}
+			sender.expected = sequence + 1;
+			return AFTER_GAP;
+		}
+		if(sender.missing.remove(sequence) != null)
+		{
+			metrics.recordRepair();
+			return REPAIRED;
+		}
+		return REJECTED;
+	}
+
+	/**
+	 * Sends NACKs that are due, one per run of consecutive missing packets.
+	 */
+	public synchronized void sendNacks(long now, NackHandler handler) throws Exception
+	{
+		for (Map.Entry<Integer, Sender> entry : senders.entrySet())
+		{
+			Sender sender = entry.getValue();
+			if(sender.missing.isEmpty())
+				continue;
+			
+			List<Integer> due = new ArrayList<Integer>();
+			Iterator<Map.Entry<Integer, Missing>> it = sender.missing.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Map.Entry<Integer, Missing> m = it.next();
+				Missing missing = m.getValue();
+				if(missing.nextNack > now)
+					continue;
+
+				if(missing.attempts >= nackRetries)
+				{
+					it.remove();
+					metrics.recordGiveUp(1);
+					continue;
+				}
+				// back off, the repair may just be queued behind newer packets
+				missing.nextNack = now + ((long) nackMilliseconds << missing.attempts);
+				missing.attempts++;
+				due.add(m.getKey());
+			}
+
+			int i = 0;
+			while (i < due.size())
+			{
+				int first = due.get(i);
+				int count = 1;
+				while (i + count < due.size() && due.get(i + count) == first + count)
+				{
+					count++;
+				}
+				nack.clear();
+				MidiEventCodec.writeHeader(nack, MidiEventCodec.FLAG_NACK);
+				nack.putInt(entry.getKey());
+				nack.putInt(first);
+				nack.putInt(count);
+				nack.flip();
+				handler.sendNack(sender.address, nack);
+				metrics.recordNack();
+				i += count;
+			}
+		}
+	}
+
+	/**
+	 * Forgets senders not heard from for idleMilliseconds and returns their ids.
+	 */
+	public synchronized List<Integer> expire(long now, long idleMilliseconds)
+	{
+		List<Integer> expired = Collections.emptyList();
+		Iterator<Map.Entry<Integer, Sender>> it = senders.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Integer, Sender> entry = it.next();
+			Sender sender = entry.getValue();
+			if(now - sender.lastSeen < idleMilliseconds)
+				continue;
+
+			if(!sender.missing.isEmpty())
+			{
+				metrics.recordGiveUp(sender.missing.size());
+			}
+			it.remove();
+			if(expired.isEmpty())
+			{
+				expired = new ArrayList<Integer>();
+			}
+			expired.add(entry.getKey());
+		}
+		return expired;
+	}
+
+	public synchronized int getMissingCount()
+	{
+		int count = 0;
+		for (Sender sender : senders.values())
+		{
+			count += sender.missing.size();
+		}
+		return count;
+	}
+
+}
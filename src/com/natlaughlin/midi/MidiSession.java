@@ -0,0 +1,591 @@
+package com.natlaughlin.midi;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+
+/**
+ * One recording: collects the events of a single sender into a MIDI file
+ * named [dir]/[prefix][dateformat][suffix].mid
+ *
+ * Events go into an active buffer. When it fills, or on flush and writeMidiFile, it is
+ * swapped for a spare and handed whole to the MidiWriterExecutor, if one is set, so
+ * ingest carries on at once while the writer thread encodes it and does the disk I/O.
+ * Without an executor the write happens right away on the calling thread.
+ *
+ * With a reorder window set, events that recent are held back from the hand-off, so
+ * one that arrives late, such as a repaired packet, is still sorted in at its tick.
+ *
+ * With a MidiArchive set, every file is indexed as it is written. Its start time on the
+ * wall clock is where the session's first event arrived plus the sender's ticks since,
+ * so files rotated out of one session join up on the archive's timeline.
+ */
+public class MidiSession
+{
+	private final static int WRITE = 0;
+	private final static int FLUSH = 1;
+	private final static int CLOSE = 2;
+	
+	private boolean debug;
+	
+	private String directory;
+	private String prefix;
+	private SimpleDateFormat dateFormat;
+	private String suffix;
+	
+	private PrintStream log;
+	private DumpReceiver dumpReceiver;
+	
+	private File recoveryFile;
+	private MidiJournal journal;
+	private long journalSessionId;
+	
+	private MidiArchive archive;
+	private long timelineMillis;
+	private long timelineTick;
+	
+	private File midiFile;
+	private volatile long lastEvent;
+	private boolean closed;
+	private MidiEventBuffer buffer = new MidiEventBuffer(1024, 1024);
+	private boolean flushed = true;
+	private long startTick;
+	private String lastFileName;
+	private int sameNameCount;
+	private long reorderTicks;
+	// held back from the last hand-off, at the start of the buffer
+	private int heldEvents;
+	private int heldBytes;
+	
+	private long maxEvents;
+	private long maxBytes;
+	private long maxMilliseconds;
+	private long fileStarted;
+	private long fileEvents;
+	private long fileBytes;
+	// what is sounding, to end one file and start the next with when rotating
+	private final MidiChannelState channelState = new MidiChannelState();
+	private final byte[] stateMessage = new byte[3];
+	private long stateTick;
+	private long stateSendTime;
+	private final MidiChannelState.Handler stateHandler = new MidiChannelState.Handler()
+	{
+		@Override
+		public void recovered(int status, int data1, int data2) throws Exception
+		{
+			stateMessage[0] = (byte) status;
+			stateMessage[1] = (byte) data1;
+			stateMessage[2] = (byte) data2;
+			addEvent(MidiEventSerializable.SHORT, 0, stateTick, stateSendTime, stateMessage, 0, (status & 0xF0) == 0xC0 ? 2 : 3);
+		}
+	};
+	
+	private MidiWriterExecutor writerExecutor;
+	// only touched by write tasks, which run one at a time in order
+	private MidiFileWriter writer;
+	// at most one, the other half of the double buffer
+	private final ArrayDeque<MidiEventBuffer> spareBuffers = new ArrayDeque<MidiEventBuffer>(1);
+	
+	private LatencyHistogram transitLatency;
+	private LatencyHistogram processingLatency;
+	private MidiMetrics metrics;
+	
+	public MidiSession(String directory, String prefix, SimpleDateFormat dateFormat, String suffix, PrintStream log, boolean debug)
+	{
+		this.directory = directory;
+		this.prefix = prefix;
+		this.dateFormat = (SimpleDateFormat) dateFormat.clone();
+		this.suffix = suffix;
+		this.log = log;
+		this.debug = debug;
+		dumpReceiver = new DumpReceiver(MidiLog.getInstance(), false);
+	}
+	
+	/**
+	 * Records into exactly this file, used when rebuilding recordings from a journal.
+	 */
+	public MidiSession(File recoveryFile, PrintStream log, boolean debug)
+	{
+		this.recoveryFile = recoveryFile;
+		this.log = log;
+		this.debug = debug;
+		dumpReceiver = new DumpReceiver(MidiLog.getInstance(), false);
+	}
+	
+	public void setJournal(MidiJournal value)
+	{
+		journal = value;
+	}
+	
+	public void setArchive(MidiArchive value)
+	{
+		archive = value;
+	}
+	
+	/**
+	 * Records sender to receiver transit (microseconds) and time spent in processEvent (nanoseconds).
+	 */
+	public void setLatency(LatencyHistogram transit, LatencyHistogram processing)
+	{
+		transitLatency = transit;
+		processingLatency = processing;
+	}
+	
+	public void setMetrics(MidiMetrics value)
+	{
+		metrics = value;
+	}
+	
+	public void setWriterExecutor(MidiWriterExecutor value)
+	{
+		writerExecutor = value;
+	}
+	
+	/**
+	 * Keeps events within this many milliseconds of the sender's latest one out of
+	 * writes and flushes, until the file is written.
+	 */
+	public synchronized void setReorderWindow(int milliseconds)
+	{
+		// a tick is 100 microseconds
+		reorderTicks = milliseconds * 10L;
+	}
+	
+	/**
+	 * Starts a new file once the current one holds maxEvents events, would grow past
+	 * maxBytes or was started maxSeconds ago, whichever comes first; 0 turns a limit off.
+	 * Limits are checked as events arrive.
+	 */
+	public synchronized void setRotation(long maxEvents, long maxBytes, int maxSeconds)
+	{
+		this.maxEvents = maxEvents;
+		this.maxBytes = maxBytes;
+		maxMilliseconds = maxSeconds * 1000L;
+	}
+	
+	public DateTime getLastEvent()
+	{
+		long last = lastEvent;
+		return last == 0 ? null : new DateTime(last);
+	}
+	
+	public long getLastEventMillis()
+	{
+		return lastEvent;
+	}
+	
+	public synchronized boolean isRecording()
+	{
+		return midiFile != null;
+	}
+	
+	public synchronized boolean isIdle(int secondsToWait)
+	{
+		if(midiFile == null || lastEvent == 0)
+		{
+			return false;
+		}
+		return (System.currentTimeMillis() - lastEvent) / 1000 > secondsToWait;
+	}
+	
+	/**
+	 * Stops taking events once none came for more than secondsToWait; processEvent
+	 * returns false from then on. Returns whether the session is closed.
+	 */
+	public synchronized boolean closeIfIdle(int secondsToWait)
+	{
+		if(!closed && lastEvent != 0 && (System.currentTimeMillis() - lastEvent) / 1000 > secondsToWait)
+		{
+			closed = true;
+		}
+		return closed;
+	}
+	
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+	
+	/**
+	 * Stops taking events and writes the MIDI file.
+	 */
+	public synchronized void close() throws Exception
+	{
+		closed = true;
+		writeMidiFile();
+	}
+	
+	public synchronized void writeMidiFile() throws Exception
+	{
+		if (midiFile != null)
+		{
+			log.println("Writing: " + midiFile.getAbsolutePath());
+			
+			midiFile = null;
+			handOff(CLOSE);
+		}
+	}
+	
+	/**
+	 * Pushes buffered events of the current recording to disk.
+	 */
+	public synchronized void flush() throws Exception
+	{
+		if (midiFile != null && !(flushed && buffer.size() == heldEvents))
+		{
+			handOff(FLUSH);
+		}
+	}
+	
+	/**
+	 * Swaps in a spare buffer for ingest to carry on with and writes the full one, but
+	 * for the reorder window unless the file is done.
+	 */
+	private void handOff(final int action) throws Exception
+	{
+		final MidiEventBuffer events = buffer;
+		final long journalSession = journalSessionId;
+		buffer = takeSpareBuffer();
+		flushed = action != WRITE;
+		heldEvents = 0;
+		heldBytes = 0;
+		if(action != CLOSE && reorderTicks > 0)
+		{
+			events.holdBack(events.getLastTick() - reorderTicks, buffer);
+			heldEvents = buffer.size();
+			heldBytes = buffer.getArenaSize();
+		}
+		
+		submit(new MidiWriterExecutor.Task()
+		{
+			@Override
+			public void write() throws Exception
+			{
+				try
+				{
+					if(writer == null)
+					{
+						// the file could not be opened
+						return;
+					}
+					events.writeTo(writer);
+					if(action == CLOSE)
+					{
+						writer.close();
+						if(journal != null)
+						{
+							journal.closeSession(journalSession);
+						}
+					}
+					else if(action == FLUSH)
+					{
+						writer.flush();
+					}
+					if(metrics != null)
+					{
+						metrics.recordFileWrite();
+						if(action == CLOSE)
+						{
+							metrics.recordFileWritten();
+						}
+					}
+				}
+				finally
+				{
+					if(action == CLOSE)
+					{
+						writer = null;
+					}
+					events.clear();
+					giveSpareBuffer(events);
+				}
+			}
+		});
+	}
+	
+	private void submit(MidiWriterExecutor.Task task) throws Exception
+	{
+		if(writerExecutor != null)
+		{
+			writerExecutor.submit(task);
+		}
+		else
+		{
+			task.write();
+		}
+	}
+	
+	private MidiEventBuffer takeSpareBuffer()
+	{
+		synchronized (spareBuffers)
+		{
+			MidiEventBuffer spare = spareBuffers.poll();
+			// none while the writer still has it, when it is behind
+			return spare != null ? spare : new MidiEventBuffer(1024, 1024);
+		}
+	}
+	
+	private void giveSpareBuffer(MidiEventBuffer events)
+	{
+		synchronized (spareBuffers)
+		{
+			if(spareBuffers.isEmpty())
+			{
+				spareBuffers.add(events);
+			}
+		}
+	}
+
+	public boolean processEvent(MidiEventSerializable me) throws Exception
+	{
+		byte[] b = me.getMessage();
+		return processEvent(me.getMessageType(), me.getMetaType(), me.getTick(), me.getSendTime(), b, 0, b == null ? 0 : b.length);
+	}
+	
+	/**
+	 * Records an event straight from a decoder's buffer; the bytes are copied, so the
+	 * buffer can be reused once this returns. Returns false, recording nothing, once
+	 * the session is closed.
+	 */
+	public boolean processEvent(int messageType, int metaType, long eventTick, long sendTime, byte[] b, int offset, int length) throws Exception
+	{
+		if(transitLatency == null || processingLatency == null)
+		{
+			return bufferEvent(messageType, metaType, eventTick, sendTime, b, offset, length);
+		}
+		
+		long start = System.nanoTime();
+		if(sendTime != 0)
+		{
+			transitLatency.record(MidiClock.currentTimeMicros() - sendTime);
+		}
+		boolean buffered = bufferEvent(messageType, metaType, eventTick, sendTime, b, offset, length);
+		processingLatency.record(System.nanoTime() - start);
+		return buffered;
+	}
+	
+	private synchronized boolean bufferEvent(int mt, int metaType, long eventTick, long sendTime, byte[] b, int offset, int length) throws Exception
+	{
+		if(closed)
+		{
+			return false;
+		}
+
+		lastEvent = System.currentTimeMillis();
+
+		if(midiFile != null && isRotationDue(mt, b, offset, length))
+		{
+			rotate(eventTick, sendTime);
+		}
+		if (midiFile == null)
+		{
+			timelineMillis = lastEvent;
+			timelineTick = eventTick;
+			openFile(eventTick);
+		}
+
+		addEvent(mt, metaType, eventTick, sendTime, b, offset, length);
+		fileEvents++;
+		if(MidiEventSerializable.SHORT == mt && isRotating())
+		{
+			channelState.update(b[offset] & 0xFF, length > 1 ? b[offset + 1] & 0xFF : 0, length > 2 ? b[offset + 2] & 0xFF : 0);
+		}
+		
+		if(metrics != null)
+		{
+			metrics.recordEvent(mt, length);
+		}
+
+		if(debug)
+		{
+			if(MidiEventSerializable.SHORT == mt)
+			{
+				dumpReceiver.sendShort(b[offset] & 0xFF, length > 1 ? b[offset + 1] & 0xFF : 0, length > 2 ? b[offset + 2] & 0xFF : 0, eventTick);
+			}
+			else
+			{
+				byte[] copy = new byte[length];
+				System.arraycopy(b, offset, copy, 0, length);
+				dumpReceiver.send(toMidiMessage(new MidiEventSerializable(mt, metaType, eventTick, sendTime, copy)), eventTick);
+			}
+		}
+		
+		return true;
+	}
+	
+	private void openFile(long eventTick) throws Exception
+	{
+		if(recoveryFile != null)
+		{
+			midiFile = recoveryFile;
+		}
+		else
+		{
+			String filename = String.format("%s%s%s", prefix,  dateFormat.format(new Date(lastEvent)), suffix);
+			// a file rotated out within the same date format unit would be overwritten
+			sameNameCount = filename.equals(lastFileName) ? sameNameCount + 1 : 0;
+			lastFileName = filename;
+			if(sameNameCount > 0)
+			{
+				filename += "-" + sameNameCount;
+			}
+			midiFile = new File(directory, filename + ".mid");
+		}
+		if(journal != null)
+		{
+			journalSessionId = journal.openSession(midiFile);
+		}
+		final File file = midiFile;
+		final MidiArchive fileArchive = recoveryFile == null ? archive : null;
+		// ticks are microseconds
+		final long startMillis = timelineMillis + (eventTick - timelineTick) / 1000;
+		submit(new MidiWriterExecutor.Task()
+		{
+			@Override
+			public void write() throws Exception
+			{
+				FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+				writer = new MidiFileWriter(file, MidiArchive.RESOLUTION);
+				if(fileArchive != null)
+				{
+					writer.setIndex(fileArchive.openFile(file, startMillis));
+				}
+			}
+		});
+		startTick = eventTick;
+		fileStarted = lastEvent;
+		fileEvents = 0;
+		fileBytes = 0;
+		
+		log.println("Recording: " + midiFile.getAbsolutePath());
+
+		// 120 BPM
+		final int TEMPO = 0x51;
+		int tempoInMPQ = 500000;
+		byte[] data = new byte[3];
+		data[0] = (byte) ((tempoInMPQ >> 16) & 0xFF);
+		data[1] = (byte) ((tempoInMPQ >> 8) & 0xFF);
+		data[2] = (byte) (tempoInMPQ & 0xFF);
+		buffer.addMeta(0, TEMPO, data, 0, data.length);
+	}
+	
+	/**
+	 * Journals the event and adds it to the current file.
+	 */
+	private void addEvent(int mt, int metaType, long eventTick, long sendTime, byte[] b, int offset, int length) throws Exception
+	{
+		if(journal != null)
+		{
+			journal.appendEvent(journalSessionId, mt, metaType, eventTick, sendTime, b, offset, length);
+		}
+
+		long tick = (eventTick - startTick) / 100;
+		
+		if (MidiEventSerializable.SHORT == mt)
+		{
+			if(length < 1)
+			{
+				throw new Exception("Empty short message");
+			}
+			// system messages such as tune request or clock are one byte long
+			buffer.addShort(tick, b[offset] & 0xFF, length > 1 ? b[offset + 1] & 0xFF : 0, length > 2 ? b[offset + 2] & 0xFF : 0, length);
+		} 
+		else if (MidiEventSerializable.SYSEX == mt)
+		{
+			buffer.addSysex(tick, b, offset, length);
+		} 
+		else if (MidiEventSerializable.META == mt)
+		{
+			buffer.addMeta(tick, metaType, b, offset, length);
+		}
+		else
+		{
+			throw new Exception("Unknown message type " + mt);
+		}
+		fileBytes += getEncodedLength(mt, b, offset, length);
+		
+		if(buffer.size() >= heldEvents + Midi.SESSION_BUFFER_EVENTS || buffer.getArenaSize() >= heldBytes + Midi.SESSION_BUFFER_BYTES)
+		{
+			handOff(WRITE);
+		}
+	}
+	
+	/**
+	 * Most bytes the event can take in the file: delta time, status, length and data.
+	 * System messages in a track are escaped with F7 and a length.
+	 */
+	private static int getEncodedLength(int mt, byte[] b, int offset, int length)
+	{
+		if(MidiEventSerializable.SHORT == mt)
+		{
+			return length > 0 && (b[offset] & 0xFF) >= 0xF0 ? 6 + length : 4 + length;
+		}
+		return 10 + length;
+	}
+	
+	private boolean isRotating()
+	{
+		return recoveryFile == null && (maxEvents > 0 || maxBytes > 0 || maxMilliseconds > 0);
+	}
+	
+	private boolean isRotationDue(int mt, byte[] b, int offset, int length)
+	{
+		if(fileEvents == 0 || !isRotating())
+		{
+			return false;
+		}
+		return (maxEvents > 0 && fileEvents >= maxEvents)
+				|| (maxBytes > 0 && fileBytes + getEncodedLength(mt, b, offset, length) > maxBytes)
+				|| (maxMilliseconds > 0 && lastEvent - fileStarted >= maxMilliseconds);
+	}
+	
+	/**
+	 * Ends the current file at this tick with its notes released, and starts the next
+	 * one playing the held notes and controller values again, so each file plays on its
+	 * own. Only a buffer hand-off, so ingest does not wait for the old file to be written.
+	 */
+	private void rotate(long eventTick, long sendTime) throws Exception
+	{
+		stateTick = eventTick;
+		stateSendTime = sendTime;
+		channelState.release(stateHandler);
+		writeMidiFile();
+		openFile(eventTick);
+		channelState.replay(stateHandler);
+		if(metrics != null)
+		{
+			metrics.recordRotation();
+		}
+	}
+	
+	private static MidiMessage toMidiMessage(MidiEventSerializable me) throws Exception
+	{
+		MidiMessage msg = null;
+		int mt = me.getMessageType();
+		byte[] b = me.getMessage();
+		if (MidiEventSerializable.SYSEX == mt)
+		{
+			// payload is the sysex data without the F0 status byte
+			SysexMessage m = new SysexMessage();
+			m.setMessage(SysexMessage.SYSTEM_EXCLUSIVE, b, b.length);
+			msg = m;
+		} 
+		else if (MidiEventSerializable.META == mt)
+		{
+			MetaMessage m = new MetaMessage();
+			m.setMessage(me.getMetaType(), b, b.length);
+			msg = m;
+		}
+		return msg;
+	}
+
+}
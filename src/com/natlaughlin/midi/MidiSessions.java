@@ -0,0 +1,163 @@
+package com.natlaughlin.midi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recordings of one receiver: a MidiSession per sender, keyed by the sender's
+ * identity, so senders sharing a port or a multicast group each get their own file and
+ * timebase instead of being interleaved into one.
+ *
+ * A sender's first event creates its session. Instead of one timer scanning every
+ * session, each session schedules its own check for the moment it would turn idle,
+ * flushing every pollMilliseconds until then. A session found idle stops taking events,
+ * leaves the map and writes its file; the sender's next event starts a new session.
+ */
+public class MidiSessions<K>
+{
+	public interface Factory<K>
+	{
+		MidiSession createSession(K key);
+	}
+
+	private final ConcurrentMap<K, MidiSession> sessions = new ConcurrentHashMap<K, MidiSession>();
+	private final Factory<K> factory;
+	private final int secondsToWait;
+	private final int pollMilliseconds;
+	private final ScheduledExecutorService scheduler;
+
+	public MidiSessions(final String name, int secondsToWait, int pollMilliseconds, Factory<K> factory)
+	{
+		this.secondsToWait = secondsToWait;
+		this.pollMilliseconds = pollMilliseconds;
+		this.factory = factory;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + " sessions");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * The session of this sender, created if it has none.
+	 */
+	public MidiSession get(K key)
+	{
+		MidiSession session = sessions.get(key);
+		if(session == null)
+		{
+			MidiSession created = factory.createSession(key);
+			session = sessions.putIfAbsent(key, created);
+			if(session == null)
+			{
+				session = created;
+				schedule(key, session, Math.min(pollMilliseconds, getIdleMilliseconds()));
+			}
+		}
+		return session;
+	}
+
+	public void processEvent(K key, MidiEventSerializable me) throws Exception
+	{
+		// false only when the session closed as idle just now; it has left the map by then
+		while (!get(key).processEvent(me))
+		{
+		}
+	}
+
+	public void processEvent(K key, int messageType, int metaType, long tick, long sendTime, byte[] b, int offset, int length) throws Exception
+	{
+		while (!get(key).processEvent(messageType, metaType, tick, sendTime, b, offset, length))
+		{
+		}
+	}
+
+	/**
+	 * Writes the file of this sender's session now, e.g. when it disconnects.
+	 */
+	public void close(K key)
+	{
+		MidiSession session = sessions.remove(key);
+		if(session != null)
+		{
+			try
+			{
+				session.close();
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public int size()
+	{
+		return sessions.size();
+	}
+
+	/**
+	 * Time from the last event until a session counts as idle: more than secondsToWait
+	 * whole seconds.
+	 */
+	private long getIdleMilliseconds()
+	{
+		return (secondsToWait + 1) * 1000L;
+	}
+
+	private void schedule(final K key, final MidiSession session, long delayMilliseconds)
+	{
+		scheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				check(key, session);
+			}
+		}, delayMilliseconds, TimeUnit.MILLISECONDS);
+	}
+
+	private void check(K key, MidiSession session)
+	{
+		long delay = pollMilliseconds;
+		try
+		{
+			// holding the session's lock, no event can land between closing and removal
+			synchronized (session)
+			{
+				if(session.closeIfIdle(secondsToWait))
+				{
+					sessions.remove(key, session);
+				}
+			}
+			if(session.isClosed())
+			{
+				session.writeMidiFile();
+				return;
+			}
+
+			session.flush();
+			long lastEvent = session.getLastEventMillis();
+			if(lastEvent != 0)
+			{
+				long idleAt = lastEvent + getIdleMilliseconds();
+				delay = Math.min(delay, idleAt - System.currentTimeMillis());
+			}
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		schedule(key, session, Math.max(1, delay));
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.natlaughlin.midi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the file writes of a receiver's recording sessions on one dedicated thread, in
+ * the order they were submitted, so ingest threads and idle checks only hand over
+ * filled buffers and never wait for encoding or the disk.
+ *
+ * At most capacity writes wait in the queue. Beyond that, submit blocks until the
+ * writer catches up (WriterStalls), holding ingest back rather than letting memory
+ * grow. The time from submit until a write is done goes into a histogram for -debug
+ * logging and into WriteMicros.
+ */
+public class MidiWriterExecutor
+{
+	public interface Task
+	{
+		void write() throws Exception;
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final LatencyHistogram latency = new LatencyHistogram("Write", "us");
+	private final MidiMetrics metrics;
+
+	public MidiWriterExecutor(final String name, int capacity, final MidiMetrics metrics)
+	{
+		this.metrics = metrics;
+		ThreadFactory threads = new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + " writer");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		RejectedExecutionHandler waitForRoom = new RejectedExecutionHandler()
+		{
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor e)
+			{
+				// running it here instead would overtake queued writes of the same file
+				metrics.recordWriterStall();
+				try
+				{
+					e.getQueue().put(r);
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(ex);
+				}
+			}
+		};
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacity), 
+				threads, waitForRoom);
+		executor.prestartCoreThread();
+		metrics.addGauge("WriterQueue", new MidiMetrics.Gauge()
+		{
+			@Override
+			public long getValue()
+			{
+				return executor.getQueue().size();
+			}
+		});
+	}
+
+	public void submit(final Task task)
+	{
+		final long submitted = System.nanoTime();
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.write();
+				}
+				catch(Exception e)
+				{
+					metrics.recordWriteError();
+					e.printStackTrace();
+				}
+				long micros = (System.nanoTime() - submitted) / 1000;
+				latency.record(micros);
+				metrics.recordWriteLatency(micros);
+			}
+		});
+	}
+
+	/**
+	 * Submit to completion, in microseconds.
+	 */
+	public LatencyHistogram getLatency()
+	{
+		return latency;
+	}
+
+}
@@ -0,0 +1,285 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Records two senders at once into an archived directory, one note event per
+ * millisecond of their clocks each, rotating files by size. A range that crosses file
+ * boundaries must hold exactly the notes of both senders played in it, at the right
+ * ticks, read by seeking rather than reading the files whole.
+ *
+ * Also checks the per-file summaries against what was played, that a full range brings
+ * back every note, and that the index stays readable past a record cut short by a crash.
+ */
+public class MidiArchiveTest
+{
+	private final static int EVENTS = 200000;
+	private final static int MAX_BYTES = 64 * 1024;
+	private final static int RANGE_START_MILLISECONDS = 30500;
+	private final static int RANGE_MILLISECONDS = 20250;
+	private final static int DEADLINE_MILLISECONDS = 30000;
+	private final static String[] SENDERS = { "_a", "_b" };
+
+	private static File dir;
+	private static MidiMetrics metrics;
+	private static MidiWriterExecutor writerExecutor;
+	private static MidiArchive archive;
+	private static List<MidiArchive.Recording> recordings;
+
+	@BeforeClass
+	public static void record() throws Exception
+	{
+		dir = Files.createTempDirectory("MidiArchiveTest").toFile();
+		metrics = new MidiMetrics("MidiArchiveTest");
+		writerExecutor = new MidiWriterExecutor("MidiArchiveTest", Midi.WRITER_QUEUE_SIZE, metrics);
+		archive = new MidiArchive(dir, Midi.ARCHIVE_STRIDE_BYTES);
+
+		MidiSession[] sessions = new MidiSession[SENDERS.length];
+		for (int s = 0; s < SENDERS.length; s++)
+		{
+			sessions[s] = createSession(dir, SENDERS[s], archive);
+		}
+		byte[] message = new byte[3];
+		for (int i = 0; i < EVENTS; i++)
+		{
+			for (int s = 0; s < SENDERS.length; s++)
+			{
+				setNote(message, s, i);
+				sessions[s].processEvent(MidiEventSerializable.SHORT, 0, i * 1000L, 0, message, 0, message.length);
+			}
+		}
+		for (MidiSession session : sessions)
+		{
+			session.writeMidiFile();
+		}
+		waitForFiles(SENDERS.length);
+		recordings = archive.list();
+	}
+
+	@AfterClass
+	public static void delete() throws Exception
+	{
+		archive.close();
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void summaries() throws Exception
+	{
+		assertTrue("Rotated", recordings.size() > SENDERS.length);
+		long[] noteOns = new long[SENDERS.length];
+		for (MidiArchive.Recording r : recordings)
+		{
+			int s = getSender(r.getName());
+			assertTrue(r.getName() + " is from an unknown sender", s >= 0);
+			assertTrue(r.getName() + " has no summary", r.isComplete());
+			assertEquals(r.getName() + " length", new File(dir, r.getName()).length(), r.getLength());
+			noteOns[s] += r.getNoteOns();
+		}
+		for (int s = 0; s < SENDERS.length; s++)
+		{
+			assertEquals("Notes of sender " + SENDERS[s], (EVENTS + 1) / 2, noteOns[s]);
+		}
+	}
+
+	/**
+	 * Event i of sender s was played at anchors[s] + i milliseconds; the range must hold
+	 * the note ons of exactly those in it, each at its tick from the start of the range.
+	 */
+	@Test
+	public void range() throws Exception
+	{
+		// where each sender's timeline starts: its first file
+		long[] anchors = new long[SENDERS.length];
+		long total = 0;
+		for (MidiArchive.Recording r : recordings)
+		{
+			int s = getSender(r.getName());
+			if(anchors[s] == 0)
+			{
+				anchors[s] = r.getStartMillis();
+			}
+			total += r.getLength();
+		}
+
+		long from = anchors[0] + RANGE_START_MILLISECONDS;
+		long to = from + RANGE_MILLISECONDS;
+		File out = new File(dir, "range.mid");
+		archive.extract(from, to, out);
+		assertTrue(String.format("Read %d of %d bytes", archive.getBytesRead(), total), archive.getBytesRead() < total / 4);
+
+		Sequence sequence = MidiSystem.getSequence(out);
+		int[] on = new int[SENDERS.length];
+		int[] off = new int[SENDERS.length];
+		int misplaced = 0;
+		for (Track track : sequence.getTracks())
+		{
+			for (int j = 0; j < track.size(); j++)
+			{
+				MidiEvent event = track.get(j);
+				if(!(event.getMessage() instanceof ShortMessage))
+					continue;
+
+				ShortMessage m = (ShortMessage) event.getMessage();
+				int s = m.getChannel();
+				if(m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+				{
+					on[s]++;
+					long i = from - anchors[s] + event.getTick() / MidiArchive.TICKS_PER_MILLISECOND;
+					if(i % 2 != 0 || m.getData1() != 40 + i / 2 % 40)
+					{
+						misplaced++;
+					}
+				}
+				else
+				{
+					off[s]++;
+				}
+			}
+		}
+
+		assertEquals("Notes at the wrong tick", 0, misplaced);
+		for (int s = 0; s < SENDERS.length; s++)
+		{
+			long first = Math.max(0, from - anchors[s]);
+			long last = Math.min(EVENTS, to - anchors[s]);
+			assertEquals("Notes of sender " + SENDERS[s] + " in range", (last + 1) / 2 - (first + 1) / 2, on[s]);
+			assertTrue("Note offs of sender " + SENDERS[s] + " in range", off[s] >= on[s]);
+		}
+	}
+
+	@Test
+	public void everything() throws Exception
+	{
+		File out = new File(dir, "everything.mid");
+		long all = archive.extract(0, Long.MAX_VALUE / MidiArchive.TICKS_PER_MILLISECOND, out);
+		assertEquals("Events", (long) SENDERS.length * EVENTS, all);
+		assertEquals("Files read", recordings.size(), archive.getFilesRead());
+	}
+
+	/**
+	 * Cuts the index off mid-record, as a crash while appending would, and records one
+	 * more file: it must show up after the others.
+	 */
+	@Test
+	public void tornRecord() throws Exception
+	{
+		File tornDir = Files.createTempDirectory("MidiArchiveTest").toFile();
+		try
+		{
+			MidiArchive before = new MidiArchive(tornDir, Midi.ARCHIVE_STRIDE_BYTES);
+			recordNotes(createSession(tornDir, SENDERS[0], before));
+			before.close();
+
+			FileOutputStream index = new FileOutputStream(new File(tornDir, Midi.ARCHIVE_FILE), true);
+			index.write(new byte[] { 0, 0, 0, 40, MidiArchive.POINTS, 1, 2 });
+			index.close();
+
+			MidiArchive after = new MidiArchive(tornDir, Midi.ARCHIVE_STRIDE_BYTES);
+			recordNotes(createSession(tornDir, SENDERS[1], after));
+			after.close();
+
+			// ids grow as files are opened
+			List<MidiArchive.Recording> list = after.list();
+			assertEquals("Recordings", 2, list.size());
+			MidiArchive.Recording last = list.get(0);
+			for (MidiArchive.Recording r : list)
+			{
+				last = r.getId() > last.getId() ? r : last;
+			}
+			assertTrue("The last recording has no summary", last.isComplete());
+			assertEquals("Events of the last recording", 101, last.getEvents());
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(tornDir);
+		}
+	}
+
+	private static void recordNotes(MidiSession session) throws Exception
+	{
+		long written = metrics.getValues().get("FilesWritten");
+		byte[] message = new byte[3];
+		for (int i = 0; i < 100; i++)
+		{
+			setNote(message, 0, i);
+			session.processEvent(MidiEventSerializable.SHORT, 0, i * 1000L, 0, message, 0, message.length);
+		}
+		session.writeMidiFile();
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLISECONDS;
+		while (metrics.getValues().get("FilesWritten") == written && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	private static MidiSession createSession(File dir, String suffix, MidiArchive archive)
+	{
+		PrintStream quiet = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+		});
+		MidiSession session = new MidiSession(dir.getPath(), Midi.FILE_PREFIX, new SimpleDateFormat(Midi.FILE_DATEFORMAT), suffix, quiet, false);
+		session.setMetrics(metrics);
+		session.setWriterExecutor(writerExecutor);
+		session.setRotation(0, MAX_BYTES, 0);
+		session.setArchive(archive);
+		return session;
+	}
+
+	/**
+	 * Sender s plays channel s: note on at even events, note off at odd ones.
+	 */
+	private static void setNote(byte[] message, int s, int i)
+	{
+		message[0] = (byte) ((i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF) | s);
+		message[1] = (byte) (40 + i / 2 % 40);
+		message[2] = (byte) (i % 2 == 0 ? 100 : 0);
+	}
+
+	private static int getSender(String name)
+	{
+		for (int s = 0; s < SENDERS.length; s++)
+		{
+			if(name.contains(SENDERS[s]))
+			{
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	private static void waitForFiles(int sessions) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLISECONDS;
+		while (metrics.getValues().get("FilesWritten") < metrics.getValues().get("Rotations") + sessions
+				&& System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Plays note on/off pairs and sustain pedal presses through a MidiMulticastSender
+ * receiver that drops packets on purpose, records them with an in-process
+ * MidiMulticastReceiver over the loopback interface, and checks no note or pedal is left
+ * stuck in the recording, with NACK repairs only, the recovery journal only and both.
+ * With NACKs only, every note off must also land at its original tick, however late
+ * its repair came.
+ */
+public class MidiMulticastLossTest
+{
+	private final static int NOTES = 1000;
+	private final static double LOSS_PERCENT = 5;
+	private final static int WAIT_SECONDS = 1;
+	private final static int SUSTAIN = 64;
+	private final static int JOURNAL_BYTES = 256;
+	// note offs are played 10 ms after their note ons, a tick is 100 microseconds
+	private final static int NOTE_TICKS = 100;
+
+	@Test
+	public void nack() throws Exception
+	{
+		play(true, 0);
+	}
+
+	@Test
+	public void journal() throws Exception
+	{
+		play(false, JOURNAL_BYTES);
+	}
+
+	@Test
+	public void nackAndJournal() throws Exception
+	{
+		play(true, JOURNAL_BYTES);
+	}
+
+	/**
+	 * A note off repaired after the notes around it were flushed must still be written
+	 * at its own tick, not where it arrived.
+	 */
+	@Test
+	public void lateRepair() throws Exception
+	{
+		File dir = Files.createTempDirectory("MidiMulticastLossTest").toFile();
+		try
+		{
+			PrintStream quiet = new PrintStream(new OutputStream()
+			{
+				@Override
+				public void write(int b)
+				{
+				}
+			});
+			MidiSession session = new MidiSession(dir.getPath(), Midi.FILE_PREFIX, new SimpleDateFormat(Midi.FILE_DATEFORMAT), "", quiet, false);
+			session.setReorderWindow(MidiMulticast.REORDER_MILLISECONDS);
+			byte[] message = new byte[3];
+			for (int i = 0; i < 10; i++)
+			{
+				playNote(session, message, ShortMessage.NOTE_ON, i);
+				// note 5's note off is lost
+				if(i != 5)
+				{
+					playNote(session, message, ShortMessage.NOTE_OFF, i);
+				}
+				session.flush();
+			}
+			playNote(session, message, ShortMessage.NOTE_OFF, 5);
+			session.writeMidiFile();
+
+			File[] files = dir.listFiles();
+			assertEquals("Files", 1, files.length);
+			int[] counts = countNotes(files[0]);
+			assertEquals("Note offs", 10, counts[1]);
+			assertEquals("Note offs at the wrong tick", 0, counts[4]);
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * Note i is played for 10 ms every 20 ms.
+	 */
+	private static void playNote(MidiSession session, byte[] message, int command, int i) throws Exception
+	{
+		message[0] = (byte) (command | i % 16);
+		message[1] = (byte) (36 + i % 60);
+		message[2] = (byte) (command == ShortMessage.NOTE_ON ? 100 : 0);
+		long tick = i * 20000L + (command == ShortMessage.NOTE_ON ? 0 : 10000);
+		session.processEvent(MidiEventSerializable.SHORT, 0, tick, 0, message, 0, message.length);
+	}
+
+	private void play(boolean retransmit, int recovery) throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		File dir = Files.createTempDirectory("MidiMulticastLossTest").toFile();
+
+		String[] receiverArgs = { "-port", String.valueOf(port), "-dir", dir.getPath(), "-wait", String.valueOf(WAIT_SECONDS) };
+		MidiMulticastReceiver.main(receiverArgs);
+		Thread.sleep(1000);
+
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.bind(null);
+		MidiMulticastSender.ObjectReceiver sender = new MidiMulticastSender().new ObjectReceiver();
+		sender.setGroup(new InetSocketAddress(InetAddress.getByName(MidiMulticast.HOST), port));
+		sender.setChannel(channel);
+		sender.setBatchMicroseconds(0);
+		sender.setPacketLoss(new MidiPacketLoss(LOSS_PERCENT, 20070));
+		sender.setRecoveryBytes(recovery);
+		if(retransmit)
+		{
+			sender.startRetransmitter();
+		}
+
+		ShortMessage sm = new ShortMessage();
+		for (int i = 0; i < NOTES; i++)
+		{
+			int key = 36 + i % 60;
+			sm.setMessage(ShortMessage.NOTE_ON, i % 16, key, 100);
+			sender.send(sm, i * 20000L);
+			sm.setMessage(ShortMessage.NOTE_OFF, i % 16, key, 0);
+			sender.send(sm, i * 20000L + 10000);
+			if(i % 10 == 0 || i % 10 == 5)
+			{
+				sm.setMessage(ShortMessage.CONTROL_CHANGE, 0, SUSTAIN, i % 10 == 0 ? 127 : 0);
+				sender.send(sm, i * 20000L + 15000);
+			}
+			// about as dense as a MIDI cable allows
+			Thread.sleep(1);
+		}
+
+		// the receiver writes the file once idle for WAIT_SECONDS, checked every poll
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName receiverName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+				+ ObjectName.quote("MidiMulticastReceiver:" + MidiMulticast.HOST + ":" + port));
+		long deadline = System.currentTimeMillis() + Midi.RECEIVER_POLL_MILLISECONDS * 3;
+		while (System.currentTimeMillis() < deadline && (Long) server.getAttribute(receiverName, "FilesWritten") == 0)
+		{
+			Thread.sleep(200);
+		}
+		sender.close();
+		channel.close();
+
+		try
+		{
+			File[] files = dir.listFiles();
+			assertTrue("No MIDI file was written", files != null && files.length > 0
+					&& (Long) server.getAttribute(receiverName, "FilesWritten") > 0);
+
+			int[] counts = countNotes(files[0]);
+			String metrics = String.format("lost=%s repaired=%s unrepaired=%s nacks=%s recovered=%s",
+					server.getAttribute(receiverName, "LostPackets"),
+					server.getAttribute(receiverName, "RepairedPackets"),
+					server.getAttribute(receiverName, "UnrepairedPackets"),
+					server.getAttribute(receiverName, "Nacks"),
+					server.getAttribute(receiverName, "RecoveredEvents"));
+			assertEquals("Stuck notes, " + metrics, 0, counts[2]);
+			assertEquals("Sustain pedal, " + metrics, 0, counts[3]);
+			// a note off played from the journal must not be played again by its repair
+			assertTrue(counts[1] + " note offs recorded, " + metrics, counts[1] <= NOTES);
+			if(recovery == 0)
+			{
+				assertEquals("Note offs at the wrong tick, " + metrics, 0, counts[4]);
+			}
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * Returns note ons, note offs, keys still held at the end, the last sustain value and
+	 * note offs not NOTE_TICKS after the note on of their key.
+	 */
+	private static int[] countNotes(File midiFile) throws Exception
+	{
+		Sequence sequence = MidiSystem.getSequence(midiFile);
+		Map<Integer, Integer> held = new HashMap<Integer, Integer>();
+		Map<Integer, Long> onTicks = new HashMap<Integer, Long>();
+		int on = 0;
+		int off = 0;
+		int pedal = 0;
+		int misplaced = 0;
+		for (Track track : sequence.getTracks())
+		{
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				if(!(event.getMessage() instanceof ShortMessage))
+					continue;
+
+				ShortMessage m = (ShortMessage) event.getMessage();
+				if(m.getCommand() == ShortMessage.CONTROL_CHANGE && m.getData1() == SUSTAIN)
+				{
+					pedal = m.getData2();
+					continue;
+				}
+				int key = m.getChannel() << 8 | m.getData1();
+				Integer count = held.get(key);
+				int c = count == null ? 0 : count;
+				if(m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+				{
+					on++;
+					held.put(key, c + 1);
+					onTicks.put(key, event.getTick());
+				}
+				else if(m.getCommand() == ShortMessage.NOTE_OFF || m.getCommand() == ShortMessage.NOTE_ON)
+				{
+					off++;
+					held.put(key, Math.max(0, c - 1));
+					Long onTick = onTicks.get(key);
+					if(m.getCommand() == ShortMessage.NOTE_OFF && (onTick == null || event.getTick() - onTick != NOTE_TICKS))
+					{
+						misplaced++;
+					}
+				}
+			}
+		}
+		int stuck = 0;
+		for (int c : held.values())
+		{
+			stuck += c;
+		}
+		return new int[] { on, off, stuck, pedal, misplaced };
+	}
+
+}
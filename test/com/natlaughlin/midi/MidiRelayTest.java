@@ -0,0 +1,142 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Two senders play through an in-process MidiRelay to a MidiReceiver started with
+ * -relay, interleaved, each on its own key. The receiver must record one file per
+ * sender, holding that sender's notes only.
+ */
+public class MidiRelayTest
+{
+	private final static int NOTES = 100;
+	private final static int WAIT_SECONDS = 1;
+	private final static int[] KEYS = { 60, 70 };
+
+	@Test
+	public void sendersKeepTheirFiles() throws Exception
+	{
+		int senderPort = getFreePort();
+		int subscriberPort = getFreePort();
+		File dir = Files.createTempDirectory("MidiRelayTest").toFile();
+
+		MidiRelay.main(new String[] { "-port", String.valueOf(senderPort), "-subscribers", String.valueOf(subscriberPort) });
+		Thread.sleep(1000);
+		MidiReceiver.main(new String[] { "-relay", "localhost", "-port", String.valueOf(subscriberPort), "-dir", dir.getPath(),
+				"-wait", String.valueOf(WAIT_SECONDS) });
+		Thread.sleep(1000);
+
+		Socket[] sockets = new Socket[KEYS.length];
+		DataOutputStream[] out = new DataOutputStream[KEYS.length];
+		for (int s = 0; s < KEYS.length; s++)
+		{
+			sockets[s] = new Socket("localhost", senderPort);
+			out[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+			MidiEventCodec.writeHeader(out[s], 0);
+		}
+		byte[] message = new byte[3];
+		for (int i = 0; i < NOTES; i++)
+		{
+			for (int s = 0; s < KEYS.length; s++)
+			{
+				setMessage(message, ShortMessage.NOTE_ON, KEYS[s], 100);
+				MidiEventCodec.writeFrame(out[s], MidiEventSerializable.SHORT, 0, i * 20000L, 0, message, 0, message.length);
+				setMessage(message, ShortMessage.NOTE_OFF, KEYS[s], 0);
+				MidiEventCodec.writeFrame(out[s], MidiEventSerializable.SHORT, 0, i * 20000L + 10000, 0, message, 0, message.length);
+				out[s].flush();
+			}
+			Thread.sleep(1);
+		}
+
+		// the receiver writes each file once its sender is idle for WAIT_SECONDS
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName receiverName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+				+ ObjectName.quote("MidiReceiver:" + subscriberPort));
+		long deadline = System.currentTimeMillis() + Midi.RECEIVER_POLL_MILLISECONDS * 3;
+		while (System.currentTimeMillis() < deadline && (Long) server.getAttribute(receiverName, "FilesWritten") < KEYS.length)
+		{
+			Thread.sleep(200);
+		}
+		for (Socket socket : sockets)
+		{
+			socket.close();
+		}
+
+		try
+		{
+			File[] files = dir.listFiles();
+			assertTrue("No MIDI file was written", files != null);
+			assertEquals("Files", KEYS.length, files.length);
+			boolean[] seen = new boolean[KEYS.length];
+			for (File file : files)
+			{
+				int key = -1;
+				int on = 0;
+				Sequence sequence = MidiSystem.getSequence(file);
+				for (Track track : sequence.getTracks())
+				{
+					for (int i = 0; i < track.size(); i++)
+					{
+						MidiEvent event = track.get(i);
+						if(!(event.getMessage() instanceof ShortMessage))
+							continue;
+
+						ShortMessage m = (ShortMessage) event.getMessage();
+						assertTrue(file.getName() + " mixes senders", key < 0 || key == m.getData1());
+						key = m.getData1();
+						on += m.getCommand() == ShortMessage.NOTE_ON ? 1 : 0;
+					}
+				}
+				assertEquals(file.getName() + " note ons", NOTES, on);
+				for (int s = 0; s < KEYS.length; s++)
+				{
+					seen[s] |= KEYS[s] == key;
+				}
+			}
+			for (int s = 0; s < KEYS.length; s++)
+			{
+				assertTrue("No file for the sender of key " + KEYS[s], seen[s]);
+			}
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	private static void setMessage(byte[] message, int status, int data1, int data2)
+	{
+		message[0] = (byte) status;
+		message[1] = (byte) data1;
+		message[2] = (byte) data2;
+	}
+
+	private static int getFreePort() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		return port;
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Records a performance that never pauses, a drone note held from start to end under
+ * running notes, sustain pedal presses and a program and volume set once, into a
+ * MidiSession rotating by events, by bytes or by seconds.
+ *
+ * Every file must play on its own: the program and the drone at its start, and no
+ * note or pedal left down at its end. Files must keep to the event or byte limit, and
+ * the recording may not lose an event.
+ */
+public class MidiRotationTest
+{
+	private final static int EVENTS = 20000;
+	private final static int MAX_EVENTS = 5000;
+	private final static int MAX_BYTES = 16 * 1024;
+	private final static int MAX_SECONDS = 1;
+	private final static int SECONDS = 4;
+	private final static int PROGRAM = 42;
+	private final static int VOLUME = 7;
+	private final static int SUSTAIN = 64;
+	private final static int DRONE = 36;
+	// release and replay add at most this many messages to a file beyond the limit
+	private final static int STATE_MESSAGES = 32;
+	private final static int DEADLINE_MILLISECONDS = 30000;
+
+	@Test
+	public void events() throws Exception
+	{
+		record(MAX_EVENTS, 0, 0);
+	}
+
+	@Test
+	public void bytes() throws Exception
+	{
+		record(0, MAX_BYTES, 0);
+	}
+
+	@Test
+	public void seconds() throws Exception
+	{
+		record(0, 0, MAX_SECONDS);
+	}
+
+	private void record(int maxEvents, int maxBytes, int maxSeconds) throws Exception
+	{
+		File dir = Files.createTempDirectory("MidiRotationTest").toFile();
+		PrintStream quiet = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+		});
+		MidiMetrics metrics = new MidiMetrics("MidiRotationTest");
+		MidiSession session = new MidiSession(dir.getPath(), Midi.FILE_PREFIX, new SimpleDateFormat(Midi.FILE_DATEFORMAT), "", quiet, false);
+		session.setMetrics(metrics);
+		session.setWriterExecutor(new MidiWriterExecutor("MidiRotationTest", Midi.WRITER_QUEUE_SIZE, metrics));
+		session.setRotation(maxEvents, maxBytes, maxSeconds);
+
+		// spread over SECONDS when rotating by time, as fast as possible otherwise
+		long pauseEvery = maxSeconds > 0 ? Math.max(1, EVENTS / (SECONDS * 1000L)) : 0;
+		long tick = 0;
+		send(session, ShortMessage.PROGRAM_CHANGE, PROGRAM, 0, tick);
+		send(session, ShortMessage.CONTROL_CHANGE, VOLUME, 100, tick);
+		send(session, ShortMessage.NOTE_ON, DRONE, 90, tick);
+		int sent = 3;
+		for (int i = 0; sent < EVENTS - 2; i++)
+		{
+			tick += 1000;
+			int key = 60 + i / 2 % 12;
+			switch (i % 8)
+			{
+			case 2:
+				send(session, ShortMessage.CONTROL_CHANGE, SUSTAIN, 127, tick);
+				break;
+			case 6:
+				send(session, ShortMessage.CONTROL_CHANGE, SUSTAIN, 0, tick);
+				break;
+			default:
+				send(session, i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, key, i % 2 == 0 ? 100 : 0, tick);
+				break;
+			}
+			sent++;
+			if(pauseEvery > 0 && sent % pauseEvery == 0)
+			{
+				Thread.sleep(1);
+			}
+		}
+		tick += 1000;
+		send(session, ShortMessage.NOTE_OFF, DRONE, 0, tick);
+		send(session, ShortMessage.CONTROL_CHANGE, SUSTAIN, 0, tick);
+		sent += 2;
+		session.writeMidiFile();
+
+		long rotations = metrics.getValues().get("Rotations");
+		long deadline = System.currentTimeMillis() + DEADLINE_MILLISECONDS;
+		while (metrics.getValues().get("FilesWritten") < rotations + 1 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		try
+		{
+			File[] files = dir.listFiles();
+			Arrays.sort(files);
+			assertTrue("Rotated", rotations > 0);
+			assertEquals("Files written", rotations + 1, files.length);
+			assertEquals("Events recorded", sent, (long) metrics.getValues().get("ShortEvents"));
+			for (File file : files)
+			{
+				assertNull(file.getName(), check(file, maxEvents, maxBytes));
+			}
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	private static void send(MidiSession session, int command, int data1, int data2, long tick) throws Exception
+	{
+		byte[] message = command == ShortMessage.PROGRAM_CHANGE ? new byte[] { (byte) command, (byte) data1 }
+				: new byte[] { (byte) command, (byte) data1, (byte) data2 };
+		session.processEvent(MidiEventSerializable.SHORT, 0, tick * 100, 0, message, 0, message.length);
+	}
+
+	/**
+	 * Returns what is wrong with the file, or null.
+	 */
+	private static String check(File midiFile, int maxEvents, int maxBytes) throws Exception
+	{
+		if(maxBytes > 0 && midiFile.length() > maxBytes + 22 + 4)
+		{
+			return String.format("%d bytes, more than %d", midiFile.length(), maxBytes);
+		}
+		Sequence sequence = MidiSystem.getSequence(midiFile);
+		Map<Integer, Integer> held = new HashMap<Integer, Integer>();
+		int messages = 0;
+		int program = -1;
+		boolean droneAtStart = false;
+		int pedal = 0;
+		for (Track track : sequence.getTracks())
+		{
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				if(!(event.getMessage() instanceof ShortMessage))
+					continue;
+
+				ShortMessage m = (ShortMessage) event.getMessage();
+				messages++;
+				if(m.getCommand() == ShortMessage.PROGRAM_CHANGE && event.getTick() == 0)
+				{
+					program = m.getData1();
+				}
+				else if(m.getCommand() == ShortMessage.CONTROL_CHANGE && m.getData1() == SUSTAIN)
+				{
+					pedal = m.getData2();
+				}
+				else if(m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+				{
+					droneAtStart |= m.getData1() == DRONE && event.getTick() == 0;
+					Integer count = held.get(m.getData1());
+					held.put(m.getData1(), count == null ? 1 : count + 1);
+				}
+				else if(m.getCommand() == ShortMessage.NOTE_OFF || m.getCommand() == ShortMessage.NOTE_ON)
+				{
+					Integer count = held.get(m.getData1());
+					held.put(m.getData1(), count == null ? 0 : Math.max(0, count - 1));
+				}
+			}
+		}
+		int stuck = 0;
+		for (int c : held.values())
+		{
+			stuck += c;
+		}
+		if(maxEvents > 0 && messages > maxEvents + STATE_MESSAGES)
+		{
+			return String.format("%d events, more than %d", messages, maxEvents);
+		}
+		if(program != PROGRAM || !droneAtStart)
+		{
+			return "does not start with the program and the held drone";
+		}
+		if(stuck > 0 || pedal >= 64)
+		{
+			return String.format("ends with %d notes stuck, pedal %s", stuck, pedal >= 64 ? "down" : "up");
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks MidiRtpCodec and MidiRtpSession against packets written out byte by byte from
+ * RFC 6295 and the AppleMIDI session protocol, as a packet capture would show them.
+ * Every packet is encoded and compared, then decoded and compared with the commands
+ * it holds.
+ */
+public class MidiRtpCodecTest
+{
+	private final static int SSRC = 0x11223344;
+
+	@Test
+	public void noteOn() throws Exception
+	{
+		// single note on, short header, marker bit set
+		checkRtp(0x1234, 0x00010000L,
+				new long[] { 0 }, new String[] { "903c64" },
+				"80e11234" + "00010000" + "11223344" + "03" + "903c64");
+	}
+
+	@Test
+	public void chord() throws Exception
+	{
+		// running status, a zero delta and a delta of 10
+		checkRtp(0x0001, 100,
+				new long[] { 0, 0, 10 }, new String[] { "903c64", "904064", "904364" },
+				"80e10001" + "00000064" + "11223344" + "09" + "903c64" + "00" + "4064" + "0a" + "4364");
+	}
+
+	@Test
+	public void noteOff() throws Exception
+	{
+		// two byte delta time (200 = 81 48), status change
+		checkRtp(0x0002, 100,
+				new long[] { 0, 200 }, new String[] { "903c64", "803c00" },
+				"80e10002" + "00000064" + "11223344" + "08" + "903c64" + "8148" + "803c00");
+	}
+
+	@Test
+	public void firstDelta() throws Exception
+	{
+		// first command later than the packet timestamp sets Z
+		checkRtp(0x0003, 100,
+				new long[] { 5 }, new String[] { "c005" },
+				"80e10003" + "00000064" + "11223344" + "23" + "05" + "c005");
+	}
+
+	@Test
+	public void sysex() throws Exception
+	{
+		// 18 bytes need the long header, B set and 12 bit length
+		checkRtp(0x0004, 0,
+				new long[] { 0 }, new String[] { "f07d0102030405060708090a0b0c0d0e0ff7" },
+				"80e10004" + "00000000" + "11223344" + "8012" + "f07d0102030405060708090a0b0c0d0e0ff7");
+	}
+
+	@Test
+	public void empty() throws Exception
+	{
+		// empty list clears the marker bit
+		checkRtp(0x0005, 0,
+				new long[0], new String[0],
+				"80610005" + "00000000" + "11223344" + "00");
+	}
+
+	@Test
+	public void journal() throws Exception
+	{
+		// a journal (J) after the list is skipped, system real time keeps running status
+		checkDecode("80e10006" + "00000000" + "11223344" + "48" + "903c64" + "00f8" + "003e64" + "a0000102",
+				new String[] { "0:903c64", "0:f8", "0:903e64" });
+	}
+
+	@Test
+	public void phantom() throws Exception
+	{
+		// P set on the first packet after joining, the status byte is present
+		checkDecode("80e10009" + "00000000" + "11223344" + "13" + "903c64",
+				new String[] { "0:903c64" });
+	}
+
+	@Test
+	public void segments() throws Exception
+	{
+		// sysex split into three segments in one list
+		checkDecode("80e10007" + "00000000" + "11223344" + "0c" + "f07d01f0" + "00f702f0" + "01f703f7",
+				new String[] { "1:f07d010203f7" });
+	}
+
+	@Test
+	public void sysexRealtime() throws Exception
+	{
+		// clock and active sensing inside a sysex play at once, the sysex goes on
+		checkDecode("80e1000a" + "00000000" + "11223344" + "08" + "f07d01f80203fef7",
+				new String[] { "0:f8", "0:fe", "0:f07d010203f7" });
+		// and inside a segment
+		checkDecode("80e1000b" + "00000000" + "11223344" + "0d" + "f07d01f0" + "00f7f802f0" + "01f703f7",
+				new String[] { "0:f8", "1:f07d010203f7" });
+	}
+
+	@Test
+	public void padding() throws Exception
+	{
+		// CSRC and padding
+		checkDecode("a1e10008" + "00000010" + "11223344" + "55667788" + "02" + "c005" + "0002",
+				new String[] { "16:c005" });
+	}
+
+	@Test
+	public void invitation() throws Exception
+	{
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		MidiRtpSession.writeInvitation(buf, MidiRtpSession.INVITATION, 0xaabbccdd, SSRC, "rtp");
+		check(buf, "ffff494e" + "00000002" + "aabbccdd" + "11223344" + "72747000");
+
+		MidiRtpSession.Invitation in = MidiRtpSession.readInvitation(parse("ffff4f4b" + "00000002" + "aabbccdd" + "55667788" + "6d616300"));
+		assertEquals(MidiRtpSession.ACCEPTED + " aabbccdd 55667788 mac",
+				in.command + " " + Integer.toHexString(in.token) + " " + Integer.toHexString(in.ssrc) + " " + in.name);
+	}
+
+	@Test
+	public void bye() throws Exception
+	{
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		MidiRtpSession.writeInvitation(buf, MidiRtpSession.BYE, 0xaabbccdd, SSRC, null);
+		check(buf, "ffff4259" + "00000002" + "aabbccdd" + "11223344");
+	}
+
+	@Test
+	public void clock() throws Exception
+	{
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		MidiRtpSession.writeClock(buf, SSRC, 1, 0x0102030405060708L, 0x1112131415161718L, 0);
+		check(buf, "ffff434b" + "11223344" + "01000000" + "0102030405060708" + "1112131415161718" + "0000000000000000");
+
+		MidiRtpSession.Clock ck = MidiRtpSession.readClock(parse("ffff434b" + "55667788" + "02000000"
+				+ "0000000000000001" + "0000000000000002" + "0000000000000003"));
+		assertEquals("2 1 2 3", ck.count + " " + ck.timestamps[0] + " " + ck.timestamps[1] + " " + ck.timestamps[2]);
+	}
+
+	private void checkRtp(int sequence, long timestamp, long[] times, String[] commands, String expected) throws Exception
+	{
+		MidiRtpCodec encoder = new MidiRtpCodec();
+		ByteBuffer buf = ByteBuffer.allocate(MidiRtp.PACKET_SIZE);
+		encoder.beginPacket(buf, sequence, timestamp, SSRC);
+		long time = timestamp;
+		for (int i = 0; i < commands.length; i++)
+		{
+			time += times[i];
+			byte[] b = fromHex(commands[i]);
+			encoder.writeCommand(buf, time, b, 0, b.length);
+		}
+		encoder.endPacket(buf);
+		check(buf, expected);
+
+		String[] decoded = new String[commands.length];
+		time = timestamp;
+		for (int i = 0; i < commands.length; i++)
+		{
+			time += times[i];
+			decoded[i] = time + ":" + commands[i];
+		}
+		checkDecode(expected, decoded);
+	}
+
+	private void checkDecode(String packet, String[] expected) throws Exception
+	{
+		final StringBuilder sb = new StringBuilder();
+		new MidiRtpCodec().readPacket(parse(packet), new MidiRtpCodec.Handler()
+		{
+			@Override
+			public void onCommand(long time, byte[] b, int offset, int length)
+			{
+				sb.append(sb.length() == 0 ? "" : " ").append(time).append(':').append(toHex(b, offset, length));
+			}
+		});
+		assertEquals(String.join(" ", expected), sb.toString());
+	}
+
+	private void check(ByteBuffer buf, String expected)
+	{
+		assertEquals(expected, toHex(buf.array(), 0, buf.position()));
+	}
+
+	private static ByteBuffer parse(String hex)
+	{
+		return ByteBuffer.wrap(fromHex(hex));
+	}
+
+	private static byte[] fromHex(String hex)
+	{
+		byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++)
+		{
+			b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return b;
+	}
+
+	private static String toHex(byte[] b, int offset, int length)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = offset; i < offset + length; i++)
+		{
+			sb.append(String.format("%02x", b[i] & 0xFF));
+		}
+		return sb.toString();
+	}
+
+}
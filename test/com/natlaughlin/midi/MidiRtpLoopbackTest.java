@@ -0,0 +1,153 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Runs a MidiRtpSender session against an in-process MidiRtpReceiver over the loopback
+ * interface: invitation on both ports, clock sync, notes with running status and a
+ * sysex large enough to be sent in segments, then BY. The recorded MIDI file must hold
+ * every message sent.
+ */
+public class MidiRtpLoopbackTest
+{
+	private final static int NOTES = 1000;
+	private final static int WAIT_SECONDS = 1;
+	private final static int SYSEX_LENGTH = 5000;
+
+	@Test
+	public void session() throws Exception
+	{
+		int port = getFreePortPair();
+		File dir = Files.createTempDirectory("MidiRtpLoopbackTest").toFile();
+
+		String[] receiverArgs = { "-port", String.valueOf(port), "-dir", dir.getPath(), "-wait", String.valueOf(WAIT_SECONDS) };
+		MidiRtpReceiver.main(receiverArgs);
+
+		MidiRtpSender.RtpReceiver sender = new MidiRtpSender().new RtpReceiver("loopback");
+		sender.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		// as a device that keeps no time would, the sender stamps packets itself
+		ShortMessage sm = new ShortMessage();
+		sm.setMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0);
+		sender.send(sm, -1);
+		for (int i = 0; i < NOTES; i++)
+		{
+			int key = 36 + i % 60;
+			sm.setMessage(ShortMessage.NOTE_ON, i % 16, key, 100);
+			sender.send(sm, -1);
+			sm.setMessage(ShortMessage.NOTE_OFF, i % 16, key, 0);
+			sender.send(sm, -1);
+			Thread.sleep(1);
+		}
+		byte[] data = new byte[SYSEX_LENGTH - 1];
+		for (int i = 0; i < data.length - 1; i++)
+		{
+			data[i] = (byte) (i & 0x7F);
+		}
+		data[data.length - 1] = (byte) 0xF7;
+		SysexMessage sysex = new SysexMessage();
+		sysex.setMessage(SysexMessage.SYSTEM_EXCLUSIVE, data, data.length);
+		sender.send(sysex, -1);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName receiverName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+				+ ObjectName.quote("MidiRtpReceiver:" + port));
+		long deadline = System.currentTimeMillis() + Midi.RECEIVER_POLL_MILLISECONDS * 3;
+		while (System.currentTimeMillis() < deadline && (Long) server.getAttribute(receiverName, "FilesWritten") == 0)
+		{
+			Thread.sleep(200);
+		}
+		sender.close();
+
+		try
+		{
+			File[] files = dir.listFiles();
+			assertTrue("No MIDI file was written", files != null && files.length > 0
+					&& (Long) server.getAttribute(receiverName, "FilesWritten") > 0);
+
+			int on = 0;
+			int off = 0;
+			int programs = 0;
+			int sysexLength = 0;
+			Sequence sequence = MidiSystem.getSequence(files[0]);
+			for (Track track : sequence.getTracks())
+			{
+				for (int i = 0; i < track.size(); i++)
+				{
+					MidiEvent event = track.get(i);
+					MidiMessage m = event.getMessage();
+					if(m instanceof SysexMessage)
+					{
+						sysexLength = m.getLength();
+					}
+					else if(m instanceof ShortMessage)
+					{
+						int command = ((ShortMessage) m).getCommand();
+						on += command == ShortMessage.NOTE_ON ? 1 : 0;
+						off += command == ShortMessage.NOTE_OFF ? 1 : 0;
+						programs += command == ShortMessage.PROGRAM_CHANGE ? 1 : 0;
+					}
+				}
+			}
+			String metrics = String.format("packets=%s lost=%s decodeErrors=%s",
+					server.getAttribute(receiverName, "Packets"),
+					server.getAttribute(receiverName, "LostPackets"),
+					server.getAttribute(receiverName, "DecodeErrors"));
+			assertEquals("Note ons, " + metrics, NOTES, on);
+			assertEquals("Note offs, " + metrics, NOTES, off);
+			assertEquals("Program changes, " + metrics, 1, programs);
+			assertEquals("Sysex length, " + metrics, SYSEX_LENGTH, sysexLength);
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * A free control port whose data port, the next one up, is free too.
+	 */
+	private static int getFreePortPair() throws Exception
+	{
+		while (true)
+		{
+			DatagramSocket control = new DatagramSocket(0);
+			int port = control.getLocalPort();
+			try
+			{
+				new DatagramSocket(port + 1).close();
+				return port;
+			}
+			catch(SocketException e)
+			{
+			}
+			finally
+			{
+				control.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.junit.Test;
+
+/**
+ * Sends a million short messages through each sender's device callback, to a ring
+ * drained on another thread for MidiSender and to a loopback port nobody reads for
+ * MidiMulticastSender, and checks the callback thread allocated next to nothing for them.
+ */
+public class MidiSenderAllocationTest
+{
+	private final static int EVENTS = 1000000;
+	private final static int WARMUP_EVENTS = 100000;
+	private final static int MESSAGES = 128;
+	// room for a few objects made once, not one per event
+	private final static double MAX_BYTES_PER_EVENT = 0.1;
+
+	@Test
+	public void tcp() throws Exception
+	{
+		final MidiEventRing ring = new MidiEventRing(Midi.SENDER_RING_SIZE, Midi.SENDER_RING_SLOT_SIZE);
+		Thread consumer = new Thread("MidiSenderAllocationTest consumer")
+		{
+			@Override
+			public void run()
+			{
+				MidiEventRing.Handler discard = new MidiEventRing.Handler()
+				{
+					@Override
+					public void onEvent(int messageType, int metaType, long tick, long sendTime, byte[] data, int offset, int length)
+					{
+					}
+				};
+				try
+				{
+					while (!isInterrupted())
+					{
+						if(ring.drain(discard) == 0)
+						{
+							ring.await(1, TimeUnit.MILLISECONDS);
+						}
+					}
+				}
+				catch(InterruptedException e)
+				{
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+		MidiSender.ObjectReceiver receiver = new MidiSender().new ObjectReceiver();
+		receiver.setRing(ring);
+		try
+		{
+			assertAllocationFree("tcp", receiver);
+		}
+		finally
+		{
+			consumer.interrupt();
+		}
+	}
+
+	@Test
+	public void multicast() throws Exception
+	{
+		sendMulticast("multicast", 0);
+	}
+
+	@Test
+	public void multicastBatched() throws Exception
+	{
+		sendMulticast("multicast-batched", 1000);
+	}
+
+	private void sendMulticast(String name, int batchMicroseconds) throws Exception
+	{
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(null);
+		MidiMulticastSender.ObjectReceiver receiver = new MidiMulticastSender().new ObjectReceiver();
+		receiver.setGroup(new InetSocketAddress(InetAddress.getLoopbackAddress(), channel.socket().getLocalPort()));
+		receiver.setChannel(channel);
+		receiver.setBatchMicroseconds(batchMicroseconds);
+		try
+		{
+			assertAllocationFree(name, receiver);
+		}
+		finally
+		{
+			receiver.close();
+			channel.close();
+		}
+	}
+
+	private static void assertAllocationFree(String name, Receiver receiver) throws Exception
+	{
+		ShortMessage[] messages = new ShortMessage[MESSAGES];
+		for (int i = 0; i < messages.length; i++)
+		{
+			messages[i] = new ShortMessage();
+			messages[i].setMessage(i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.CONTROL_CHANGE, 0, i, 64);
+		}
+		send(receiver, messages, WARMUP_EVENTS);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		send(receiver, messages, EVENTS);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		double perEvent = (double) allocated / EVENTS;
+		assertTrue(String.format("%s allocated %d bytes, %.3f per event", name, allocated, perEvent), perEvent < MAX_BYTES_PER_EVENT);
+	}
+
+	private static void send(Receiver receiver, ShortMessage[] messages, int events)
+	{
+		for (int i = 0; i < events; i++)
+		{
+			receiver.send(messages[i % MESSAGES], i);
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.natlaughlin.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Plays notes from several MidiMulticastSender receivers at once into one in-process
+ * MidiMulticastReceiver over the loopback interface, their packets interleaved and
+ * their device clocks far apart, and checks that every sender got a file of its own
+ * holding all of its notes and none of the others', starting at tick 0.
+ *
+ * Then opens thousands of sessions on a MidiSessions directly, one event each, and
+ * checks they are all written within a second of going idle.
+ */
+public class MidiSessionsTest
+{
+	private final static int SENDERS = 4;
+	private final static int NOTES = 200;
+	private final static int SESSIONS = 5000;
+	private final static int WAIT_SECONDS = 1;
+	private final static int LATE_MILLISECONDS = 1000;
+
+	@Test
+	public void senders() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		File dir = Files.createTempDirectory("MidiSessionsTest").toFile();
+
+		String[] receiverArgs = { "-port", String.valueOf(port), "-dir", dir.getPath(), "-wait", String.valueOf(WAIT_SECONDS) };
+		MidiMulticastReceiver.main(receiverArgs);
+		Thread.sleep(1000);
+
+		DatagramChannel[] channels = new DatagramChannel[SENDERS];
+		MidiMulticastSender.ObjectReceiver[] receivers = new MidiMulticastSender.ObjectReceiver[SENDERS];
+		for (int i = 0; i < SENDERS; i++)
+		{
+			channels[i] = DatagramChannel.open(StandardProtocolFamily.INET);
+			channels[i].bind(null);
+			receivers[i] = new MidiMulticastSender().new ObjectReceiver();
+			receivers[i].setGroup(new InetSocketAddress(InetAddress.getByName(MidiMulticast.HOST), port));
+			receivers[i].setChannel(channels[i]);
+			receivers[i].setBatchMicroseconds(0);
+			receivers[i].startRetransmitter();
+		}
+
+		// sender i plays channel i, its clock started i hours before the others
+		ShortMessage sm = new ShortMessage();
+		for (int n = 0; n < NOTES; n++)
+		{
+			for (int i = 0; i < SENDERS; i++)
+			{
+				long tick = i * 3600000000L + n * 20000L;
+				int key = 36 + n % 60;
+				sm.setMessage(ShortMessage.NOTE_ON, i % 16, key, 100);
+				receivers[i].send(sm, tick);
+				sm.setMessage(ShortMessage.NOTE_OFF, i % 16, key, 0);
+				receivers[i].send(sm, tick + 10000);
+			}
+			Thread.sleep(1);
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName receiverName = new ObjectName("com.natlaughlin.midi:type=MidiMetrics,name="
+				+ ObjectName.quote("MidiMulticastReceiver:" + MidiMulticast.HOST + ":" + port));
+		long deadline = System.currentTimeMillis() + (WAIT_SECONDS + 1) * 1000L + Midi.RECEIVER_POLL_MILLISECONDS;
+		while (System.currentTimeMillis() < deadline && (Long) server.getAttribute(receiverName, "FilesWritten") < SENDERS)
+		{
+			Thread.sleep(100);
+		}
+		for (int i = 0; i < SENDERS; i++)
+		{
+			receivers[i].close();
+			channels[i].close();
+		}
+
+		try
+		{
+			File[] files = dir.listFiles();
+			assertEquals("Files written", SENDERS, files == null ? 0 : files.length);
+			boolean[] seen = new boolean[SENDERS];
+			for (File file : files)
+			{
+				int[] counts = countNotes(file);
+				int channel = counts[0];
+				assertTrue(file.getName() + " holds channel " + channel, channel >= 0 && channel < SENDERS);
+				assertFalse(file.getName() + " repeats channel " + channel, seen[channel]);
+				seen[channel] = true;
+				assertEquals(file.getName() + " note ons", NOTES, counts[1]);
+				assertEquals(file.getName() + " note offs", NOTES, counts[2]);
+				assertEquals(file.getName() + " first tick", 0, counts[3]);
+			}
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * Returns the one channel in the file, or -1 if several, then note ons, note offs
+	 * and the tick of the first note.
+	 */
+	private static int[] countNotes(File midiFile) throws Exception
+	{
+		Sequence sequence = MidiSystem.getSequence(midiFile);
+		int channel = -2;
+		int on = 0;
+		int off = 0;
+		long first = -1;
+		for (Track track : sequence.getTracks())
+		{
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				if(!(event.getMessage() instanceof ShortMessage))
+					continue;
+
+				ShortMessage m = (ShortMessage) event.getMessage();
+				channel = channel == -2 || channel == m.getChannel() ? m.getChannel() : -1;
+				if(first < 0)
+				{
+					first = event.getTick();
+				}
+				if(m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+				{
+					on++;
+				}
+				else
+				{
+					off++;
+				}
+			}
+		}
+		return new int[] { channel, on, off, (int) first };
+	}
+
+	@Test
+	public void idle() throws Exception
+	{
+		File dir = Files.createTempDirectory("MidiSessionsTest").toFile();
+		final String directory = dir.getPath();
+		final PrintStream quiet = new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+		});
+		final SimpleDateFormat dateFormat = new SimpleDateFormat(Midi.FILE_DATEFORMAT);
+		final MidiMetrics metrics = new MidiMetrics("MidiSessionsTest");
+		MidiSessions<Integer> sessions = new MidiSessions<Integer>("MidiSessionsTest", WAIT_SECONDS, Midi.RECEIVER_POLL_MILLISECONDS,
+				new MidiSessions.Factory<Integer>()
+		{
+			@Override
+			public MidiSession createSession(Integer key)
+			{
+				MidiSession session = new MidiSession(directory, Midi.FILE_PREFIX, dateFormat, "_" + key, quiet, false);
+				session.setMetrics(metrics);
+				return session;
+			}
+		});
+
+		byte[] message = { (byte) ShortMessage.NOTE_ON, 60, 100 };
+		for (int i = 0; i < SESSIONS; i++)
+		{
+			sessions.processEvent(i, MidiEventSerializable.SHORT, 0, 0, 0, message, 0, message.length);
+		}
+		long opened = System.currentTimeMillis();
+
+		// the last session opened is idle WAIT_SECONDS whole seconds after its event
+		long deadline = opened + (WAIT_SECONDS + 1) * 1000L + LATE_MILLISECONDS;
+		long written;
+		while ((written = metrics.getValues().get("FilesWritten")) < SESSIONS && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+
+		try
+		{
+			assertEquals("Sessions written a second after going idle", SESSIONS, written);
+			assertEquals("Sessions open", 0, sessions.size());
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+}